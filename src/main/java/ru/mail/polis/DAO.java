@@ -22,8 +22,14 @@ import org.jetbrains.annotations.Nullable;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Storage interface.
@@ -64,6 +70,33 @@ public interface DAO extends Closeable {
         return Iters.until(iterator(from), bound);
     }
 
+    /**
+     * Provides iterator (possibly empty) over {@link Record}s with the keys starting with given prefix
+     * in <b>ascending</b> order according to {@link Record#compareTo(Record)}.
+     */
+    @NotNull
+    default Iterator<Record> prefixIterator(@NotNull ByteBuffer prefix) throws IOException {
+        final ByteBuffer to = Iters.prefixEnd(prefix);
+        // No key after the ones with the maximum bytes only
+        return to == null ? iterator(prefix) : range(prefix, to);
+    }
+
+    /**
+     * Provides stream (possibly empty) of {@link Record}s starting at "from" key (inclusive)
+     * until given "to" key (exclusive) in <b>ascending</b> order according to {@link Record#compareTo(Record)}.
+     * A parallel stream scans the parts of the range on its own threads, each part keeps the order.
+     * The stream may hold resources until it is closed.
+     */
+    @NotNull
+    default Stream<Record> stream(
+            @NotNull ByteBuffer from,
+            @Nullable ByteBuffer to) throws IOException {
+        final Spliterator<Record> spliterator = Spliterators.spliteratorUnknownSize(
+                range(from, to),
+                Spliterator.ORDERED | Spliterator.SORTED | Spliterator.DISTINCT | Spliterator.NONNULL);
+        return StreamSupport.stream(spliterator, false);
+    }
+
     /**
      * Obtains {@link Record} corresponding to given key.
      *
@@ -96,6 +129,29 @@ public interface DAO extends Closeable {
      */
     void remove(@NotNull ByteBuffer key) throws IOException;
 
+    /**
+     * Removes values by keys from "from" key (inclusive) until "to" key (exclusive).
+     */
+    default void removeRange(
+            @NotNull ByteBuffer from,
+            @NotNull ByteBuffer to) throws IOException {
+        final List<ByteBuffer> keys = new ArrayList<>();
+        final Iterator<Record> iter = range(from, to);
+        while (iter.hasNext()) {
+            keys.add(iter.next().getKey());
+        }
+
+        for (final ByteBuffer key : keys) {
+            remove(key);
+        }
+    }
+
+    /**
+     * Creates a read-only view of the current contents, it has to be closed after use.
+     */
+    @NotNull
+    Snapshot snapshot() throws IOException;
+
     /**
      * Perform compaction
      */
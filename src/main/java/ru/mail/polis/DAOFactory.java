@@ -17,7 +17,9 @@
 package ru.mail.polis;
 
 import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.nekobitlz.DAOConfig;
 import ru.mail.polis.nekobitlz.DAOImpl;
+import ru.mail.polis.nekobitlz.Namespaces;
 
 import java.io.File;
 import java.io.IOException;
@@ -42,6 +44,24 @@ public final class DAOFactory {
      */
     @NotNull
     public static DAO create(@NotNull final File data) throws IOException {
+        checkEnvironment(data);
+        return new DAOImpl(data, MAX_HEAP / 32);
+    }
+
+    /**
+     * Construct {@link Namespaces}: named storages in the subfolders of the folder,
+     * their MemTables share the memory a single storage would have.
+     *
+     * @param data local disk folder to persist the namespaces to
+     * @return namespaces to create or open the storages by name
+     */
+    @NotNull
+    public static Namespaces createNamespaces(@NotNull final File data) {
+        checkEnvironment(data);
+        return new Namespaces(data, DAOConfig.builder(MAX_HEAP / 32).build());
+    }
+
+    private static void checkEnvironment(@NotNull final File data) {
         if (Runtime.getRuntime().maxMemory() > MAX_HEAP) {
             throw new IllegalStateException("The heap is too big. Consider setting Xmx.");
         }
@@ -53,7 +73,5 @@ public final class DAOFactory {
         if (!data.isDirectory()) {
             throw new IllegalArgumentException("Path is not a directory: " + data);
         }
-
-        return new DAOImpl(data, MAX_HEAP / 32);
     }
 }
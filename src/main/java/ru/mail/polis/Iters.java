@@ -2,7 +2,9 @@ package ru.mail.polis;
 
 import com.google.common.base.Functions;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.function.Function;
@@ -51,6 +53,26 @@ public final class Iters {
         return new CollapseEqualsIterator<>(iter);
     }
 
+    /**
+     * Returns the smallest key greater than all the keys starting with the prefix.
+     *
+     * @param prefix the first bytes of the keys
+     * @return the key after the keys with the prefix, null if there is none
+     */
+    @Nullable
+    public static ByteBuffer prefixEnd(@NotNull final ByteBuffer prefix) {
+        for (int i = prefix.remaining() - 1; i >= 0; i--) {
+            final byte last = prefix.get(prefix.position() + i);
+            if (last != Byte.MAX_VALUE) {
+                return ByteBuffer.allocate(i + 1)
+                        .put(prefix.duplicate().limit(prefix.position() + i))
+                        .put((byte) (last + 1))
+                        .flip();
+            }
+        }
+        return null;
+    }
+
     private static class UntilIterator<E extends Comparable<E>> implements Iterator<E> {
         private final Iterator<E> iter;
         private final E until;
@@ -0,0 +1,15 @@
+package ru.mail.polis.nekobitlz;
+
+/**
+ * When the checksums of the SSTable records are verified.
+ */
+public enum ChecksumVerification {
+    /**
+     * On every read of a record, compaction included.
+     */
+    READ,
+    /**
+     * Only when the records are rewritten by compaction or checked by the scrub.
+     */
+    COMPACTION
+}
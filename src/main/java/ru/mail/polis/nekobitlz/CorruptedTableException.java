@@ -0,0 +1,17 @@
+package ru.mail.polis.nekobitlz;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+/**
+ * Signals that the contents of an SSTable don't match their checksums.
+ */
+public class CorruptedTableException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public CorruptedTableException(@NotNull final String message) {
+        super(message);
+    }
+}
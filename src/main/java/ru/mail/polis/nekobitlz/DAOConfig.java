@@ -0,0 +1,495 @@
+package ru.mail.polis.nekobitlz;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Clock;
+import java.time.Duration;
+
+public final class DAOConfig {
+
+    private static final Duration MAX_MILLIS = Duration.ofMillis(Long.MAX_VALUE);
+
+    private final long bytesFlushThreshold;
+    private final long tombstoneGracePeriodMillis;
+    private final int openParallelism;
+    private final ChecksumVerification checksumVerification;
+    private final long scrubIntervalMillis;
+    private final long scrubBytesPerSecond;
+    private final TableAccess tableAccess;
+    private final int mappedSegmentBytes;
+    private final int readaheadBytes;
+    private final boolean jmxEnabled;
+    @Nullable
+    private final MetricsReporter metricsReporter;
+    private final long metricsReportIntervalMillis;
+    private final long flushBytesPerSecond;
+    private final long compactionBytesPerSecond;
+    private final int softTableLimit;
+    private final int hardTableLimit;
+    private final long slowdownBytesPerSecond;
+    private final int minSeparatedValueBytes;
+    private final long valueLogSegmentBytes;
+    private final boolean hashIndexEnabled;
+    @Nullable
+    private final KeyPrefix filterPrefix;
+    private final Clock clock;
+
+    private DAOConfig(@NotNull final Builder builder) {
+        this.bytesFlushThreshold = builder.bytesFlushThreshold;
+        this.tombstoneGracePeriodMillis = builder.tombstoneGracePeriodMillis;
+        this.openParallelism = builder.openParallelism;
+        this.checksumVerification = builder.checksumVerification;
+        this.scrubIntervalMillis = builder.scrubIntervalMillis;
+        this.scrubBytesPerSecond = builder.scrubBytesPerSecond;
+        this.tableAccess = builder.tableAccess;
+        this.mappedSegmentBytes = builder.mappedSegmentBytes;
+        this.readaheadBytes = builder.readaheadBytes;
+        this.jmxEnabled = builder.jmxEnabled;
+        this.metricsReporter = builder.metricsReporter;
+        this.metricsReportIntervalMillis = builder.metricsReportIntervalMillis;
+        this.flushBytesPerSecond = builder.flushBytesPerSecond;
+        this.compactionBytesPerSecond = builder.compactionBytesPerSecond;
+        this.softTableLimit = builder.softTableLimit;
+        this.hardTableLimit = builder.hardTableLimit;
+        this.slowdownBytesPerSecond = builder.slowdownBytesPerSecond;
+        this.minSeparatedValueBytes = builder.minSeparatedValueBytes;
+        this.valueLogSegmentBytes = builder.valueLogSegmentBytes;
+        this.hashIndexEnabled = builder.hashIndexEnabled;
+        this.filterPrefix = builder.filterPrefix;
+        this.clock = builder.clock;
+    }
+
+    /**
+     * Creates a builder with default settings.
+     *
+     * @param bytesFlushThreshold MemTable size threshold
+     * @return builder
+     */
+    @NotNull
+    public static Builder builder(final long bytesFlushThreshold) {
+        return new Builder(bytesFlushThreshold);
+    }
+
+    public long getBytesFlushThreshold() {
+        return bytesFlushThreshold;
+    }
+
+    public long getTombstoneGracePeriodMillis() {
+        return tombstoneGracePeriodMillis;
+    }
+
+    @NotNull
+    public Clock getClock() {
+        return clock;
+    }
+
+    public int getOpenParallelism() {
+        return openParallelism;
+    }
+
+    @NotNull
+    public ChecksumVerification getChecksumVerification() {
+        return checksumVerification;
+    }
+
+    /**
+     * Returns the delay between the scrub passes, zero if the scrub is disabled.
+     */
+    public long getScrubIntervalMillis() {
+        return scrubIntervalMillis;
+    }
+
+    public long getScrubBytesPerSecond() {
+        return scrubBytesPerSecond;
+    }
+
+    @NotNull
+    public TableAccess getTableAccess() {
+        return tableAccess;
+    }
+
+    /**
+     * Returns the largest part of a table mapped at once.
+     */
+    public int getMappedSegmentBytes() {
+        return mappedSegmentBytes;
+    }
+
+    /**
+     * Returns the largest region prefetched ahead of a scan, zero if the readahead is disabled.
+     */
+    public int getReadaheadBytes() {
+        return readaheadBytes;
+    }
+
+    public boolean isJmxEnabled() {
+        return jmxEnabled;
+    }
+
+    /**
+     * Returns the receiver of the periodic metrics reports, null if the reports are disabled.
+     */
+    @Nullable
+    public MetricsReporter getMetricsReporter() {
+        return metricsReporter;
+    }
+
+    public long getMetricsReportIntervalMillis() {
+        return metricsReportIntervalMillis;
+    }
+
+    /**
+     * Returns the write rate limit of the flushes, zero if there is no limit.
+     */
+    public long getFlushBytesPerSecond() {
+        return flushBytesPerSecond;
+    }
+
+    /**
+     * Returns the write rate limit of compaction, zero if there is no limit.
+     */
+    public long getCompactionBytesPerSecond() {
+        return compactionBytesPerSecond;
+    }
+
+    /**
+     * Returns the number of tables from which the writes are slowed down, zero if the writes never stall.
+     */
+    public int getSoftTableLimit() {
+        return softTableLimit;
+    }
+
+    public int getHardTableLimit() {
+        return hardTableLimit;
+    }
+
+    public long getSlowdownBytesPerSecond() {
+        return slowdownBytesPerSecond;
+    }
+
+    /**
+     * Returns the smallest value kept in the value log, zero if all the values are kept in the tables.
+     */
+    public int getMinSeparatedValueBytes() {
+        return minSeparatedValueBytes;
+    }
+
+    public long getValueLogSegmentBytes() {
+        return valueLogSegmentBytes;
+    }
+
+    public boolean isHashIndexEnabled() {
+        return hashIndexEnabled;
+    }
+
+    /**
+     * Returns the part of the keys the prefix filters of the tables are built over, null if there are none.
+     */
+    @Nullable
+    public KeyPrefix getFilterPrefix() {
+        return filterPrefix;
+    }
+
+    /**
+     * Converts the duration to milliseconds, the ones too long for a long saturate at Long.MAX_VALUE.
+     */
+    static long toMillis(@NotNull final Duration duration) {
+        return duration.compareTo(MAX_MILLIS) < 0 ? duration.toMillis() : Long.MAX_VALUE;
+    }
+
+    public static final class Builder {
+
+        private final long bytesFlushThreshold;
+        private long tombstoneGracePeriodMillis;
+        private int openParallelism = Math.min(4, Runtime.getRuntime().availableProcessors());
+        private ChecksumVerification checksumVerification = ChecksumVerification.READ;
+        private long scrubIntervalMillis;
+        private long scrubBytesPerSecond;
+        private TableAccess tableAccess = TableAccess.MMAP;
+        private int mappedSegmentBytes = Integer.MAX_VALUE;
+        private int readaheadBytes;
+        private boolean jmxEnabled;
+        private MetricsReporter metricsReporter;
+        private long metricsReportIntervalMillis;
+        private long flushBytesPerSecond;
+        private long compactionBytesPerSecond;
+        private int softTableLimit;
+        private int hardTableLimit;
+        private long slowdownBytesPerSecond;
+        private int minSeparatedValueBytes;
+        private long valueLogSegmentBytes = 64L * 1024 * 1024;
+        private boolean hashIndexEnabled;
+        @Nullable
+        private KeyPrefix filterPrefix;
+        private Clock clock = Clock.systemUTC();
+
+        private Builder(final long bytesFlushThreshold) {
+            this.bytesFlushThreshold = bytesFlushThreshold;
+        }
+
+        /**
+         * Sets the minimum age of a table before compaction may drop its tombstones.
+         *
+         * @param gracePeriod grace period, zero to purge as soon as possible
+         * @return this builder
+         */
+        @NotNull
+        public Builder tombstoneGracePeriod(@NotNull final Duration gracePeriod) {
+            if (gracePeriod.isNegative()) {
+                throw new IllegalArgumentException("Negative grace period: " + gracePeriod);
+            }
+            this.tombstoneGracePeriodMillis = toMillis(gracePeriod);
+            return this;
+        }
+
+        /**
+         * Sets the source of the current time for the expiration of the values and the tombstone grace period.
+         *
+         * @param clock the clock, the system one by default
+         * @return this builder
+         */
+        @NotNull
+        public Builder clock(@NotNull final Clock clock) {
+            this.clock = clock;
+            return this;
+        }
+
+        /**
+         * Sets the number of threads opening the tables in the background on startup.
+         *
+         * @param parallelism number of threads, zero to open each table on its first access only
+         * @return this builder
+         */
+        @NotNull
+        public Builder openParallelism(final int parallelism) {
+            if (parallelism < 0) {
+                throw new IllegalArgumentException("Negative parallelism: " + parallelism);
+            }
+            this.openParallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * Sets when the checksums of the records are verified.
+         *
+         * @param verification {@link ChecksumVerification#COMPACTION} to keep the reads fast
+         * @return this builder
+         */
+        @NotNull
+        public Builder checksumVerification(@NotNull final ChecksumVerification verification) {
+            this.checksumVerification = verification;
+            return this;
+        }
+
+        /**
+         * Enables the background verification of all the tables.
+         *
+         * @param interval       delay between the passes over the tables
+         * @param bytesPerSecond read rate limit of the verification
+         * @return this builder
+         */
+        @NotNull
+        public Builder scrub(@NotNull final Duration interval, final long bytesPerSecond) {
+            if (interval.isNegative() || interval.isZero()) {
+                throw new IllegalArgumentException("Non-positive scrub interval: " + interval);
+            }
+            if (bytesPerSecond <= 0) {
+                throw new IllegalArgumentException("Non-positive scrub rate: " + bytesPerSecond);
+            }
+            this.scrubIntervalMillis = interval.toMillis();
+            this.scrubBytesPerSecond = bytesPerSecond;
+            return this;
+        }
+
+        /**
+         * Sets how the records of the tables are read.
+         *
+         * @param access memory mapping or positional reads
+         * @return this builder
+         */
+        @NotNull
+        public Builder tableAccess(@NotNull final TableAccess access) {
+            this.tableAccess = access;
+            return this;
+        }
+
+        /**
+         * Sets the largest part of a table mapped at once, the records of larger tables are mapped by segments
+         * holding whole records. Only the {@link TableAccess#MMAP} access maps the tables.
+         *
+         * @param bytes segment size, Integer.MAX_VALUE by default, a record larger than it gets a segment of its own
+         * @return this builder
+         */
+        @NotNull
+        public Builder mappedSegmentBytes(final int bytes) {
+            if (bytes <= 0) {
+                throw new IllegalArgumentException("Non-positive mapped segment size: " + bytes);
+            }
+            this.mappedSegmentBytes = bytes;
+            return this;
+        }
+
+        /**
+         * Enables prefetching of the tables ahead of long scans, e.g. 4 MB for spinning disks.
+         * Point lookups and short scans don't prefetch anything.
+         *
+         * @param bytes the largest region prefetched at once, zero to disable the readahead
+         * @return this builder
+         */
+        @NotNull
+        public Builder readahead(final int bytes) {
+            if (bytes < 0) {
+                throw new IllegalArgumentException("Negative readahead: " + bytes);
+            }
+            this.readaheadBytes = bytes;
+            return this;
+        }
+
+        /**
+         * Exposes the metrics through JMX, the MBean is named after the folder of the DAO.
+         *
+         * @param enabled whether to register the MBean
+         * @return this builder
+         */
+        @NotNull
+        public Builder jmx(final boolean enabled) {
+            this.jmxEnabled = enabled;
+            return this;
+        }
+
+        /**
+         * Enables the periodic reports of the metrics, the last one is sent on close.
+         *
+         * @param reporter receiver of the reports
+         * @param interval delay between the reports
+         * @return this builder
+         */
+        @NotNull
+        public Builder metricsReporter(@NotNull final MetricsReporter reporter, @NotNull final Duration interval) {
+            if (interval.isNegative() || interval.isZero()) {
+                throw new IllegalArgumentException("Non-positive report interval: " + interval);
+            }
+            this.metricsReporter = reporter;
+            this.metricsReportIntervalMillis = interval.toMillis();
+            return this;
+        }
+
+        /**
+         * Limits the write rate of the MemTable flushes.
+         * The limit is lifted while the writers wait for a flush, so it smooths the flushes nobody waits for.
+         *
+         * @param bytesPerSecond rate limit, zero for no limit
+         * @return this builder
+         */
+        @NotNull
+        public Builder flushRate(final long bytesPerSecond) {
+            if (bytesPerSecond < 0) {
+                throw new IllegalArgumentException("Negative flush rate: " + bytesPerSecond);
+            }
+            this.flushBytesPerSecond = bytesPerSecond;
+            return this;
+        }
+
+        /**
+         * Limits the write rate of compaction, so it doesn't take the disk from the reads.
+         * The limit doubles with every table flushed while compaction is behind.
+         *
+         * @param bytesPerSecond rate limit, zero for no limit
+         * @return this builder
+         */
+        @NotNull
+        public Builder compactionRate(final long bytesPerSecond) {
+            if (bytesPerSecond < 0) {
+                throw new IllegalArgumentException("Negative compaction rate: " + bytesPerSecond);
+            }
+            this.compactionBytesPerSecond = bytesPerSecond;
+            return this;
+        }
+
+        /**
+         * Holds the writes back while compaction is behind, so the number of tables read by each lookup stays bounded.
+         * Past the soft limit the write rate falls linearly from the given one to zero at the hard limit,
+         * at the hard limit the flushes wait for compaction, and the writes wait once the MemTable is full.
+         * Both limits must exceed the number of tables compaction leaves behind, which is 8.
+         *
+         * @param softLimit      number of tables from which the writes are slowed down
+         * @param hardLimit      number of tables at which the flushes stop
+         * @param bytesPerSecond write rate right past the soft limit
+         * @return this builder
+         */
+        @NotNull
+        public Builder writeStall(final int softLimit, final int hardLimit, final long bytesPerSecond) {
+            if (softLimit <= 0) {
+                throw new IllegalArgumentException("Non-positive soft table limit: " + softLimit);
+            }
+            if (hardLimit <= softLimit) {
+                throw new IllegalArgumentException("Hard table limit " + hardLimit
+                        + " doesn't exceed soft limit " + softLimit);
+            }
+            if (bytesPerSecond <= 0) {
+                throw new IllegalArgumentException("Non-positive slowdown rate: " + bytesPerSecond);
+            }
+            this.softTableLimit = softLimit;
+            this.hardTableLimit = hardLimit;
+            this.slowdownBytesPerSecond = bytesPerSecond;
+            return this;
+        }
+
+        /**
+         * Keeps the large values in an append-only value log, the tables hold pointers to them.
+         * Compaction then rewrites the keys and the pointers only, the values are written once on flush
+         * and once more when compaction empties a segment dominated by the overwritten values.
+         * Scans read each value separately, so they become slower.
+         *
+         * @param minValueBytes the smallest value kept in the log, e.g. 4 KB
+         * @param segmentBytes  size of the log files, e.g. 64 MB
+         * @return this builder
+         */
+        @NotNull
+        public Builder valueSeparation(final int minValueBytes, final long segmentBytes) {
+            if (minValueBytes <= 0) {
+                throw new IllegalArgumentException("Non-positive separated value size: " + minValueBytes);
+            }
+            if (segmentBytes <= 0) {
+                throw new IllegalArgumentException("Non-positive value log segment size: " + segmentBytes);
+            }
+            this.minSeparatedValueBytes = minValueBytes;
+            this.valueLogSegmentBytes = segmentBytes;
+            return this;
+        }
+
+        /**
+         * Adds a hash index of the keys to the written tables, so a point lookup reads a slot or two
+         * and the matching record instead of binary searching the records.
+         * The index takes 8 to 16 bytes per record, the scans still use the sorted order of the records.
+         *
+         * @param enabled whether to write the hash index
+         * @return this builder
+         */
+        @NotNull
+        public Builder hashIndex(final boolean enabled) {
+            this.hashIndexEnabled = enabled;
+            return this;
+        }
+
+        /**
+         * Adds a Bloom filter of the key prefixes to the written tables, so the prefix scans skip the tables
+         * without the prefix instead of merging them. The filter takes about 10 bits per distinct prefix.
+         * A scan benefits when its prefix is at least as long as the filtered one.
+         *
+         * @param prefix the part of the keys to build the filters over
+         * @return this builder
+         */
+        @NotNull
+        public Builder prefixFilter(@NotNull final KeyPrefix prefix) {
+            this.filterPrefix = prefix;
+            return this;
+        }
+
+        @NotNull
+        public DAOConfig build() {
+            return new DAOConfig(this);
+        }
+    }
+}
@@ -1,29 +1,111 @@
 package ru.mail.polis.nekobitlz;
 
 import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.mail.polis.DAO;
 import ru.mail.polis.Iters;
 import ru.mail.polis.Record;
+import ru.mail.polis.Snapshot;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class DAOImpl implements DAO {
 
     private static final int COMPACTION_THRESHOLD = 8;
-    private final MemTable memTable;
+    private static final int COMPACTION_BATCH_SIZE = COMPACTION_THRESHOLD / 2;
+    private static final int READAHEAD_THREADS = 2;
+    // Share of the overwritten and removed values from which a value log segment is emptied
+    private static final double VALUE_LOG_GARBAGE_RATIO = 0.5;
     private final File folder;
     private final List<SSTable> tables;
+    // Tables replaced by compaction, which may still be read by snapshots and point to the value log
+    private final List<SSTable> retiredTables = new CopyOnWriteArrayList<>();
+    private final AtomicLong sequence = new AtomicLong();
+    // The changes share the lock, while flush, compaction and snapshots replace the MemTable or the tables
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Serializes the flushes, they write the MemTable without holding the lock above
+    private final Lock flushLock = new ReentrantLock();
+    // Serializes the compactions, they merge the tables without holding the lock above
+    private final Lock compactionLock = new ReentrantLock();
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    private final long bytesFlushThreshold;
+    private volatile MemTable memTable;
+    // The MemTable being written by a flush, read along with the current one until its table is added
+    @Nullable
+    private volatile MemTable flushingMemTable;
+    private final long tombstoneGracePeriodMillis;
+    private final Clock clock;
+    private final boolean verifyReads;
+    private final boolean hashIndex;
+    @Nullable
+    private final KeyPrefix filterPrefix;
+    private final TableAccess tableAccess;
+    private final int mappedSegmentBytes;
+    private final ExecutorService openExecutor;
+    @Nullable
+    private final ScheduledExecutorService scrubExecutor;
+    @Nullable
+    private final ScheduledFuture<?> scrubTask;
+    private final ExecutorService compactionExecutor;
+    private final IoThrottle flushThrottle;
+    private final IoThrottle compactionThrottle;
+    @Nullable
+    private final ExecutorService readaheadExecutor;
+    @Nullable
+    private final Readahead readahead;
+    @Nullable
+    private final WriteStall writeStall;
+    private final DAOMetrics metrics;
+    private final ValueLog valueLog;
+    // The namespaces sharing the memory budget and the compaction thread, null for a standalone DAO
+    @Nullable
+    private final Namespaces namespaces;
+    // Set on close, the compactions scheduled on the shared thread are skipped then
+    private volatile boolean closed;
     private final Logger logger = LoggerFactory.getLogger(DAOImpl.class);
 
     /**
@@ -34,85 +116,1242 @@ public class DAOImpl implements DAO {
      * @throws IOException if a write error has occurred
      */
     public DAOImpl(@NotNull final File folder, final long bytesFlushThreshold) throws IOException {
-        memTable = new MemTable(bytesFlushThreshold);
-        tables = new ArrayList<>();
+        this(folder, DAOConfig.builder(bytesFlushThreshold).build());
+    }
+
+    /**
+     * Constructs a new DAO based on LSM tree.
+     *
+     * @param folder folder to save data
+     * @param config storage settings
+     * @throws IOException if a write error has occurred
+     */
+    public DAOImpl(@NotNull final File folder, @NotNull final DAOConfig config) throws IOException {
+        this(folder, config, null);
+    }
+
+    /**
+     * Constructs a new DAO based on LSM tree.
+     *
+     * @param folder     folder to save data
+     * @param config     storage settings
+     * @param namespaces namespaces sharing the memory budget and the compaction thread, null for a standalone DAO
+     * @throws IOException if a write error has occurred
+     */
+    DAOImpl(@NotNull final File folder,
+            @NotNull final DAOConfig config,
+            @Nullable final Namespaces namespaces) throws IOException {
+        this.namespaces = namespaces;
+        bytesFlushThreshold = config.getBytesFlushThreshold();
+        memTable = newMemTable();
+        // Copied on write, so the background tasks may iterate over it
+        tables = new CopyOnWriteArrayList<>();
+        metrics = new DAOMetrics(
+                tables::size,
+                () -> tables.stream().filter(SSTable::isOpened).count(),
+                () -> memTable.getBytesSize());
+        // A flush speeds up for every threshold the MemTable filled meanwhile has reached
+        flushThrottle = new IoThrottle(
+                config.getFlushBytesPerSecond(),
+                () -> (int) Math.min(memTable.getBytesSize() / Math.max(bytesFlushThreshold, 1), Integer.MAX_VALUE));
+        // Compaction speeds up for every table flushed while it is behind
+        compactionThrottle = new IoThrottle(
+                config.getCompactionBytesPerSecond(),
+                () -> tables.size() - COMPACTION_THRESHOLD - 1);
+        if (config.getSoftTableLimit() == 0) {
+            writeStall = null;
+        } else if (config.getSoftTableLimit() <= COMPACTION_THRESHOLD) {
+            throw new IllegalArgumentException("Soft table limit " + config.getSoftTableLimit()
+                    + " doesn't exceed the compaction threshold " + COMPACTION_THRESHOLD);
+        } else {
+            writeStall = new WriteStall(
+                    config.getSoftTableLimit(),
+                    config.getHardTableLimit(),
+                    config.getSlowdownBytesPerSecond(),
+                    tables::size,
+                    metrics);
+        }
+        compactionExecutor = namespaces == null
+                ? Executors.newSingleThreadExecutor(
+                        new ThreadFactoryBuilder().setNameFormat("sstable-compaction-%d").setDaemon(true).build())
+                : namespaces.getCompactionExecutor();
+        tombstoneGracePeriodMillis = config.getTombstoneGracePeriodMillis();
+        clock = config.getClock();
+        verifyReads = config.getChecksumVerification() == ChecksumVerification.READ;
+        hashIndex = config.isHashIndexEnabled();
+        filterPrefix = config.getFilterPrefix();
+        tableAccess = config.getTableAccess();
+        mappedSegmentBytes = config.getMappedSegmentBytes();
+        if (config.getReadaheadBytes() == 0) {
+            readaheadExecutor = null;
+            readahead = null;
+        } else {
+            readaheadExecutor = Executors.newFixedThreadPool(
+                    READAHEAD_THREADS,
+                    new ThreadFactoryBuilder().setNameFormat("sstable-readahead-%d").setDaemon(true).build());
+            readahead = new Readahead(readaheadExecutor, config.getReadaheadBytes());
+        }
         this.folder = folder;
 
-        try (Stream<Path> files = Files.list(folder.toPath())) {
-            files.filter(path -> Files.isRegularFile(path) && SSTableUtils.hasValidFileExtension(path))
-                    .forEach(path -> createNewSSTable(path.toFile()));
+        final List<Path> files = listFiles();
+        removeTempFiles(files);
+        valueLog = new ValueLog(
+                folder,
+                config.getMinSeparatedValueBytes(),
+                config.getValueLogSegmentBytes(),
+                files,
+                metrics);
+        final List<Manifest.Entry> entries = Manifest.read(folder);
+        if (entries == null) {
+            openListedTables(files);
+        } else {
+            openManifestTables(entries, files);
+        }
+
+        openExecutor = warmUp(config.getOpenParallelism());
+        for (final SSTable table : tables) {
+            sequence.accumulateAndGet(table.getMaxSequence(), Math::max);
+        }
+        if (config.getScrubIntervalMillis() == 0) {
+            scrubExecutor = null;
+            scrubTask = null;
+        } else {
+            scrubExecutor = namespaces == null
+                    ? Executors.newSingleThreadScheduledExecutor(
+                            new ThreadFactoryBuilder().setNameFormat("sstable-scrub-%d").setDaemon(true).build())
+                    : namespaces.getScrubExecutor();
+            scrubTask = scheduleScrub(scrubExecutor, config.getScrubIntervalMillis(), config.getScrubBytesPerSecond());
+        }
+        if (config.isJmxEnabled()) {
+            metrics.registerMBean(folder);
+        }
+        final MetricsReporter reporter = config.getMetricsReporter();
+        if (reporter != null) {
+            metrics.scheduleReports(reporter, config.getMetricsReportIntervalMillis());
         }
     }
 
     @NotNull
     @Override
     public Iterator<Record> iterator(@NotNull final ByteBuffer from) {
-        final Iterator<Item> itemIterator = createItemIterator(from);
-        return Iterators.transform(itemIterator, i -> Record.of(i.getKey(), i.getValue()));
+        final long start = System.nanoTime();
+        try {
+            return iterateLive(view -> view.iterator(from, clock.millis()));
+        } finally {
+            metrics.recordIterator(start);
+        }
+    }
+
+    /**
+     * Returns the live records with the keys starting with the prefix,
+     * the tables without the prefix by their prefix filters are not merged.
+     */
+    @NotNull
+    @Override
+    public Iterator<Record> prefixIterator(@NotNull final ByteBuffer prefix) {
+        return scan(prefix, null, ScanOptions.builder().prefix(prefix).build());
+    }
+
+    /**
+     * Returns the live records of the range with the options applied by the storage itself:
+     * the records skipped by the prefix and the filters are not built, the values are not read in the keys-only mode.
+     *
+     * @param from    the first key of the range
+     * @param to      the key after the range, null for the end of the keys
+     * @param options prefix, filters, keys-only mode and limit of the scan
+     * @return iterator in ascending order of the keys
+     */
+    @NotNull
+    public Iterator<Record> scan(@NotNull final ByteBuffer from,
+                                 @Nullable final ByteBuffer to,
+                                 @NotNull final ScanOptions options) {
+        final long start = System.nanoTime();
+        try {
+            return iterateLive(view -> view.scan(from, to, options, clock.millis()));
+        } finally {
+            metrics.recordIterator(start);
+        }
+    }
+
+    /**
+     * Estimates the number of the records in the range without reading them: the positions of the bounds
+     * are looked up in the tables and only the first MemTable items of the range are walked.
+     * The overwritten, removed and expired records are counted until compaction drops them.
+     *
+     * @param from the first key of the range
+     * @param to   the key after the range, null for the end of the keys
+     * @return approximate number of the records from "from" (inclusive) until "to" (exclusive)
+     */
+    public long estimateCount(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        if (to != null && from.compareTo(to) >= 0) {
+            return 0;
+        }
+        return readLive(view -> view.estimateCount(from, to));
+    }
+
+    /**
+     * Estimates the bytes the records in the range take without reading them, the same way as
+     * {@link #estimateCount(ByteBuffer, ByteBuffer)} does. The separated values are included.
+     *
+     * @param from the first key of the range
+     * @param to   the key after the range, null for the end of the keys
+     * @return approximate size in bytes of the records from "from" (inclusive) until "to" (exclusive)
+     */
+    public long estimateSize(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        if (to != null && from.compareTo(to) >= 0) {
+            return 0;
+        }
+        return readLive(view -> view.estimateSize(from, to));
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws NoSuchElementException {
+        final long start = System.nanoTime();
+        try {
+            return readLive(view -> view.get(key, clock.millis()));
+        } finally {
+            metrics.recordGet(start);
+        }
+    }
+
+    /**
+     * Returns the metrics of the operations, flushes and compactions.
+     */
+    @NotNull
+    public MetricsRegistry getMetrics() {
+        return metrics.getRegistry();
+    }
+
+    /**
+     * Creates a point-in-time view. Nothing is written: the view reads the MemTable up to the current
+     * sequence number, which keeps the overwritten items seen by the view, and the current tables.
+     * The MemTable and the tables are pinned until the view is closed, even if a flush or a compaction
+     * replaces them meanwhile.
+     *
+     * @return view of the current contents
+     */
+    @NotNull
+    @Override
+    public Snapshot snapshot() throws IOException {
+        return openSnapshot();
+    }
+
+    /**
+     * Provides a stream of the records in the range over the current tables, pinned until all the parts
+     * of the stream are exhausted or the stream is closed. The MemTable is read live, as by the iterators,
+     * so the parts of a parallel stream may see the changes made meanwhile.
+     *
+     * @param from the first key of the range
+     * @param to   the key after the range, null for the end of the keys
+     * @return stream of the records in ascending order, it should be closed after use
+     */
+    @NotNull
+    @Override
+    public Stream<Record> stream(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        if (to != null && from.compareTo(to) > 0) {
+            return Stream.empty();
+        }
+
+        final List<MemTable> current = liveMemTables();
+        final List<SSTable> pinned = acquireTables();
+        final Runnable release = () -> pinned.forEach(this::release);
+        try {
+            final RangeSpliterator spliterator = RangeSpliterator.create(
+                    liveView(current, pinned),
+                    pinned,
+                    clock.millis(),
+                    from,
+                    to,
+                    release);
+            return StreamSupport.stream(spliterator, false).onClose(spliterator::close);
+        } catch (RuntimeException e) {
+            release.run();
+            throw e;
+        }
+    }
+
+    /**
+     * Takes over a table built by {@link SSTableWriter}, its records become newer than all the existing ones.
+     * The file is copied into the folder, the source is left in place.
+     *
+     * @param file finished table
+     * @throws IOException if the file can't be copied or is not a valid table
+     */
+    public void ingest(@NotNull final File file) throws IOException {
+        ingest(file, false);
+    }
+
+    /**
+     * Takes over a table built by {@link SSTableWriter} as {@link #ingest(File)} does,
+     * optionally hard linking the file instead of copying it.
+     * A linked file shares the contents with the source, so the source must not be modified in place afterwards:
+     * a change would corrupt the storage. The file is copied if it can't be linked.
+     *
+     * @param file finished table
+     * @param link whether to hard link the file into the folder
+     * @throws IOException if the file can't be copied or is not a valid table
+     */
+    public void ingest(@NotNull final File file, final boolean link) throws IOException {
+        final Path path = SSTableUtils.newTablePath(folder);
+        adopt(file.toPath(), path, link);
+
+        lock.writeLock().lock();
+        try {
+            // No change is in progress, so the ones made before get lower numbers and the later ones higher
+            final SSTable table;
+            try {
+                table = openTable(path.toFile(), 0, sequence.incrementAndGet());
+            } catch (IOException | IllegalArgumentException e) {
+                Files.delete(path);
+                throw new IOException("Not a valid table: " + file, e);
+            }
+
+            tables.add(table);
+            Manifest.write(folder, tables);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (tables.size() > COMPACTION_THRESHOLD) {
+            scheduleCompaction();
+        }
+    }
+
+    /**
+     * Writes the live records from "from" (inclusive) until "to" (exclusive) to a standalone table,
+     * which may be loaded by {@link #ingest(File)}. The export reads a snapshot, which writes nothing
+     * and holds the write lock only to pin the current contents, so the changes go on during the export.
+     *
+     * @param from   the first key of the range
+     * @param to     the key after the range, null for the end of the keys
+     * @param target destination file, replaced if it exists
+     * @return number of the exported records
+     * @throws IOException if a read or write error has occurred
+     */
+    public long exportRange(@NotNull final ByteBuffer from,
+                            @Nullable final ByteBuffer to,
+                            @NotNull final File target) throws IOException {
+        try (SnapshotImpl snapshot = openSnapshot();
+             SSTableWriter writer = SSTableWriter.create(target.toPath())) {
+            long count = 0;
+            final Iterator<Item> items = snapshot.items(from);
+            while (items.hasNext()) {
+                final Item item = items.next();
+                if (to != null && item.getKey().compareTo(to) >= 0) {
+                    break;
+                }
+                writer.add(new Item(
+                        item.getKey(),
+                        item.getValue(),
+                        SSTableWriter.STANDALONE_SEQUENCE,
+                        item.getExpiresAt()));
+                count++;
+            }
+            writer.finish();
+            return count;
+        }
+    }
+
+    @NotNull
+    private SnapshotImpl openSnapshot() {
+        // No change is in progress, so the sequence number covers exactly the changes made before
+        lock.writeLock().lock();
+        try {
+            final long pinnedSequence = sequence.get();
+            final List<MemTable> memTables = liveMemTables();
+            for (final MemTable pinnedMemTable : memTables) {
+                pinnedMemTable.pin(pinnedSequence);
+            }
+            final List<SSTable> pinned = new ArrayList<>(tables);
+            for (final SSTable table : pinned) {
+                // Never fails, the live tables are referenced by the DAO
+                table.acquire();
+            }
+            return new SnapshotImpl(
+                    memTables,
+                    pinnedSequence,
+                    pinned,
+                    clock.millis(),
+                    verifyReads,
+                    readahead,
+                    metrics,
+                    valueLog);
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     @Override
     public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
-        memTable.upsert(key, value);
-        if (memTable.isFlushNeeded()) {
-            flushTable();
+        final long start = System.nanoTime();
+        try {
+            apply(key.remaining() + value.remaining(), m -> m.upsert(key, value));
+        } finally {
+            metrics.recordUpsert(start);
+        }
+    }
+
+    /**
+     * Inserts or updates value by given key, the value disappears after given time-to-live.
+     *
+     * @param key   the key by which to insert the value
+     * @param value value to be inserted
+     * @param ttl   positive time-to-live, a longer one than the clock can reach keeps the value forever
+     * @throws IOException if a write error has occurred
+     */
+    public void upsert(@NotNull final ByteBuffer key,
+                       @NotNull final ByteBuffer value,
+                       @NotNull final Duration ttl) throws IOException {
+        if (ttl.isNegative() || ttl.isZero()) {
+            throw new IllegalArgumentException("Non-positive TTL: " + ttl);
+        }
+
+        final long start = System.nanoTime();
+        final long now = clock.millis();
+        final long ttlMillis = DAOConfig.toMillis(ttl);
+        final long expiresAt = ttlMillis < Item.NEVER_EXPIRES - now ? now + ttlMillis : Item.NEVER_EXPIRES;
+        try {
+            apply(key.remaining() + value.remaining(), m -> m.upsert(key, value, expiresAt));
+        } finally {
+            metrics.recordUpsert(start);
         }
     }
 
     @Override
     public void remove(@NotNull final ByteBuffer key) throws IOException {
-        memTable.remove(key);
-        if (memTable.isFlushNeeded()) {
-            flushTable();
+        final long start = System.nanoTime();
+        try {
+            apply(key.remaining(), m -> m.remove(key));
+        } finally {
+            metrics.recordRemove(start);
+        }
+    }
+
+    @Override
+    public void removeRange(@NotNull final ByteBuffer from, @NotNull final ByteBuffer to) throws IOException {
+        if (from.compareTo(to) >= 0) {
+            return;
         }
+
+        apply(from.remaining() + to.remaining(), m -> m.removeRange(from, to));
+    }
+
+    /**
+     * Changes the write rate limit of compaction, a running compaction adopts it right away.
+     *
+     * @param bytesPerSecond rate limit, zero for no limit
+     */
+    public void setCompactionRate(final long bytesPerSecond) {
+        compactionThrottle.setRate(bytesPerSecond);
+    }
+
+    /**
+     * Changes the write rate limit of the MemTable flushes.
+     *
+     * @param bytesPerSecond rate limit, zero for no limit
+     */
+    public void setFlushRate(final long bytesPerSecond) {
+        flushThrottle.setRate(bytesPerSecond);
     }
 
     @Override
     public void close() throws IOException {
-        memTable.flush(folder);
+        if (closed) {
+            return;
+        }
+        if (namespaces != null) {
+            namespaces.release(this);
+        }
+        if (writeStall != null) {
+            writeStall.close();
+        }
+        // The pending work finishes at full speed
+        compactionThrottle.setRate(0);
+        flushThrottle.setRate(0);
+        closed = true;
+        if (namespaces == null) {
+            compactionExecutor.shutdown();
+            try {
+                compactionExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for compaction");
+            }
+        } else {
+            // The shared thread goes on, only the running compaction of this DAO is waited for
+            compactionLock.lock();
+            compactionLock.unlock();
+        }
+
+        // A running flush finishes first, the later ones see the storage closed
+        flushLock.lock();
+        lock.writeLock().lock();
+        try {
+            closeExecutors();
+            if (flushingMemTable != null) {
+                writeFlushingMemTable();
+            }
+            if (!memTable.isEmpty()) {
+                flushMemTable();
+            }
+            for (final SSTable table : tables) {
+                table.release();
+            }
+            valueLog.close();
+        } finally {
+            lock.writeLock().unlock();
+            flushLock.unlock();
+            metrics.close();
+        }
+    }
+
+    private void closeExecutors() {
+        if (scrubTask != null) {
+            scrubTask.cancel(true);
+        }
+        // The shared executors are shut down along with the namespaces
+        if (namespaces == null) {
+            if (openExecutor != null) {
+                openExecutor.shutdownNow();
+            }
+            if (scrubExecutor != null) {
+                scrubExecutor.shutdownNow();
+            }
+        }
+        if (readaheadExecutor != null) {
+            readaheadExecutor.shutdownNow();
+        }
     }
 
     @Override
     public void compact() throws IOException {
-        final Iterator<Item> itemIterator = createItemIterator(ByteBuffer.allocate(0));
-        final File mergedTable = SSTableUtils.writeTableToDisk(itemIterator, folder).toFile();
-        for (int i = tables.size() - 1; i >= 0; i--) {
-            Files.delete(tables.remove(i).getFile().toPath());
+        compactionLock.lock();
+        try {
+            compact(new ArrayList<>(tables), Collections.emptySet());
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    /**
+     * Reclaims the space of the overwritten and removed separated values.
+     * The value log segments nobody points to are deleted. The live values of the segments
+     * dominated by garbage are moved to the head of the log by compacting the tables pointing to them.
+     *
+     * @throws IOException if a read or write error has occurred
+     */
+    public void compactValueLog() throws IOException {
+        compactionLock.lock();
+        try {
+            collectValueLogGarbage();
+        } finally {
+            compactionLock.unlock();
         }
-        createNewSSTable(mergedTable);
     }
 
-    private void createNewSSTable(final File file) {
+    private void scheduleCompaction() {
+        if (!compactionScheduled.compareAndSet(false, true)) {
+            return;
+        }
         try {
-            final SSTable table = new SSTable(file);
-            tables.add(table);
+            compactionExecutor.execute(this::compactInBackground);
+        } catch (RejectedExecutionException e) {
+            // The DAO is being closed
+            compactionScheduled.set(false);
+        }
+    }
+
+    private void compactInBackground() {
+        compactionScheduled.set(false);
+        compactionLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            while (tables.size() > COMPACTION_THRESHOLD) {
+                compact(pickCompactionCandidates(), Collections.emptySet());
+            }
+            collectValueLogGarbage();
+        } catch (IOException | UncheckedIOException e) {
+            logger.error("Background compaction failed", e);
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    /**
+     * Merges the given tables into a single one.
+     * Values removed by range tombstones are dropped right away,
+     * expired values are turned into tombstones.
+     * A tombstone is dropped once the grace period of its tables has expired
+     * and none of the remaining tables can hold an older version of the key.
+     * The compacted files are removed once the snapshots reading them are closed.
+     * The tables are merged while the changes go on, the flushed meanwhile tables hold only newer versions.
+     * The separated values stay in place, except the ones stored in the relocated segments of the value log.
+     */
+    private void compact(@NotNull final List<SSTable> compacted,
+                         @NotNull final Set<Long> relocated) throws IOException {
+        if (compacted.isEmpty()) {
+            return;
+        }
+
+        final List<SSTable> others = new ArrayList<>(tables);
+        others.removeAll(compacted);
+
+        final long createdAt = compacted.stream()
+                .mapToLong(t -> t.getMetadata().getCreatedAt())
+                .max()
+                .getAsLong();
+        final long now = clock.millis();
+        final boolean graceExpired = now - createdAt >= tombstoneGracePeriodMillis;
+
+        final List<RangeTombstone> keptRangeTombstones = new ArrayList<>();
+        for (final RangeTombstone rangeTombstone : ReadView.collectRangeTombstones(compacted)) {
+            if (!graceExpired || isShadowing(rangeTombstone, others)) {
+                keptRangeTombstones.add(rangeTombstone);
+            }
+        }
+
+        final File mergedTable;
+        try {
+            mergedTable = SSTableUtils.writeTableToDisk(
+                    compactedItems(compacted, others, now, graceExpired, relocated),
+                    keptRangeTombstones,
+                    folder,
+                    createdAt,
+                    compactionThrottle,
+                    hashIndex,
+                    filterPrefix).toFile();
+        } catch (UncheckedIOException e) {
+            // A damaged record of the compacted tables
+            throw e.getCause();
+        }
+
+        metrics.recordCompaction(
+                compacted.stream().mapToLong(t -> t.getFile().length()).sum(),
+                mergedTable.length());
+
+        valueLog.sync();
+        final SSTable merged = openTable(mergedTable, 1, 0);
+        lock.writeLock().lock();
+        try {
+            // The merged table takes the place of the oldest compacted one
+            final int position = tables.indexOf(compacted.get(0));
+            tables.removeAll(compacted);
+            tables.add(position, merged);
+            Manifest.write(folder, tables);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (writeStall != null) {
+            writeStall.tablesRemoved();
+        }
+
+        for (final SSTable compactedTable : compacted) {
+            if (!compactedTable.getMetadata().getValueLogBytes().isEmpty()) {
+                retiredTables.add(compactedTable);
+            }
+            compactedTable.markObsolete();
+            compactedTable.release();
+        }
+    }
+
+    /**
+     * Merges the compacted tables dropping the values removed by range tombstones
+     * and the tombstones which don't shadow anything anymore.
+     */
+    @NotNull
+    private Iterator<Item> compactedItems(@NotNull final List<SSTable> compacted,
+                                          @NotNull final List<SSTable> others,
+                                          final long now,
+                                          final boolean graceExpired,
+                                          @NotNull final Set<Long> relocated) {
+        final Iterator<Item> mergedIterator = Iterators.transform(
+                mergeItems(compacted, ByteBuffer.allocate(0), readahead),
+                i -> !i.isRemoved() && i.isExpired(now) ? i.toTombstone() : i);
+
+        final List<RangeTombstoneIndex> rangeTombstones = ReadView.collectRangeTombstoneIndexes(tables);
+        final Iterator<Item> liveIterator = Iterators.filter(
+                mergedIterator,
+                i -> !ReadView.isCovered(i, rangeTombstones)
+                        && (!i.isRemoved() || !graceExpired || isShadowing(i, others)));
+        if (relocated.isEmpty()) {
+            return liveIterator;
+        }
+        return Iterators.transform(liveIterator, i -> {
+            try {
+                return valueLog.relocate(i, relocated, compactionThrottle);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Empties the value log segments dominated by garbage one by one, until none is left.
+     */
+    private void collectValueLogGarbage() throws IOException {
+        while (!valueLog.isEmpty()) {
+            deleteUnreferencedSegments();
+
+            // The emptied segments are not referenced anymore, so they are deleted on the next pass
+            final Map<Long, Long> sealed = valueLog.getSealedSegments();
+            final Map<Long, Long> referenced = getValueLogBytes(tables);
+            long victim = -1;
+            double victimGarbage = VALUE_LOG_GARBAGE_RATIO;
+            for (final Map.Entry<Long, Long> segment : sealed.entrySet()) {
+                final Long liveBytes = referenced.get(segment.getKey());
+                if (liveBytes == null || segment.getValue() == 0) {
+                    continue;
+                }
+                final double garbage = 1 - (double) liveBytes / segment.getValue();
+                if (garbage >= victimGarbage) {
+                    victim = segment.getKey();
+                    victimGarbage = garbage;
+                }
+            }
+            if (victim < 0) {
+                return;
+            }
+
+            final long relocated = victim;
+            compact(
+                    tables.stream()
+                            .filter(t -> t.getMetadata().getValueLogBytes().containsKey(relocated))
+                            .collect(Collectors.toList()),
+                    Collections.singleton(relocated));
+        }
+    }
+
+    /**
+     * Deletes the value log segments neither the tables nor the snapshots point to.
+     * The flushes wait meanwhile, since a flush appends to the log before its table is registered,
+     * and the relocating compaction doesn't run, since the compaction lock is held.
+     */
+    private void deleteUnreferencedSegments() throws IOException {
+        flushLock.lock();
+        lock.writeLock().lock();
+        try {
+            final Set<Long> referenced = new HashSet<>(getValueLogBytes(tables).keySet());
+            for (final SSTable retired : retiredTables) {
+                if (!retired.acquire()) {
+                    retiredTables.remove(retired);
+                    continue;
+                }
+                try {
+                    referenced.addAll(retired.getMetadata().getValueLogBytes().keySet());
+                } finally {
+                    release(retired);
+                }
+            }
+            valueLog.deleteUnreferenced(referenced);
+        } finally {
+            lock.writeLock().unlock();
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Sums the bytes of the value log records the tables point to.
+     *
+     * @return sizes by segment number
+     */
+    @NotNull
+    private static Map<Long, Long> getValueLogBytes(@NotNull final List<SSTable> sources) {
+        final Map<Long, Long> result = new HashMap<>();
+        for (final SSTable table : sources) {
+            table.getMetadata().getValueLogBytes().forEach((segment, bytes) -> result.merge(segment, bytes, Long::sum));
+        }
+        return result;
+    }
+
+    private static boolean isShadowing(@NotNull final Item tombstone, @NotNull final List<SSTable> others) {
+        for (final SSTable table : others) {
+            if (table.contains(tombstone.getKey())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isShadowing(@NotNull final RangeTombstone rangeTombstone,
+                                       @NotNull final List<SSTable> others) {
+        for (final SSTable table : others) {
+            if (table.containsRange(rangeTombstone.getFrom(), rangeTombstone.getTo())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Picks the tables for a partial compaction, the ones dominated by tombstones first.
+     */
+    @NotNull
+    private List<SSTable> pickCompactionCandidates() {
+        final List<SSTable> candidates = new ArrayList<>(tables);
+        candidates.sort(Comparator.comparingDouble((SSTable t) -> t.getMetadata().getTombstoneRatio())
+                .reversed()
+                .thenComparingLong(t -> t.getFile().length()));
+        final List<SSTable> picked = new ArrayList<>(
+                candidates.subList(0, Math.min(COMPACTION_BATCH_SIZE, candidates.size())));
+        picked.sort(Comparator.comparingInt(tables::indexOf));
+        return picked;
+    }
+
+    /**
+     * Lists the regular files of the folder once for all the startup checks.
+     */
+    @NotNull
+    private List<Path> listFiles() throws IOException {
+        try (Stream<Path> files = Files.list(folder.toPath())) {
+            return files.filter(path -> Files.isRegularFile(path))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Removes the temporary files of the tables and of the manifest left by an interrupted write,
+     * the other files of the folder are not touched.
+     */
+    private void removeTempFiles(@NotNull final List<Path> files) throws IOException {
+        for (final Iterator<Path> iterator = files.iterator(); iterator.hasNext(); ) {
+            final Path path = iterator.next();
+            if (SSTableUtils.isTempFile(path)) {
+                logger.warn("Removing unfinished file: " + path.getFileName());
+                Files.delete(path);
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Opens the tables of a folder without a manifest, e.g. created by an older version.
+     * Every table must open, since there is no other record of the data, so a damaged one aborts the startup.
+     */
+    private void openListedTables(@NotNull final List<Path> files) throws IOException {
+        for (final Path path : files) {
+            final String fileName = path.getFileName().toString();
+            if (SSTableUtils.isTableFileName(fileName)) {
+                tables.add(openListedTable(path.toFile()));
+            } else if (SSTableUtils.hasValidFileExtension(path)) {
+                logger.warn("Ignoring file not named as a table: " + fileName);
+            }
+        }
+        tables.sort(Comparator.comparingLong(SSTable::getMaxSequence));
+        Manifest.write(folder, tables);
+    }
+
+    /**
+     * Registers the tables listed in the manifest. The tables missing from it, e.g. left by an interrupted flush
+     * or compaction, are renamed with {@link SSTableUtils#ORPHAN_FILE_EXTENSION}, so they are not read anymore,
+     * but may still be inspected or restored by hand.
+     * The listed tables are not read here, each one is mapped on its first access or by {@link #warmUp}.
+     */
+    private void openManifestTables(@NotNull final List<Manifest.Entry> entries,
+                                    @NotNull final List<Path> files) throws IOException {
+        final Set<String> existing = new HashSet<>();
+        for (final Path path : files) {
+            existing.add(path.getFileName().toString());
+        }
+
+        final Set<String> live = new HashSet<>();
+        for (final Manifest.Entry entry : entries) {
+            live.add(entry.getFileName());
+            if (existing.contains(entry.getFileName())) {
+                final File file = new File(folder, entry.getFileName());
+                tables.add(registerTable(
+                        file,
+                        entry.getLevel(),
+                        entry.getMaxSequence(),
+                        entry.getGlobalSequence(),
+                        entry.getSummary()));
+            } else {
+                logger.error("Table listed in the manifest is missing: " + entry.getFileName());
+            }
+        }
+
+        for (final String fileName : existing) {
+            if (SSTableUtils.isTableFileName(fileName) && !live.contains(fileName)) {
+                logger.warn("Table missing from the manifest is moved aside: " + fileName);
+                final Path path = new File(folder, fileName).toPath();
+                Files.move(path, path.resolveSibling(fileName + SSTableUtils.ORPHAN_FILE_EXTENSION),
+                        StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+    }
+
+    /**
+     * Opens the registered tables in the background, so the first requests don't pay for mapping them.
+     * The namespaces open their tables on the shared threads.
+     *
+     * @param parallelism number of threads
+     * @return executor opening the tables, null if there is nothing to do
+     */
+    @Nullable
+    private ExecutorService warmUp(final int parallelism) {
+        final List<SSTable> unopened = tables.stream()
+                .filter(t -> !t.isOpened())
+                .collect(Collectors.toList());
+        if (parallelism == 0 || unopened.isEmpty()) {
+            return null;
+        }
+
+        final ExecutorService executor = namespaces == null
+                ? Executors.newFixedThreadPool(
+                        Math.min(parallelism, unopened.size()),
+                        new ThreadFactoryBuilder().setNameFormat("sstable-open-%d").setDaemon(true).build())
+                : namespaces.getOpenExecutor();
+        for (final SSTable table : unopened) {
+            executor.execute(() -> {
+                // Skips the tables already replaced by compaction
+                if (!table.acquire()) {
+                    return;
+                }
+                try {
+                    table.open();
+                } catch (IOException | IllegalArgumentException e) {
+                    logger.error("Failed to open table " + table.getFile().getName(), e);
+                } finally {
+                    release(table);
+                }
+            });
+        }
+        if (namespaces == null) {
+            executor.shutdown();
+        }
+        return executor;
+    }
+
+    /**
+     * Schedules the periodic verification of the checksums of all the tables.
+     *
+     * @param executor       thread running the scrub, the one of the namespaces if the DAO is a namespace
+     * @param intervalMillis delay between the passes
+     * @param bytesPerSecond read rate limit
+     * @return the scheduled scrub, cancelled on close
+     */
+    @NotNull
+    private ScheduledFuture<?> scheduleScrub(@NotNull final ScheduledExecutorService executor,
+                                             final long intervalMillis,
+                                             final long bytesPerSecond) {
+        final RateLimiter rateLimiter = RateLimiter.create(bytesPerSecond);
+        return executor.scheduleWithFixedDelay(
+                () -> scrub(rateLimiter),
+                intervalMillis,
+                intervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private void scrub(@NotNull final RateLimiter rateLimiter) {
+        for (final SSTable table : tables) {
+            // A table replaced by compaction meanwhile stays readable until it is released
+            if (!table.acquire()) {
+                continue;
+            }
+            try {
+                table.verify(rateLimiter);
+            } catch (InterruptedIOException e) {
+                return;
+            } catch (IOException | IllegalArgumentException e) {
+                logger.error("Scrub failed for table " + table.getFile().getName(), e);
+            } finally {
+                release(table);
+            }
+        }
+    }
+
+    private void release(@NotNull final SSTable table) {
+        try {
+            table.release();
         } catch (IOException e) {
-            logger.error("Failed to create SSTable from " + file.getName() + e.getMessage());
+            logger.error("Failed to release table " + table.getFile().getName(), e);
+        }
+    }
+
+    /**
+     * Registers the table without reading it, the table is opened on its first access.
+     */
+    @NotNull
+    private SSTable registerTable(@NotNull final File file,
+                                  final int level,
+                                  final long maxSequence,
+                                  final long globalSequence,
+                                  @Nullable final TableSummary summary) {
+        return new SSTable(file, level, tableAccess, mappedSegmentBytes, maxSequence, globalSequence, summary);
+    }
+
+    /**
+     * Opens the table just written or taken over.
+     *
+     * @throws IOException if the file can't be read
+     * @throws IllegalArgumentException if the file is not a valid table
+     */
+    @NotNull
+    private SSTable openTable(@NotNull final File file, final int level, final long globalSequence) throws IOException {
+        final SSTable table = registerTable(file, level, -1, globalSequence, null);
+        try {
+            table.open();
+        } catch (IOException | IllegalArgumentException e) {
+            table.close();
+            throw e;
+        }
+        return table;
+    }
+
+    /**
+     * Opens the table of a folder without a manifest.
+     *
+     * @throws IOException if the file can't be read or is not a valid table
+     */
+    @NotNull
+    private SSTable openListedTable(@NotNull final File file) throws IOException {
+        try {
+            return openTable(file, 0, 0);
         } catch (IllegalArgumentException e) {
-            logger.error("File skipped: " + file.getName());
+            throw new IOException("Not a valid table, move it out of the folder to start without it: " + file, e);
+        }
+    }
+
+    /**
+     * Reads the live contents with the tables pinned for the time of the read.
+     */
+    private <T> T readLive(@NotNull final Function<ReadView, T> read) {
+        final List<MemTable> current = liveMemTables();
+        final List<SSTable> pinned = acquireTables();
+        try {
+            return read.apply(liveView(current, pinned));
+        } finally {
+            pinned.forEach(this::release);
+        }
+    }
+
+    /**
+     * Iterates over the live contents with the tables pinned until the iterator is exhausted.
+     */
+    @NotNull
+    private Iterator<Record> iterateLive(@NotNull final Function<ReadView, Iterator<Record>> read) {
+        final List<MemTable> current = liveMemTables();
+        final List<SSTable> pinned = acquireTables();
+        final Runnable release = () -> pinned.forEach(this::release);
+        try {
+            return new PinnedIterator<>(read.apply(liveView(current, pinned)), release);
+        } catch (RuntimeException e) {
+            release.run();
+            throw e;
+        }
+    }
+
+    @NotNull
+    private ReadView liveView(@NotNull final List<MemTable> current, @NotNull final List<SSTable> pinned) {
+        return new ReadView(current, MemTable.LATEST, pinned, verifyReads, readahead, metrics, valueLog);
+    }
+
+    /**
+     * Takes the MemTables to be read before the tables, since a flush adds the new table
+     * before it drops the flushed MemTable, and sets the flushed MemTable before it replaces the current one.
+     *
+     * @return the current MemTable and the one being flushed, if any
+     */
+    @NotNull
+    private List<MemTable> liveMemTables() {
+        final MemTable current = memTable;
+        final MemTable flushing = flushingMemTable;
+        return flushing == null ? List.of(current) : List.of(current, flushing);
+    }
+
+    /**
+     * Pins the live tables. A table released by a compaction meanwhile is out of the list already,
+     * so the list is taken again with the merged table in its place.
+     *
+     * @return the pinned tables, from the oldest to the freshest one
+     * @throws IllegalStateException if the storage is closed
+     */
+    @NotNull
+    private List<SSTable> acquireTables() {
+        while (true) {
+            final List<SSTable> current = new ArrayList<>(tables);
+            int acquired = 0;
+            while (acquired < current.size() && current.get(acquired).acquire()) {
+                acquired++;
+            }
+            if (acquired == current.size()) {
+                return current;
+            }
+            for (final SSTable table : current.subList(0, acquired)) {
+                release(table);
+            }
+            if (closed) {
+                throw new IllegalStateException("The storage is closed");
+            }
+        }
+    }
+
+    /**
+     * Puts the file into the folder under the given name, a copy is written under a temporary name first.
+     */
+    private static void adopt(@NotNull final Path source,
+                              @NotNull final Path target,
+                              final boolean link) throws IOException {
+        if (link) {
+            try {
+                Files.createLink(target, source);
+                return;
+            } catch (UnsupportedOperationException | IOException e) {
+                // Another file system or no hard links at all
+            }
+        }
+
+        final Path temp = target.resolveSibling(target.getFileName() + SSTableUtils.TEMP_FILE_EXTENSION);
+        Files.copy(source, temp, StandardCopyOption.REPLACE_EXISTING);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Applies the change to the MemTable, the change is slowed down first if compaction is behind.
+     *
+     * @param bytes  size of the keys and the value of the change
+     * @param change the change
+     */
+    private void apply(final long bytes, @NotNull final Consumer<MemTable> change) throws IOException {
+        if (writeStall != null) {
+            writeStall.await(bytes);
+        }
+        lock.readLock().lock();
+        try {
+            change.accept(memTable);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (memTable.isFlushNeeded()) {
+            flushTable();
+        } else if (namespaces != null) {
+            namespaces.flushOverBudget();
         }
     }
 
+    long getMemTableBytes() {
+        return memTable.getBytesSize();
+    }
+
+    /**
+     * Flushes the MemTable picked by the shared budget, unless another flush has met the budget meanwhile.
+     *
+     * @param overBudget whether the MemTables of the namespaces still exceed the budget
+     * @throws IOException if a write error has occurred
+     */
+    void flushForBudget(@NotNull final BooleanSupplier overBudget) throws IOException {
+        flushIf(() -> !memTable.isEmpty() && overBudget.getAsBoolean());
+    }
+
+    /**
+     * Flushes the MemTable unless it is empty, so all the changes made so far are stored in the tables.
+     *
+     * @throws IOException if a write error has occurred
+     */
+    public void flush() throws IOException {
+        flushIf(() -> !memTable.isEmpty());
+    }
+
+    /**
+     * Replaces the MemTable with an empty one under the lock and writes the full one without the lock,
+     * so the changes go on during the throttled write. A MemTable left by a failed flush is written first.
+     * The caller holds the flush lock.
+     */
+    private void flushMemTable() throws IOException {
+        if (flushingMemTable != null) {
+            writeFlushingMemTable();
+        }
+        lock.writeLock().lock();
+        try {
+            // No change is in progress, the MemTable is read only from now on
+            flushingMemTable = memTable;
+            memTable = newMemTable();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        writeFlushingMemTable();
+    }
+
+    private void writeFlushingMemTable() throws IOException {
+        final MemTable flushing = flushingMemTable;
+        final File flushed = flushing.flush(folder, clock.millis(), valueLog, flushThrottle, hashIndex, filterPrefix)
+                .toFile();
+        metrics.recordFlush(flushed.length());
+        valueLog.sync();
+        final SSTable table = openTable(flushed, 0, 0);
+        lock.writeLock().lock();
+        try {
+            tables.add(table);
+            flushingMemTable = null;
+            Manifest.write(folder, tables);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (namespaces != null) {
+            namespaces.getMemTablesBytes().add(-flushing.getBytesSize());
+        }
+    }
+
+    @NotNull
+    private MemTable newMemTable() {
+        return new MemTable(
+                bytesFlushThreshold,
+                sequence::incrementAndGet,
+                namespaces == null ? null : namespaces.getMemTablesBytes());
+    }
+
     private void flushTable() throws IOException {
-        final Path flushedFolder = memTable.flush(folder);
-        createNewSSTable(flushedFolder.toFile());
+        // Another writer may have flushed the MemTable already
+        flushIf(() -> memTable.isFlushNeeded());
+    }
+
+    /**
+     * Flushes the MemTable if it is still needed once the flush lock is taken.
+     * At the hard limit of the write stall the flush waits for compaction first,
+     * it can't wait under the locks, since compaction takes them to replace the tables and to delete the log segments.
+     */
+    private void flushIf(@NotNull final BooleanSupplier needed) throws IOException {
+        while (true) {
+            if (writeStall != null) {
+                writeStall.awaitFlush(this::scheduleCompaction);
+            }
+            flushLock.lock();
+            try {
+                // A closed storage has flushed its MemTable, it may be picked by the shared budget meanwhile
+                if (closed || !needed.getAsBoolean()) {
+                    return;
+                }
+                // Another flush may have reached the hard limit meanwhile
+                if (writeStall == null || !writeStall.isStopped()) {
+                    flushMemTable();
+                    break;
+                }
+            } finally {
+                flushLock.unlock();
+            }
+        }
         if (tables.size() > COMPACTION_THRESHOLD) {
-            compact();
+            scheduleCompaction();
         }
     }
 
+    /**
+     * Merges the tables keeping only the freshest version of each key, tombstones included.
+     */
     @NotNull
-    private Iterator<Item> createItemIterator(@NotNull final ByteBuffer from) {
+    private static Iterator<Item> mergeItems(@NotNull final List<SSTable> sources,
+                                             @NotNull final ByteBuffer from,
+                                             @Nullable final Readahead readahead) {
         final List<Iterator<Item>> iterators = new ArrayList<>();
-        iterators.add(memTable.iterator(from));
-
-        for (final SSTable table : tables) {
-            iterators.add(table.getIterator(from));
+        for (final SSTable table : sources) {
+            iterators.add(table.getIterator(from, true, readahead));
         }
 
         final Iterator<Item> mergedIterator = Iterators.mergeSorted(iterators, Item.COMPARATOR);
-        final Iterator<Item> collapsedIterator = Iters.collapseEquals(mergedIterator, Item::getKey);
-
-        return Iterators.filter(collapsedIterator, i -> !i.isRemoved());
+        return Iters.collapseEquals(mergedIterator, Item::getKey);
     }
 }
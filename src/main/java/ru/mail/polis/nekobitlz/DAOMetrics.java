@@ -0,0 +1,192 @@
+package ru.mail.polis.nekobitlz;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import java.io.Closeable;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Metrics of a DAO. The latencies are in nanoseconds, the sizes are in bytes.
+ * The operations record them into striped counters, so nothing is locked on the hot paths.
+ */
+final class DAOMetrics implements Closeable {
+
+    private static final String JMX_DOMAIN = "ru.mail.polis.nekobitlz";
+
+    private final MetricsRegistry registry = new MetricsRegistry();
+    private final Histogram getLatency = registry.histogram("get.latencyNanos");
+    private final Histogram upsertLatency = registry.histogram("upsert.latencyNanos");
+    private final Histogram removeLatency = registry.histogram("remove.latencyNanos");
+    private final Histogram iteratorLatency = registry.histogram("iterator.latencyNanos");
+    private final Histogram tablesProbed = registry.histogram("get.tablesProbed");
+    private final Histogram tablesMerged = registry.histogram("iterator.tablesMerged");
+    private final LongAdder bytesRead = registry.counter("read.bytes");
+    private final LongAdder flushes = registry.counter("flush.count");
+    private final LongAdder bytesFlushed = registry.counter("flush.bytes");
+    private final LongAdder compactions = registry.counter("compaction.count");
+    private final LongAdder bytesCompactedIn = registry.counter("compaction.bytesRead");
+    private final LongAdder bytesCompactedOut = registry.counter("compaction.bytesWritten");
+    private final LongAdder writeSlowdownNanos = registry.counter("write.slowdownNanos");
+    private final LongAdder writeStopNanos = registry.counter("write.stopNanos");
+    private final LongAdder valueLogBytesWritten = registry.counter("valueLog.bytesWritten");
+    private final LongAdder valueLogBytesReclaimed = registry.counter("valueLog.bytesReclaimed");
+    private final Logger logger = LoggerFactory.getLogger(DAOMetrics.class);
+    @Nullable
+    private ObjectName objectName;
+    @Nullable
+    private ScheduledExecutorService reportExecutor;
+    @Nullable
+    private MetricsReporter reporter;
+
+    /**
+     * Creates the metrics of a DAO.
+     *
+     * @param tableCount       source of the number of tables
+     * @param openedTableCount source of the number of tables read from the disk so far
+     * @param memTableBytes    source of the size of the MemTable
+     */
+    DAOMetrics(@NotNull final LongSupplier tableCount,
+               @NotNull final LongSupplier openedTableCount,
+               @NotNull final LongSupplier memTableBytes) {
+        registry.gauge("tables.count", tableCount);
+        registry.gauge("tables.opened", openedTableCount);
+        registry.gauge("memtable.bytes", memTableBytes);
+    }
+
+    @NotNull
+    MetricsRegistry getRegistry() {
+        return registry;
+    }
+
+    void recordGet(final long startNanos) {
+        getLatency.record(System.nanoTime() - startNanos);
+    }
+
+    void recordUpsert(final long startNanos) {
+        upsertLatency.record(System.nanoTime() - startNanos);
+    }
+
+    void recordRemove(final long startNanos) {
+        removeLatency.record(System.nanoTime() - startNanos);
+    }
+
+    void recordIterator(final long startNanos) {
+        iteratorLatency.record(System.nanoTime() - startNanos);
+    }
+
+    void recordTablesProbed(final int count) {
+        tablesProbed.record(count);
+    }
+
+    void recordTablesMerged(final int count) {
+        tablesMerged.record(count);
+    }
+
+    /**
+     * Accounts an item read from a table.
+     *
+     * @return the same item
+     */
+    @NotNull
+    Item recordRead(@NotNull final Item item) {
+        bytesRead.add(item.getBytesSize());
+        return item;
+    }
+
+    void recordFlush(final long bytes) {
+        flushes.increment();
+        bytesFlushed.add(bytes);
+    }
+
+    void recordCompaction(final long bytesIn, final long bytesOut) {
+        compactions.increment();
+        bytesCompactedIn.add(bytesIn);
+        bytesCompactedOut.add(bytesOut);
+    }
+
+    void recordWriteSlowdown(final long nanos) {
+        writeSlowdownNanos.add(nanos);
+    }
+
+    void recordWriteStop(final long nanos) {
+        writeStopNanos.add(nanos);
+    }
+
+    void recordValueLogWrite(final long bytes) {
+        valueLogBytesWritten.add(bytes);
+    }
+
+    void recordValueLogReclaimed(final long bytes) {
+        valueLogBytesReclaimed.add(bytes);
+    }
+
+    /**
+     * Exposes the metrics as attributes of an MBean named after the folder of the DAO.
+     * A failure is logged, the DAO works without the MBean then.
+     */
+    void registerMBean(@NotNull final File folder) {
+        try {
+            final ObjectName name = new ObjectName(
+                    JMX_DOMAIN + ":type=DAO,folder=" + ObjectName.quote(folder.getAbsolutePath()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(registry), name);
+            objectName = name;
+        } catch (JMException e) {
+            logger.warn("Failed to register metrics MBean for " + folder, e);
+        }
+    }
+
+    /**
+     * Sends the metrics to the reporter periodically and once more on close.
+     *
+     * @param reporter       receiver of the metrics
+     * @param intervalMillis delay between the reports
+     */
+    void scheduleReports(@NotNull final MetricsReporter reporter, final long intervalMillis) {
+        this.reporter = reporter;
+        reportExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("dao-metrics-%d").setDaemon(true).build());
+        reportExecutor.scheduleWithFixedDelay(this::report, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void report() {
+        if (reporter == null) {
+            return;
+        }
+        try {
+            reporter.report(registry.values());
+        } catch (RuntimeException e) {
+            // The next reports should not be cancelled
+            logger.error("Metrics reporter failed", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (reportExecutor != null) {
+            reportExecutor.shutdownNow();
+            report();
+        }
+        if (objectName != null) {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            try {
+                server.unregisterMBean(objectName);
+            } catch (JMException e) {
+                logger.warn("Failed to unregister metrics MBean " + objectName, e);
+            }
+        }
+    }
+}
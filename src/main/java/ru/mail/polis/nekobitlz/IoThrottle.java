@@ -0,0 +1,82 @@
+package ru.mail.polis.nekobitlz;
+
+import com.google.common.util.concurrent.RateLimiter;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.function.IntSupplier;
+
+/**
+ * Token bucket limiting the bytes written by the background work.
+ * The rate doubles with each unit of backlog reported by the pressure source,
+ * so the background work catches up once it falls behind the writes.
+ */
+final class IoThrottle {
+
+    // The writes are accounted in chunks, so the limiter is not consulted for every record
+    private static final int CHUNK_BYTES = 64 * 1024;
+    private static final int MAX_BOOST_SHIFT = 16;
+    private static final int SLICES_PER_SECOND = 10;
+
+    private final IntSupplier pressure;
+    private final RateLimiter rateLimiter = RateLimiter.create(Double.MAX_VALUE);
+    private volatile long bytesPerSecond;
+    private long pending;
+
+    /**
+     * Creates a throttle.
+     *
+     * @param bytesPerSecond base rate limit, zero for no limit
+     * @param pressure       source of the backlog, zero if the background work keeps up
+     */
+    IoThrottle(final long bytesPerSecond, @NotNull final IntSupplier pressure) {
+        this.pressure = pressure;
+        setRate(bytesPerSecond);
+    }
+
+    /**
+     * Changes the base rate limit, the writes in progress adopt it right away.
+     *
+     * @param bytesPerSecond base rate limit, zero for no limit
+     */
+    void setRate(final long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("Negative rate: " + bytesPerSecond);
+        }
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Waits until the bytes may be written.
+     *
+     * @param bytes number of bytes about to be written
+     */
+    synchronized void acquire(final long bytes) {
+        if (bytesPerSecond == 0) {
+            pending = 0;
+            return;
+        }
+
+        pending += bytes;
+        if (pending < CHUNK_BYTES) {
+            return;
+        }
+
+        while (pending > 0) {
+            final long rate = bytesPerSecond;
+            if (rate == 0) {
+                pending = 0;
+                return;
+            }
+            final int shift = Math.min(Math.max(pressure.getAsInt(), 0), MAX_BOOST_SHIFT);
+            final double boostedRate = (double) rate * (1L << shift);
+            if (rateLimiter.getRate() != boostedRate) {
+                rateLimiter.setRate(boostedRate);
+            }
+            // A tenth of a second at a time, so a changed rate is adopted before the next one
+            final long slice = Math.max((long) (boostedRate / SLICES_PER_SECOND), 1);
+            final int permits = (int) Math.min(Math.min(pending, slice), Integer.MAX_VALUE);
+            rateLimiter.acquire(permits);
+            pending -= permits;
+        }
+    }
+}
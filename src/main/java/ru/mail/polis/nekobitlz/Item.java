@@ -5,29 +5,47 @@ import java.util.Comparator;
 
 public class Item {
 
-    public static final Comparator<Item> COMPARATOR = Comparator
-            .comparing(Item::getKey)
-            .thenComparing(Comparator
-                    .comparing(Item::getTimeStampAbs)
-                    .reversed()
-            );
-    private static long additionalTime;
+    // The keys in ascending order, the newer versions of a key first
+    public static final Comparator<Item> COMPARATOR = (left, right) -> {
+        final int compare = left.key.compareTo(right.key);
+        return compare == 0 ? Long.compare(right.getTimeStampAbs(), left.getTimeStampAbs()) : compare;
+    };
+    public static final long NEVER_EXPIRES = Long.MAX_VALUE;
 
     private final ByteBuffer key;
     private final ByteBuffer value;
     private final long timeStamp;
+    private final long expiresAt;
+    // The value is a pointer to the value log
+    private final boolean separated;
 
     /**
      * Data class to store the item.
      */
     public Item(final ByteBuffer key, final ByteBuffer value, final long timeStamp) {
+        this(key, value, timeStamp, NEVER_EXPIRES);
+    }
+
+    /**
+     * Data class to store the item which disappears at the given time.
+     */
+    public Item(final ByteBuffer key, final ByteBuffer value, final long timeStamp, final long expiresAt) {
+        this(key, value, timeStamp, expiresAt, false);
+    }
+
+    /**
+     * Data class to store the item, which may keep its value in the value log.
+     */
+    Item(final ByteBuffer key,
+         final ByteBuffer value,
+         final long timeStamp,
+         final long expiresAt,
+         final boolean separated) {
         this.key = key;
         this.value = value;
         this.timeStamp = timeStamp;
-    }
-
-    public static long getCurrentNanoTime() {
-        return System.nanoTime() + additionalTime++;
+        this.expiresAt = expiresAt;
+        this.separated = separated;
     }
 
     public ByteBuffer getKey() {
@@ -42,12 +60,47 @@ public class Item {
         return timeStamp;
     }
 
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * Checks if the value of the item is a pointer to the value log rather than the value itself.
+     */
+    public boolean isSeparated() {
+        return separated;
+    }
+
+    /**
+     * Replaces the value of the item keeping its age and expiration.
+     *
+     * @param value the new value, a pointer to the value log if separated
+     * @param separated whether the value is a pointer to the value log
+     * @return item with the given value
+     */
+    Item withValue(final ByteBuffer value, final boolean separated) {
+        return new Item(key, value, timeStamp, expiresAt, separated);
+    }
+
     public boolean isRemoved() {
         return getTimeStamp() < 0;
     }
 
+    public boolean isExpired(final long now) {
+        return expiresAt <= now;
+    }
+
+    /**
+     * Turns an expired item into a tombstone of the same age.
+     *
+     * @return tombstone for the key
+     */
+    public Item toTombstone() {
+        return new Item(key, ByteBuffer.allocate(0), -getTimeStampAbs());
+    }
+
     public long getBytesSize() {
-        final int valueLength = isRemoved() ? 0 : Long.BYTES;
+        final int valueLength = isRemoved() ? 0 : Long.BYTES * 2;
         return (long) Integer.BYTES + key.remaining() + Long.BYTES + value.remaining() + valueLength;
     }
 
@@ -0,0 +1,110 @@
+package ru.mail.polis.nekobitlz;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The part of a key the prefix filters of the tables are built over:
+ * either a fixed number of the first bytes or the bytes up to a delimiter, e.g. "tenant/" of "tenant/entity/id".
+ * The keys without such a prefix are left out of the filters.
+ */
+public final class KeyPrefix {
+
+    static final int BYTES = Integer.BYTES * 2 + Byte.BYTES;
+
+    // The number of the first bytes, zero for the prefix up to the delimiter
+    private final int length;
+    private final byte delimiter;
+    // The prefix ends with this occurrence of the delimiter, zero for the fixed length prefix
+    private final int count;
+
+    private KeyPrefix(final int length, final byte delimiter, final int count) {
+        this.length = length;
+        this.delimiter = delimiter;
+        this.count = count;
+    }
+
+    /**
+     * Takes the given number of the first bytes of the keys.
+     *
+     * @param length the number of the bytes
+     * @return the prefix of the keys not shorter than the length
+     */
+    @NotNull
+    public static KeyPrefix fixedLength(final int length) {
+        if (length <= 0) {
+            throw new IllegalArgumentException("Non-positive prefix length: " + length);
+        }
+        return new KeyPrefix(length, (byte) 0, 0);
+    }
+
+    /**
+     * Takes the bytes of the keys up to the given occurrence of the delimiter, the delimiter included.
+     *
+     * @param delimiter the byte separating the parts of the keys
+     * @param count     the number of the parts in the prefix
+     * @return the prefix of the keys having enough delimiters
+     */
+    @NotNull
+    public static KeyPrefix delimited(final byte delimiter, final int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Non-positive number of delimiters: " + count);
+        }
+        return new KeyPrefix(0, delimiter, count);
+    }
+
+    /**
+     * Reads the prefix as written by {@link #write(KeyPrefix, ByteBuffer)}.
+     *
+     * @return the prefix, null if none has been written
+     * @throws IllegalArgumentException if the prefix is damaged
+     */
+    @Nullable
+    static KeyPrefix read(@NotNull final ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        final byte delimiter = buffer.get();
+        final int count = buffer.getInt();
+        if (length == 0 && count == 0) {
+            return null;
+        }
+        if (length < 0 || count < 0 || (length > 0 && count > 0)) {
+            throw new IllegalArgumentException();
+        }
+        return new KeyPrefix(length, delimiter, count);
+    }
+
+    /**
+     * Writes the prefix in {@link #BYTES} bytes, zeros for no prefix.
+     */
+    static void write(@Nullable final KeyPrefix prefix, @NotNull final ByteBuffer buffer) {
+        if (prefix == null) {
+            buffer.putInt(0).put((byte) 0).putInt(0);
+        } else {
+            buffer.putInt(prefix.length).put(prefix.delimiter).putInt(prefix.count);
+        }
+    }
+
+    /**
+     * Cuts the prefix out of the key.
+     * All the keys starting with a key having the prefix share the same prefix.
+     *
+     * @param key the key or the first bytes of the keys
+     * @return the first bytes of the key, null if the key is too short to have the prefix
+     */
+    @Nullable
+    ByteBuffer extract(@NotNull final ByteBuffer key) {
+        if (count == 0) {
+            return key.remaining() < length ? null : key.duplicate().limit(key.position() + length).slice();
+        }
+
+        int found = 0;
+        for (int i = key.position(); i < key.limit(); i++) {
+            if (key.get(i) == delimiter && ++found == count) {
+                return key.duplicate().limit(i + 1).slice();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,238 @@
+package ru.mail.polis.nekobitlz;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * List of the live SSTables from the oldest to the freshest one.
+ * Each line holds the level, the file name and the highest sequence number of a table,
+ * so the tables may be registered without reading them.
+ * An ingested table has one more field, the sequence number assigned to all its records.
+ * The second version adds the {@link TableSummary} of the tables, so the reads skip them unopened:
+ * the record count, the size of the range tombstones and the Base64 keys bounding the table, "-" for a long key.
+ * The file is replaced atomically on every change of the table set.
+ * The folder is synced before and after the replacement, so the listed tables outlive a crash as the list does.
+ */
+public final class Manifest {
+
+    public static final String FILE_NAME = "MANIFEST";
+    private static final String HEADER = "nekobitlz-manifest 2";
+    private static final String HEADER_V1 = "nekobitlz-manifest 1";
+    private static final String TEMP_FILE_NAME = FILE_NAME + SSTableUtils.TEMP_FILE_EXTENSION;
+    private static final boolean WINDOWS = System.getProperty("os.name", "").startsWith("Windows");
+
+    private Manifest() {
+    }
+
+    /**
+     * Reads the manifest of the folder.
+     *
+     * @param folder files directory
+     * @return live tables in order, null if there is no manifest yet
+     * @throws IOException if the manifest can't be read or is malformed
+     */
+    @Nullable
+    public static List<Entry> read(@NotNull final File folder) throws IOException {
+        final Path path = folder.toPath().resolve(FILE_NAME);
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+
+        final List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+        if (lines.isEmpty() || !(HEADER.equals(lines.get(0)) || HEADER_V1.equals(lines.get(0)))) {
+            throw new IOException("Malformed manifest header in " + path);
+        }
+
+        final List<Entry> result = new ArrayList<>(lines.size() - 1);
+        for (final String line : lines.subList(1, lines.size())) {
+            result.add(Entry.parse(line));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Replaces the manifest of the folder. The listed tables must be synced to the disk already.
+     *
+     * @param folder files directory
+     * @param tables live tables from the oldest to the freshest one
+     * @throws IOException if a write error has occurred
+     */
+    public static void write(@NotNull final File folder, @NotNull final List<SSTable> tables) throws IOException {
+        final StringBuilder content = new StringBuilder(HEADER).append('\n');
+        for (final SSTable table : tables) {
+            content.append(new Entry(table.getFile().getName(),
+                    table.getLevel(),
+                    table.getMaxSequence(),
+                    table.getGlobalSequence(),
+                    table.getSummary())).append('\n');
+        }
+
+        final Path folderPath = folder.toPath();
+        // The renames giving the tables their names are made durable before the list of the names
+        syncDirectory(folderPath);
+        final Path path = folderPath.resolve(TEMP_FILE_NAME);
+        try (FileChannel fileChannel = FileChannel.open(path, WRITE, CREATE, TRUNCATE_EXISTING)) {
+            fileChannel.write(ByteBuffer.wrap(content.toString().getBytes(StandardCharsets.UTF_8)));
+            fileChannel.force(true);
+        }
+        Files.move(path, folderPath.resolve(FILE_NAME), StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(folderPath);
+    }
+
+    /**
+     * Flushes the entries of the directory to the disk. Windows doesn't open directories as files,
+     * the renames are durable there once they complete.
+     */
+    private static void syncDirectory(@NotNull final Path folder) throws IOException {
+        if (WINDOWS) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(folder, READ)) {
+            channel.force(true);
+        }
+    }
+
+    public static final class Entry {
+
+        private static final long UNKNOWN_SEQUENCE = -1;
+        private static final String UNKNOWN_KEY = "-";
+        private static final int SUMMARY_FIELDS = 8;
+
+        private final String fileName;
+        private final int level;
+        private final long maxSequence;
+        private final long globalSequence;
+        @Nullable
+        private final TableSummary summary;
+
+        Entry(@NotNull final String fileName,
+              final int level,
+              final long maxSequence,
+              final long globalSequence,
+              @Nullable final TableSummary summary) {
+            this.fileName = fileName;
+            this.level = level;
+            this.maxSequence = maxSequence;
+            this.globalSequence = globalSequence;
+            this.summary = summary;
+        }
+
+        /**
+         * Parses "level fileName [maxSequence [globalSequence [recordCount rangeTombstonesSize minKey maxKey]]]",
+         * the sequence is missing in manifests of older versions and the summary in the ones of the first version
+         * or for the tables not opened since.
+         */
+        @NotNull
+        private static Entry parse(@NotNull final String line) throws IOException {
+            final String[] fields = line.split(" ", -1);
+            try {
+                if (fields.length < 2
+                        || (fields.length > 4 && fields.length != SUMMARY_FIELDS)
+                        || !SSTableUtils.isTableFileName(fields[1])) {
+                    throw new IOException("Malformed manifest entry: " + line);
+                }
+                final long maxSequence = fields.length >= 3 ? Long.parseLong(fields[2]) : UNKNOWN_SEQUENCE;
+                final long globalSequence = fields.length >= 4 ? Long.parseLong(fields[3]) : 0;
+                if ((fields.length >= 3 && maxSequence < 0) || globalSequence < 0) {
+                    throw new IOException("Malformed manifest entry: " + line);
+                }
+                final TableSummary summary = fields.length == SUMMARY_FIELDS ? parseSummary(fields, line) : null;
+                return new Entry(fields[1], Integer.parseInt(fields[0]), maxSequence, globalSequence, summary);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed manifest entry: " + line, e);
+            }
+        }
+
+        @NotNull
+        private static TableSummary parseSummary(@NotNull final String[] fields,
+                                                 @NotNull final String line) throws IOException {
+            final long recordCount = Long.parseLong(fields[4]);
+            final long rangeTombstonesSize = Long.parseLong(fields[5]);
+            if (recordCount < 0 || rangeTombstonesSize < 0) {
+                throw new IOException("Malformed manifest entry: " + line);
+            }
+            try {
+                return new TableSummary(recordCount, rangeTombstonesSize, decodeKey(fields[6]), decodeKey(fields[7]));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Malformed manifest entry: " + line, e);
+            }
+        }
+
+        @Nullable
+        private static ByteBuffer decodeKey(@NotNull final String field) {
+            return UNKNOWN_KEY.equals(field) ? null : ByteBuffer.wrap(Base64.getDecoder().decode(field));
+        }
+
+        @NotNull
+        private static String encodeKey(@Nullable final ByteBuffer key) {
+            if (key == null) {
+                return UNKNOWN_KEY;
+            }
+            final byte[] bytes = new byte[key.remaining()];
+            key.duplicate().get(bytes);
+            return Base64.getEncoder().encodeToString(bytes);
+        }
+
+        @NotNull
+        public String getFileName() {
+            return fileName;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        /**
+         * Returns the highest sequence number of the table, negative if the manifest doesn't have it.
+         */
+        public long getMaxSequence() {
+            return maxSequence;
+        }
+
+        /**
+         * Returns the sequence number of all the records of an ingested table, zero for a regular table.
+         */
+        public long getGlobalSequence() {
+            return globalSequence;
+        }
+
+        /**
+         * Returns the summary of the table, null if the manifest doesn't have it.
+         */
+        @Nullable
+        TableSummary getSummary() {
+            return summary;
+        }
+
+        @Override
+        public String toString() {
+            final String result = level + " " + fileName + " " + maxSequence;
+            if (summary == null) {
+                return globalSequence == 0 ? result : result + " " + globalSequence;
+            }
+            return result + " " + globalSequence
+                    + " " + summary.getRecordCount()
+                    + " " + summary.getRangeTombstonesSize()
+                    + " " + encodeKey(summary.getMinKey())
+                    + " " + encodeKey(summary.getMaxKey());
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package ru.mail.polis.nekobitlz;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Records mapped into memory by segments, each segment holds whole records.
+ * Scans prefetch by touching the pages ahead of them in the background,
+ * so the page faults are taken off the scanning thread.
+ */
+final class MappedRecordSource implements RecordSource {
+
+    private static final int PAGE_BYTES = 4096;
+
+    private final long[] starts;
+    private final ByteBuffer[] segments;
+    // Keeps the reads of the touched pages from being optimized away
+    @SuppressWarnings("unused")
+    private volatile int touched;
+
+    /**
+     * Creates a source over the mapped segments.
+     *
+     * @param starts   file positions of the segments in ascending order
+     * @param segments mapped segments
+     */
+    MappedRecordSource(@NotNull final List<Long> starts, @NotNull final List<ByteBuffer> segments) {
+        this.starts = starts.stream().mapToLong(Long::longValue).toArray();
+        this.segments = segments.stream().map(ByteBuffer::asReadOnlyBuffer).toArray(ByteBuffer[]::new);
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer read(final long start, final long end) {
+        final int segment = getSegment(start);
+        final long segmentStart = starts[segment];
+        return segments[segment].duplicate()
+                .position((int) (start - segmentStart))
+                .limit((int) (end - segmentStart))
+                .slice()
+                .asReadOnlyBuffer();
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer peek(final long start, final long end) {
+        return read(start, end);
+    }
+
+    @NotNull
+    @Override
+    public Scan scan(@NotNull final Readahead readahead, final long limit) {
+        final Readahead.Window window = readahead.window();
+        return new Scan() {
+            private long prefetched;
+            private int lastWindowBytes;
+
+            @NotNull
+            @Override
+            public ByteBuffer read(final long start, final long end) {
+                final ByteBuffer result = MappedRecordSource.this.read(start, end);
+                // Keep at least half a window prefetched ahead of the scan
+                if (window.read(end - start) && prefetched - end < lastWindowBytes / 2 && prefetched < limit) {
+                    final long from = Math.max(prefetched, end);
+                    lastWindowBytes = window.next();
+                    prefetched = Math.min(from + lastWindowBytes, limit);
+                    final long to = prefetched;
+                    try {
+                        readahead.getExecutor().execute(() -> touch(from, to));
+                    } catch (RejectedExecutionException e) {
+                        // The storage is being closed, prefetching is just a hint
+                    }
+                }
+                return result;
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        // The mappings are released by the garbage collector
+    }
+
+    /**
+     * Reads a byte of every page in the range, so the pages are loaded into memory.
+     */
+    private void touch(final long from, final long to) {
+        int sum = 0;
+        for (long position = from; position < to; position += PAGE_BYTES) {
+            final int segment = getSegment(position);
+            final long offset = position - starts[segment];
+            if (offset < segments[segment].limit()) {
+                sum += segments[segment].get((int) offset);
+            }
+        }
+        touched = sum;
+    }
+
+    private int getSegment(final long position) {
+        int left = 0;
+        int right = starts.length - 1;
+        while (left < right) {
+            final int mid = (left + right + 1) >>> 1;
+            if (starts[mid] <= position) {
+                left = mid;
+            } else {
+                right = mid - 1;
+            }
+        }
+        return left;
+    }
+}
@@ -1,25 +1,78 @@
 package ru.mail.polis.nekobitlz;
 
+import com.google.common.collect.Iterators;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.file.Path;
+import java.util.Collection;
 import java.util.Iterator;
-import java.util.SortedMap;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Queue;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongFunction;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
 
-import static ru.mail.polis.nekobitlz.Item.getCurrentNanoTime;
-
+/**
+ * Changes not flushed yet. The writers may run concurrently with each other and with the readers,
+ * a flushed table is not cleared but replaced, so the iterators over it stay valid.
+ *
+ * <p>A snapshot pins the sequence number it was taken at. While a sequence number is pinned,
+ * an overwritten item is kept behind the new one, so the snapshot still finds the version it has to see.
+ * The versions no pinned sequence number can see are dropped by the next write of the key.
+ */
 public final class MemTable {
 
-    private final SortedMap<ByteBuffer, Item> data = new TreeMap<>();
+    // Sequence number seeing the latest versions of the items
+    static final long LATEST = Long.MAX_VALUE;
+    private static final long NOT_PINNED = Long.MAX_VALUE;
+
+    private final NavigableMap<ByteBuffer, Version> data = new ConcurrentSkipListMap<>();
+    private final Queue<RangeTombstone> rangeTombstones = new ConcurrentLinkedQueue<>();
+    private final RangeTombstoneIndex rangeTombstoneIndex = new RangeTombstoneIndex();
     private final long bytesFlushThreshold;
-    private long bytesSize;
+    private final LongSupplier sequence;
+    private final AtomicLong bytesSize = new AtomicLong();
+    // Total size of the MemTables sharing a memory budget, null for a MemTable on its own
+    @Nullable
+    private final LongAdder budgetBytes;
+    // Numbers of the snapshots by the pinned sequence numbers
+    private final NavigableMap<Long, Integer> pinned = new TreeMap<>();
+    private volatile long oldestPinned = NOT_PINNED;
+
+    /**
+     * Creates a table to store the changes in memory.
+     *
+     * @param bytesFlushThreshold MemTable size threshold
+     * @param sequence            source of sequence numbers for the changes
+     */
+    public MemTable(final long bytesFlushThreshold, @NotNull final LongSupplier sequence) {
+        this(bytesFlushThreshold, sequence, null);
+    }
 
-    public MemTable(final long bytesFlushThreshold) {
+    /**
+     * Creates a table to store the changes in memory, its size is added to the total of the shared memory budget.
+     *
+     * @param bytesFlushThreshold MemTable size threshold
+     * @param sequence            source of sequence numbers for the changes
+     * @param budgetBytes         total size of the MemTables sharing the budget, null for no shared budget
+     */
+    MemTable(final long bytesFlushThreshold,
+             @NotNull final LongSupplier sequence,
+             @Nullable final LongAdder budgetBytes) {
         this.bytesFlushThreshold = bytesFlushThreshold;
+        this.sequence = sequence;
+        this.budgetBytes = budgetBytes;
     }
 
     /**
@@ -30,9 +83,72 @@ public final class MemTable {
      */
     @NotNull
     public Iterator<Item> iterator(@NotNull final ByteBuffer from) {
-        return data.tailMap(from)
-                .values()
-                .iterator();
+        return Iterators.transform(
+                data.tailMap(from).values().iterator(),
+                v -> v.item);
+    }
+
+    /**
+     * Returns an iterator over the versions of the elements seen by the sequence number.
+     *
+     * @param from        the key with which the iteration begins
+     * @param maxSequence the highest sequence number seen, pinned by {@link #pin(long)}
+     * @return iterator skipping the keys without such versions
+     */
+    @NotNull
+    Iterator<Item> iterator(@NotNull final ByteBuffer from, final long maxSequence) {
+        if (maxSequence == LATEST) {
+            return iterator(from);
+        }
+        return Iterators.filter(
+                Iterators.transform(data.tailMap(from).values().iterator(), v -> v.visible(maxSequence)),
+                Objects::nonNull);
+    }
+
+    /**
+     * Returns the item for the key.
+     *
+     * @param key the key to look for
+     * @return item, null if there is none
+     */
+    @Nullable
+    public Item get(@NotNull final ByteBuffer key) {
+        final Version version = data.get(key);
+        return version == null ? null : version.item;
+    }
+
+    /**
+     * Returns the version of the item for the key seen by the sequence number.
+     *
+     * @param key         the key to look for
+     * @param maxSequence the highest sequence number seen, pinned by {@link #pin(long)}
+     * @return item, null if there is none
+     */
+    @Nullable
+    Item get(@NotNull final ByteBuffer key, final long maxSequence) {
+        final Version version = data.get(key);
+        return version == null ? null : version.visible(maxSequence);
+    }
+
+    /**
+     * Keeps the versions seen by the sequence number until it is unpinned.
+     * No change may be made meanwhile, the caller holds off the writers.
+     *
+     * @param sequence sequence number of the latest change seen
+     */
+    synchronized void pin(final long sequence) {
+        pinned.merge(sequence, 1, Integer::sum);
+        oldestPinned = pinned.firstKey();
+    }
+
+    /**
+     * Releases the sequence number pinned by {@link #pin(long)}.
+     *
+     * @param sequence the pinned sequence number
+     */
+    synchronized void unpin(final long sequence) {
+        pinned.computeIfPresent(sequence, (s, count) -> count == 1 ? null : count - 1);
+        oldestPinned = pinned.isEmpty() ? NOT_PINNED : pinned.firstKey();
     }
 
     /**
@@ -42,8 +158,18 @@ public final class MemTable {
      * @param value value to be inserted
      */
     public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
-        final Item item = new Item(key.duplicate(), value.duplicate(), getCurrentNanoTime());
-        calculateBytesSize(data.put(key, item), item);
+        upsert(key, value, Item.NEVER_EXPIRES);
+    }
+
+    /**
+     * Inserts or updates an existing value in a table until the given time.
+     *
+     * @param key       the key by which to insert the value
+     * @param value     value to be inserted
+     * @param expiresAt time in milliseconds when the value disappears
+     */
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value, final long expiresAt) {
+        put(key, number -> new Item(key.duplicate(), value.duplicate(), number, expiresAt));
     }
 
     /**
@@ -52,31 +178,174 @@ public final class MemTable {
      * @param key the key by which to remove the value
      */
     public void remove(@NotNull final ByteBuffer key) {
-        final Item item = new Item(key.duplicate(), ByteBuffer.allocate(0), -getCurrentNanoTime());
-        calculateBytesSize(data.put(key, item), item);
+        put(key, number -> new Item(key.duplicate(), ByteBuffer.allocate(0), -number));
+    }
+
+    /**
+     * Removes the values for the keys from "from" (inclusive) until "to" (exclusive).
+     *
+     * @param from the first key of the range
+     * @param to   the key after the range
+     */
+    public void removeRange(@NotNull final ByteBuffer from, @NotNull final ByteBuffer to) {
+        final RangeTombstone rangeTombstone = new RangeTombstone(
+                from.duplicate(),
+                to.duplicate(),
+                sequence.getAsLong());
+        rangeTombstoneIndex.add(rangeTombstone);
+        rangeTombstones.add(rangeTombstone);
+        addBytes(rangeTombstone.getBytesSize());
+    }
+
+    @NotNull
+    public Collection<RangeTombstone> getRangeTombstones() {
+        return rangeTombstones;
+    }
+
+    @NotNull
+    RangeTombstoneIndex getRangeTombstoneIndex() {
+        return rangeTombstoneIndex;
+    }
+
+    /**
+     * Returns the index of the range tombstones seen by the sequence number.
+     *
+     * @param maxSequence the highest sequence number seen, pinned by {@link #pin(long)}
+     * @return the live index if all the tombstones are seen, a copy of the seen ones otherwise
+     */
+    @NotNull
+    RangeTombstoneIndex getRangeTombstoneIndex(final long maxSequence) {
+        if (maxSequence == LATEST) {
+            return rangeTombstoneIndex;
+        }
+        return RangeTombstoneIndex.of(rangeTombstones.stream()
+                .filter(t -> t.getTimeStamp() <= maxSequence)
+                .collect(Collectors.toList()));
     }
 
     /**
-     * Moves the current MemTable to a file.
+     * Writes the MemTable to a file, the table itself is left as is.
      *
-     * @param folder destination directory
+     * @param folder       destination directory
+     * @param createdAt    creation time of the table in milliseconds
+     * @param valueLog     log receiving the large values
+     * @param throttle     write rate limit, null for no limit
+     * @param hashIndex    whether to add the hash index of the keys for the point lookups
+     * @param filterPrefix the part of the keys to build the prefix filter over, null for no prefix filter
      * @return the path of the new SSTable
      * @throws IOException if a write error has occurred
      */
     @NotNull
-    public Path flush(final File folder) throws IOException {
-        final Path path = SSTableUtils.writeTableToDisk(data.values().iterator(), folder);
-        data.clear();
-        bytesSize = 0;
+    Path flush(@NotNull final File folder,
+               final long createdAt,
+               @NotNull final ValueLog valueLog,
+               @Nullable final IoThrottle throttle,
+               final boolean hashIndex,
+               @Nullable final KeyPrefix filterPrefix) throws IOException {
+        final Iterator<Item> items = Iterators.transform(data.values().iterator(), v -> {
+            try {
+                return valueLog.separate(v.item, throttle);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        try {
+            return SSTableUtils.writeTableToDisk(
+                    items,
+                    rangeTombstones,
+                    folder,
+                    createdAt,
+                    throttle,
+                    hashIndex,
+                    filterPrefix);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
 
-        return path;
+    public boolean isEmpty() {
+        return data.isEmpty() && rangeTombstones.isEmpty();
+    }
+
+    public long getBytesSize() {
+        return bytesSize.get();
     }
 
     public boolean isFlushNeeded() {
-        return bytesSize > bytesFlushThreshold;
+        return bytesSize.get() > bytesFlushThreshold;
+    }
+
+    /**
+     * Puts the item created for a new sequence number. The number is taken within the update of the key,
+     * which is retried if a concurrent write of the key gets in first, so the versions of a key are installed
+     * in the order of their numbers and the latest one wins both here and in the flushed table.
+     *
+     * @param item creates the item for its sequence number
+     */
+    private void put(@NotNull final ByteBuffer key, @NotNull final LongFunction<Item> item) {
+        // The item replaced by the update finally installed
+        final Item[] replaced = new Item[1];
+        final Version installed = data.compute(key, (k, previous) -> {
+            final Item created = item.apply(sequence.getAsLong());
+            replaced[0] = previous == null ? null : previous.item;
+            final long oldest = oldestPinned;
+            if (previous == null || oldest == NOT_PINNED) {
+                return new Version(created, null);
+            }
+            previous.trim(oldest);
+            return new Version(created, previous);
+        });
+        calculateBytesSize(replaced[0], installed.item);
     }
 
     private void calculateBytesSize(final Item previousItem, final Item item) {
-        bytesSize += previousItem == null ? item.getBytesSize() : item.getBytesSize() - previousItem.getBytesSize();
+        addBytes(previousItem == null ? item.getBytesSize() : item.getBytesSize() - previousItem.getBytesSize());
+    }
+
+    private void addBytes(final long bytes) {
+        bytesSize.addAndGet(bytes);
+        if (budgetBytes != null) {
+            budgetBytes.add(bytes);
+        }
+    }
+
+    /**
+     * An item with the versions it has overwritten, from the freshest to the oldest one.
+     * Only the latest versions are counted in the size of the table.
+     */
+    private static final class Version {
+
+        private final Item item;
+        @Nullable
+        private volatile Version previous;
+
+        Version(@NotNull final Item item, @Nullable final Version previous) {
+            this.item = item;
+            this.previous = previous;
+        }
+
+        @Nullable
+        Item visible(final long maxSequence) {
+            for (Version version = this; version != null; version = version.previous) {
+                if (version.item.getTimeStampAbs() <= maxSequence) {
+                    return version.item;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Drops the versions older than the one seen by the oldest pinned sequence number.
+         * The pinned numbers only grow, so the dropped versions are seen by nobody.
+         */
+        void trim(final long oldest) {
+            Version version = this;
+            while (version != null && version.item.getTimeStampAbs() > oldest) {
+                version = version.previous;
+            }
+            if (version != null) {
+                version.previous = null;
+            }
+        }
     }
 }
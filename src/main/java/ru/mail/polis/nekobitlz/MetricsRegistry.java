@@ -0,0 +1,69 @@
+package ru.mail.polis.nekobitlz;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Named counters, gauges and histograms.
+ * The metrics are looked up by name once, the hot paths keep the references.
+ */
+public final class MetricsRegistry {
+
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the counter with the name, creating it if needed.
+     */
+    @NotNull
+    public LongAdder counter(@NotNull final String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    /**
+     * Returns the histogram with the name, creating it if needed.
+     */
+    @NotNull
+    public Histogram histogram(@NotNull final String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    /**
+     * Registers a value computed on each read, e.g. the size of a collection.
+     *
+     * @param name  name of the gauge
+     * @param value source of the current value
+     */
+    public void gauge(@NotNull final String name, @NotNull final LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Reads all the metrics. A histogram is represented by its count, mean, max and percentiles,
+     * e.g. "get.latencyNanos.p99".
+     *
+     * @return current values by name in alphabetical order
+     */
+    @NotNull
+    public SortedMap<String, Long> values() {
+        final SortedMap<String, Long> result = new TreeMap<>();
+        counters.forEach((name, counter) -> result.put(name, counter.sum()));
+        gauges.forEach((name, gauge) -> result.put(name, gauge.getAsLong()));
+        histograms.forEach((name, histogram) -> {
+            result.put(name + ".count", histogram.getCount());
+            result.put(name + ".mean", histogram.getMean());
+            result.put(name + ".p50", histogram.getPercentile(0.5));
+            result.put(name + ".p99", histogram.getPercentile(0.99));
+            result.put(name + ".p999", histogram.getPercentile(0.999));
+            result.put(name + ".max", histogram.getMax());
+        });
+        return result;
+    }
+}
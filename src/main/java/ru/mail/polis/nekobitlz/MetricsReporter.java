@@ -0,0 +1,19 @@
+package ru.mail.polis.nekobitlz;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.SortedMap;
+
+/**
+ * Receiver of the periodic metrics reports, e.g. a log or a monitoring system.
+ */
+@FunctionalInterface
+public interface MetricsReporter {
+
+    /**
+     * Handles the current values, it is called from a background thread.
+     *
+     * @param values metric values by name, see {@link MetricsRegistry#values()}
+     */
+    void report(@NotNull SortedMap<String, Long> values);
+}
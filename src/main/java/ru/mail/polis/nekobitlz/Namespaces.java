@@ -0,0 +1,229 @@
+package ru.mail.polis.nekobitlz;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Named storages in the subfolders of one folder. Each namespace has its own MemTable and tables,
+ * while the MemTables share the memory budget and the namespaces share the background threads:
+ * the compaction thread, the threads opening the tables and the scrub thread.
+ * Once all the MemTables together exceed the budget, the largest one is flushed, so a namespace
+ * written rarely keeps its changes in memory instead of flushing tiny tables.
+ */
+public final class Namespaces implements Closeable {
+
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-]+");
+
+    private final File root;
+    private final DAOConfig config;
+    private final long memoryBudget;
+    private final ExecutorService compactionExecutor;
+    @Nullable
+    private final ExecutorService openExecutor;
+    @Nullable
+    private final ScheduledExecutorService scrubExecutor;
+    private final Map<String, DAOImpl> opened = new ConcurrentHashMap<>();
+    // Added to by the writes of every MemTable, taken from by the flushes, so a write doesn't sum up the MemTables
+    private final LongAdder memTablesBytes = new LongAdder();
+    private boolean closed;
+
+    /**
+     * Opens the namespaces of the folder, the storages themselves are opened on demand.
+     *
+     * @param root   folder holding a subfolder per namespace
+     * @param config settings of every namespace, the flush threshold is the budget of all the MemTables together
+     */
+    public Namespaces(@NotNull final File root, @NotNull final DAOConfig config) {
+        this.root = root;
+        this.config = config;
+        this.memoryBudget = config.getBytesFlushThreshold();
+        this.compactionExecutor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("namespace-compaction-%d").setDaemon(true).build());
+        this.openExecutor = config.getOpenParallelism() == 0
+                ? null
+                : Executors.newFixedThreadPool(
+                        config.getOpenParallelism(),
+                        new ThreadFactoryBuilder().setNameFormat("namespace-open-%d").setDaemon(true).build());
+        this.scrubExecutor = config.getScrubIntervalMillis() == 0
+                ? null
+                : Executors.newSingleThreadScheduledExecutor(
+                        new ThreadFactoryBuilder().setNameFormat("namespace-scrub-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Opens the namespace, it is created if it doesn't exist.
+     * The namespace stays open until either it or these namespaces are closed.
+     *
+     * @param name letters, digits, underscores and hyphens
+     * @return storage of the namespace, the same one for every call
+     * @throws IOException if the namespace can't be created or opened
+     */
+    @NotNull
+    public synchronized DAOImpl open(@NotNull final String name) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("The namespaces are closed");
+        }
+        if (!NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("Invalid namespace name: " + name);
+        }
+
+        final DAOImpl existing = opened.get(name);
+        if (existing != null) {
+            return existing;
+        }
+        final File folder = new File(root, name);
+        Files.createDirectories(folder.toPath());
+        final DAOImpl dao = new DAOImpl(folder, config, this);
+        opened.put(name, dao);
+        return dao;
+    }
+
+    /**
+     * Lists the namespaces created so far, the opened ones and the ones on disk.
+     *
+     * @return names in ascending order
+     */
+    @NotNull
+    public Set<String> names() {
+        final Set<String> result = new TreeSet<>(opened.keySet());
+        final File[] folders = root.listFiles(File::isDirectory);
+        if (folders != null) {
+            for (final File folder : folders) {
+                if (NAME.matcher(folder.getName()).matches()) {
+                    result.add(folder.getName());
+                }
+            }
+        }
+        return Collections.unmodifiableSet(result);
+    }
+
+    /**
+     * Closes all the namespaces, their MemTables are flushed.
+     *
+     * @throws IOException if a MemTable can't be flushed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        IOException failure = null;
+        for (final DAOImpl dao : opened.values()) {
+            try {
+                dao.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (openExecutor != null) {
+            openExecutor.shutdownNow();
+        }
+        if (scrubExecutor != null) {
+            scrubExecutor.shutdownNow();
+        }
+        compactionExecutor.shutdown();
+        try {
+            compactionExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for compaction");
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Forgets the namespace being closed, the next {@link #open(String)} opens it anew.
+     */
+    void release(@NotNull final DAOImpl dao) {
+        opened.values().remove(dao);
+    }
+
+    @NotNull
+    ExecutorService getCompactionExecutor() {
+        return compactionExecutor;
+    }
+
+    /**
+     * Returns the threads opening the tables, null if the tables are opened on demand only.
+     */
+    @Nullable
+    ExecutorService getOpenExecutor() {
+        return openExecutor;
+    }
+
+    /**
+     * Returns the thread verifying the tables, null if the scrub is disabled.
+     */
+    @Nullable
+    ScheduledExecutorService getScrubExecutor() {
+        return scrubExecutor;
+    }
+
+    /**
+     * Returns the total size of the MemTables of all the namespaces.
+     */
+    @NotNull
+    LongAdder getMemTablesBytes() {
+        return memTablesBytes;
+    }
+
+    /**
+     * Flushes the largest MemTable if all of them together exceed the budget.
+     * The budget is checked without the lock, so only the writers finding it exceeded get in line.
+     * The largest MemTable is picked under the lock and flushed without it, so the namespaces may be opened
+     * and closed meanwhile. The flush checks the budget again, the writers picking the same MemTable
+     * find it flushed already.
+     *
+     * @throws IOException if the MemTable can't be flushed
+     */
+    void flushOverBudget() throws IOException {
+        if (!isOverBudget()) {
+            return;
+        }
+        DAOImpl largest = null;
+        synchronized (this) {
+            // Another writer may have flushed a MemTable already
+            if (closed || !isOverBudget()) {
+                return;
+            }
+            for (final DAOImpl dao : opened.values()) {
+                if (largest == null || dao.getMemTableBytes() > largest.getMemTableBytes()) {
+                    largest = dao;
+                }
+            }
+        }
+        if (largest != null) {
+            largest.flushForBudget(this::isOverBudget);
+        }
+    }
+
+    private boolean isOverBudget() {
+        return memTablesBytes.sum() > memoryBudget;
+    }
+}
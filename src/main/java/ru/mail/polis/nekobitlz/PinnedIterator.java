@@ -0,0 +1,50 @@
+package ru.mail.polis.nekobitlz;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.ref.Cleaner;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterator holding the tables it reads until it is exhausted, so a compaction finishing meanwhile
+ * doesn't close them under it. An iterator dropped before its end releases them once it is garbage collected.
+ *
+ * @param <T> type of the elements
+ */
+final class PinnedIterator<T> implements Iterator<T> {
+
+    // Shared with the other holders of the pinned tables
+    static final Cleaner CLEANER = Cleaner.create();
+
+    private final Iterator<T> delegate;
+    private final Cleaner.Cleanable cleanable;
+
+    /**
+     * Wraps the iterator.
+     *
+     * @param delegate iterator over the pinned tables
+     * @param release  releases the tables, run once; it must not refer to the iterator
+     */
+    PinnedIterator(@NotNull final Iterator<T> delegate, @NotNull final Runnable release) {
+        this.delegate = delegate;
+        this.cleanable = CLEANER.register(this, release);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (delegate.hasNext()) {
+            return true;
+        }
+        cleanable.clean();
+        return false;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return delegate.next();
+    }
+}
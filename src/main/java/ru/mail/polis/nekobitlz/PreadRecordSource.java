@@ -0,0 +1,227 @@
+package ru.mail.polis.nekobitlz;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Records read by positional reads.
+ * The quick looks go through a direct buffer owned by the reading thread.
+ * Scans read whole windows of records at once into the direct buffers pooled by {@link Readahead},
+ * the next window is read in the background.
+ *
+ * <p>A record read on its own gets a heap buffer of its own, since the record outlives the read:
+ * its key and value are returned to the caller. The JDK reads into a heap buffer through a direct buffer
+ * cached per thread, so the reads themselves take no direct memory.
+ */
+final class PreadRecordSource implements RecordSource {
+
+    private static final ThreadLocal<ByteBuffer> PEEK_BUFFERS =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(PEEK_BYTES));
+
+    private final Path path;
+    private volatile FileChannel fileChannel;
+    private volatile boolean closed;
+
+    PreadRecordSource(@NotNull final Path path, @NotNull final FileChannel fileChannel) {
+        this.path = path;
+        this.fileChannel = fileChannel;
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer read(final long start, final long end) {
+        final ByteBuffer result = ByteBuffer.allocate((int) (end - start));
+        readFully(result, start);
+        return result.flip().asReadOnlyBuffer();
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer peek(final long start, final long end) {
+        final ByteBuffer buffer = PEEK_BUFFERS.get();
+        buffer.clear().limit((int) Math.min(end - start, PEEK_BYTES));
+        readFully(buffer, start);
+        return buffer.flip().asReadOnlyBuffer();
+    }
+
+    @NotNull
+    @Override
+    public Scan scan(@NotNull final Readahead readahead, final long limit) {
+        return new PreadScan(readahead, limit);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        fileChannel.close();
+    }
+
+    private void readFully(@NotNull final ByteBuffer buffer, final long position) {
+        final int initialPosition = buffer.position();
+        while (true) {
+            final FileChannel current = fileChannel;
+            try {
+                while (buffer.hasRemaining()) {
+                    final int read = current.read(buffer, position + buffer.position() - initialPosition);
+                    if (read < 0) {
+                        throw new EOFException("Unexpected end of " + path.getFileName());
+                    }
+                }
+                return;
+            } catch (ClosedByInterruptException e) {
+                // The interrupt of a reader closes the channel for everyone
+                reopen(current);
+                throw new UncheckedIOException(e);
+            } catch (ClosedChannelException e) {
+                if (closed) {
+                    throw new UncheckedIOException(e);
+                }
+                reopen(current);
+                buffer.position(initialPosition);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private synchronized void reopen(@NotNull final FileChannel stale) {
+        if (closed || fileChannel != stale) {
+            return;
+        }
+
+        try {
+            fileChannel = FileChannel.open(path, READ);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private final class PreadScan implements Scan {
+
+        private final Readahead readahead;
+        private final Readahead.Window window;
+        private final long limit;
+        // The window buffers are direct and pooled, the records are copied out of them
+        private ByteBuffer buffer;
+        private long bufferStart;
+        private CompletableFuture<ByteBuffer> next;
+        private long nextStart;
+
+        PreadScan(@NotNull final Readahead readahead, final long limit) {
+            this.readahead = readahead;
+            this.window = readahead.window();
+            this.limit = limit;
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer read(final long start, final long end) {
+            final boolean sequential = window.read(end - start);
+            final ByteBuffer result = ByteBuffer.allocate((int) (end - start));
+            // The start of the part of the record left to copy from the current window
+            long rest = start;
+            if (!contains(buffer, bufferStart, start, end)) {
+                final ByteBuffer prefetched = takeNext();
+                if (contains(prefetched, nextStart, start, end)) {
+                    readahead.releaseBuffer(buffer);
+                    buffer = prefetched;
+                    bufferStart = nextStart;
+                } else if (prefetched != null && straddles(prefetched, start, end)) {
+                    // The windows end anywhere, so the record is split between the current window and the next one
+                    result.put(buffer.duplicate().position((int) (start - bufferStart)));
+                    readahead.releaseBuffer(buffer);
+                    buffer = prefetched;
+                    bufferStart = nextStart;
+                    rest = nextStart;
+                } else {
+                    readahead.releaseBuffer(prefetched);
+                    final long windowEnd = Math.min(start + window.next(), limit);
+                    if (!sequential || end > windowEnd) {
+                        return PreadRecordSource.this.read(start, end);
+                    }
+                    final ByteBuffer current = readahead.obtainBuffer((int) (windowEnd - start));
+                    readFully(current, start);
+                    readahead.releaseBuffer(buffer);
+                    buffer = current.flip();
+                    bufferStart = start;
+                }
+                prefetch(bufferStart + buffer.limit());
+            }
+
+            result.put(buffer.duplicate()
+                    .position((int) (rest - bufferStart))
+                    .limit((int) (end - bufferStart)));
+            if (end == limit) {
+                // The last record is read, nothing is prefetched after it
+                readahead.releaseBuffer(buffer);
+                buffer = null;
+            }
+            return result.flip().asReadOnlyBuffer();
+        }
+
+        private void prefetch(final long from) {
+            if (from >= limit) {
+                return;
+            }
+
+            final ByteBuffer target = readahead.obtainBuffer((int) (Math.min(from + window.next(), limit) - from));
+            try {
+                next = CompletableFuture.supplyAsync(() -> {
+                    readFully(target, from);
+                    return target.flip();
+                }, readahead.getExecutor());
+                nextStart = from;
+            } catch (RejectedExecutionException e) {
+                // The storage is being closed, prefetching is just a hint
+                readahead.releaseBuffer(target);
+                next = null;
+            }
+        }
+
+        /**
+         * Waits for the prefetched window, a failed prefetch is treated as a missing one.
+         * The buffer of a failed prefetch is not returned to the pool, it may still be in use.
+         */
+        private ByteBuffer takeNext() {
+            final CompletableFuture<ByteBuffer> future = next;
+            next = null;
+            if (future == null) {
+                return null;
+            }
+
+            try {
+                return future.join();
+            } catch (CompletionException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Checks if the record starts in the current window and ends in the prefetched one following it.
+         */
+        private boolean straddles(@NotNull final ByteBuffer prefetched, final long start, final long end) {
+            return buffer != null
+                    && nextStart == bufferStart + buffer.limit()
+                    && start >= bufferStart
+                    && start < nextStart
+                    && end <= nextStart + prefetched.limit();
+        }
+
+        private boolean contains(final ByteBuffer region, final long regionStart, final long start, final long end) {
+            return region != null && start >= regionStart && end <= regionStart + region.limit();
+        }
+    }
+}
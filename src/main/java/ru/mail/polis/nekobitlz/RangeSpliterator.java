@@ -0,0 +1,211 @@
+package ru.mail.polis.nekobitlz;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.Iters;
+import ru.mail.polis.Record;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator over the live records of a key range. The range is split by the keys sampled from the tables,
+ * so that the parts hold about the same number of records. Each part merges the tables on its own,
+ * hence the parts of a parallel stream are read by different threads.
+ * The tables read by the parts may be held by them, they are released once all the parts are exhausted.
+ */
+final class RangeSpliterator implements Spliterator<Record> {
+
+    // The parts to sample the range into per processor, so the threads finishing early take the rest
+    private static final int PARTS_PER_PROCESSOR = 16;
+
+    private final ReadView view;
+    private final long now;
+    @Nullable
+    private final Release release;
+    @Nullable
+    private final ByteBuffer to;
+    private ByteBuffer from;
+    // The keys within the range to split it by, in ascending order
+    private List<ByteBuffer> splitKeys;
+    private long estimatedSize;
+    // Created on the first read, the range is not split anymore
+    @Nullable
+    private Iterator<Record> iterator;
+    private boolean exhausted;
+
+    private RangeSpliterator(@NotNull final ReadView view,
+                             final long now,
+                             @Nullable final Release release,
+                             @NotNull final ByteBuffer from,
+                             @Nullable final ByteBuffer to,
+                             @NotNull final List<ByteBuffer> splitKeys,
+                             final long estimatedSize) {
+        this.view = view;
+        this.now = now;
+        this.release = release;
+        this.from = from;
+        this.to = to;
+        this.splitKeys = splitKeys;
+        this.estimatedSize = estimatedSize;
+    }
+
+    /**
+     * Samples the tables for the keys splitting the range.
+     * The tables get the samples in proportion to the number of their records in the range.
+     *
+     * @param view    view to read the records by
+     * @param tables  tables of the view
+     * @param now     time in milliseconds to check the expiration against
+     * @param from    the first key of the range
+     * @param to      the key after the range, null for the end of the keys
+     * @param release releases the tables once the parts are exhausted, null if the tables are held elsewhere;
+     *                run once, it must not refer to the spliterator
+     * @return spliterator over the records from "from" (inclusive) until "to" (exclusive)
+     */
+    @NotNull
+    static RangeSpliterator create(@NotNull final ReadView view,
+                                   @NotNull final List<SSTable> tables,
+                                   final long now,
+                                   @NotNull final ByteBuffer from,
+                                   @Nullable final ByteBuffer to,
+                                   @Nullable final Runnable release) {
+        long totalRecords = 0;
+        final long[] records = new long[tables.size()];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = tables.get(i).countRecords(from, to);
+            totalRecords += records[i];
+        }
+
+        final TreeSet<ByteBuffer> keys = new TreeSet<>();
+        final int parts = Runtime.getRuntime().availableProcessors() * PARTS_PER_PROCESSOR;
+        for (int i = 0; i < records.length && totalRecords > 0; i++) {
+            final int tableParts = (int) Math.round((double) parts * records[i] / totalRecords);
+            if (tableParts > 1) {
+                keys.addAll(tables.get(i).splitKeys(from, to, tableParts));
+            }
+        }
+        return new RangeSpliterator(
+                view,
+                now,
+                release == null ? null : new Release(release),
+                from,
+                to,
+                new ArrayList<>(keys),
+                totalRecords);
+    }
+
+    /**
+     * Releases the tables, even if some of the parts are not exhausted yet. The parts must not be read anymore.
+     */
+    void close() {
+        if (release != null) {
+            release.cleanable.clean();
+        }
+    }
+
+    @Nullable
+    @Override
+    public Spliterator<Record> trySplit() {
+        if (iterator != null || splitKeys.isEmpty()) {
+            return null;
+        }
+
+        final int middle = splitKeys.size() / 2;
+        final ByteBuffer key = splitKeys.get(middle);
+        final long prefixSize = estimatedSize * (middle + 1) / (splitKeys.size() + 1);
+        if (release != null) {
+            release.openParts.incrementAndGet();
+        }
+        final RangeSpliterator prefix = new RangeSpliterator(
+                view,
+                now,
+                release,
+                from,
+                key,
+                splitKeys.subList(0, middle),
+                prefixSize);
+        from = key;
+        splitKeys = splitKeys.subList(middle + 1, splitKeys.size());
+        estimatedSize -= prefixSize;
+        return prefix;
+    }
+
+    @Override
+    public boolean tryAdvance(@NotNull final Consumer<? super Record> action) {
+        final Iterator<Record> records = records();
+        if (!records.hasNext()) {
+            markExhausted();
+            return false;
+        }
+        action.accept(records.next());
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(@NotNull final Consumer<? super Record> action) {
+        records().forEachRemaining(action);
+        markExhausted();
+    }
+
+    /**
+     * Returns the number of the records in the range the tables hold, the overwritten and removed ones included.
+     */
+    @Override
+    public long estimateSize() {
+        return estimatedSize;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | SORTED | DISTINCT | NONNULL;
+    }
+
+    /**
+     * Returns null, the records are in their natural order.
+     */
+    @Nullable
+    @Override
+    public Comparator<? super Record> getComparator() {
+        return null;
+    }
+
+    @NotNull
+    private Iterator<Record> records() {
+        if (iterator == null) {
+            final Iterator<Record> tail = view.iterator(from, now);
+            iterator = to == null ? tail : Iters.until(tail, Record.of(to, ByteBuffer.allocate(0)));
+        }
+        return iterator;
+    }
+
+    private void markExhausted() {
+        if (release != null && !exhausted) {
+            exhausted = true;
+            if (release.openParts.decrementAndGet() == 0) {
+                release.cleanable.clean();
+            }
+        }
+    }
+
+    /**
+     * Counts the parts of a range not exhausted yet. The tables are released by the last of them,
+     * by closing the stream or, if the parts are dropped unfinished, once they are garbage collected.
+     */
+    private static final class Release {
+        private final AtomicInteger openParts = new AtomicInteger(1);
+        private final Cleaner.Cleanable cleanable;
+
+        Release(@NotNull final Runnable release) {
+            this.cleanable = PinnedIterator.CLEANER.register(this, release);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package ru.mail.polis.nekobitlz;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+public class RangeTombstone {
+
+    private final ByteBuffer from;
+    private final ByteBuffer to;
+    private final long timeStamp;
+
+    /**
+     * Data class to store the removal of the keys from "from" (inclusive) until "to" (exclusive).
+     */
+    public RangeTombstone(@NotNull final ByteBuffer from, @NotNull final ByteBuffer to, final long timeStamp) {
+        this.from = from;
+        this.to = to;
+        this.timeStamp = timeStamp;
+    }
+
+    public ByteBuffer getFrom() {
+        return from;
+    }
+
+    public ByteBuffer getTo() {
+        return to;
+    }
+
+    public long getTimeStamp() {
+        return timeStamp;
+    }
+
+    public boolean contains(@NotNull final ByteBuffer key) {
+        return from.compareTo(key) <= 0 && key.compareTo(to) < 0;
+    }
+
+    /**
+     * Checks if the item was removed by this range tombstone.
+     *
+     * @param item item to check
+     * @return true, if the item is in range and older than the removal
+     */
+    public boolean covers(@NotNull final Item item) {
+        return item.getTimeStampAbs() < timeStamp && contains(item.getKey());
+    }
+
+    public long getBytesSize() {
+        return (long) Integer.BYTES * 2 + from.remaining() + to.remaining() + Long.BYTES;
+    }
+}
@@ -0,0 +1,128 @@
+package ru.mail.polis.nekobitlz;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Range tombstones split into disjoint fragments at their bounds, each fragment keeps the freshest removal over it.
+ * The fragments are mapped by their first keys, so a key is checked by a single floor lookup.
+ *
+ * <p>The tombstones are added one at a time, while the lookups run concurrently. A fragment is split
+ * by putting its tail before it is cut short, so a lookup never misses a removal added before.
+ */
+final class RangeTombstoneIndex {
+
+    private final ConcurrentNavigableMap<ByteBuffer, Fragment> fragments = new ConcurrentSkipListMap<>();
+
+    /**
+     * Builds the index of the tombstones.
+     *
+     * @param rangeTombstones the tombstones in any order
+     * @return index of the tombstones
+     */
+    @NotNull
+    static RangeTombstoneIndex of(@NotNull final Collection<RangeTombstone> rangeTombstones) {
+        final RangeTombstoneIndex result = new RangeTombstoneIndex();
+        for (final RangeTombstone rangeTombstone : rangeTombstones) {
+            result.add(rangeTombstone);
+        }
+        return result;
+    }
+
+    /**
+     * Adds the removal of the keys of the range, the fragments it overlaps take its timestamp if it is newer.
+     *
+     * @param rangeTombstone the removal to add
+     */
+    synchronized void add(@NotNull final RangeTombstone rangeTombstone) {
+        final ByteBuffer from = rangeTombstone.getFrom();
+        final ByteBuffer to = rangeTombstone.getTo();
+        final long timeStamp = rangeTombstone.getTimeStamp();
+        if (from.compareTo(to) >= 0) {
+            return;
+        }
+
+        split(from);
+        split(to);
+        final List<Map.Entry<ByteBuffer, Fragment>> overlapped =
+                new ArrayList<>(fragments.subMap(from, true, to, false).entrySet());
+        ByteBuffer gapStart = from;
+        for (final Map.Entry<ByteBuffer, Fragment> entry : overlapped) {
+            if (gapStart.compareTo(entry.getKey()) < 0) {
+                fragments.put(gapStart, new Fragment(entry.getKey(), timeStamp));
+            }
+            final Fragment fragment = entry.getValue();
+            if (fragment.timeStamp < timeStamp) {
+                fragments.put(entry.getKey(), new Fragment(fragment.to, timeStamp));
+            }
+            gapStart = fragment.to;
+        }
+        if (gapStart.compareTo(to) < 0) {
+            fragments.put(gapStart, new Fragment(to, timeStamp));
+        }
+    }
+
+    /**
+     * Checks if the item was removed by any of the tombstones.
+     *
+     * @param item item to check
+     * @return true, if a tombstone of the index covers the key and is newer than the item
+     */
+    boolean covers(@NotNull final Item item) {
+        return item.getTimeStampAbs() < getTimeStamp(item.getKey());
+    }
+
+    /**
+     * Returns the timestamp of the freshest removal of the key.
+     *
+     * @param key the key to look for
+     * @return timestamp of the removal, zero if the key is not removed by the tombstones of the index
+     */
+    long getTimeStamp(@NotNull final ByteBuffer key) {
+        final Map.Entry<ByteBuffer, Fragment> entry = fragments.floorEntry(key);
+        if (entry == null || key.compareTo(entry.getValue().to) >= 0) {
+            return 0;
+        }
+        return entry.getValue().timeStamp;
+    }
+
+    boolean isEmpty() {
+        return fragments.isEmpty();
+    }
+
+    /**
+     * Makes the key a bound of the fragments, if it is within one.
+     */
+    private void split(@NotNull final ByteBuffer key) {
+        final Map.Entry<ByteBuffer, Fragment> entry = fragments.lowerEntry(key);
+        if (entry == null) {
+            return;
+        }
+        final Fragment fragment = entry.getValue();
+        if (key.compareTo(fragment.to) < 0) {
+            fragments.put(key, new Fragment(fragment.to, fragment.timeStamp));
+            fragments.put(entry.getKey(), new Fragment(key, fragment.timeStamp));
+        }
+    }
+
+    /**
+     * Removed keys from the mapped key (inclusive) until "to" (exclusive).
+     */
+    private static final class Fragment {
+
+        private final ByteBuffer to;
+        private final long timeStamp;
+
+        Fragment(@NotNull final ByteBuffer to, final long timeStamp) {
+            this.to = to;
+            this.timeStamp = timeStamp;
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package ru.mail.polis.nekobitlz;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.Iters;
+import ru.mail.polis.Record;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+
+/**
+ * Reads the freshest versions of the keys from the MemTables and a set of tables.
+ */
+final class ReadView {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    // The MemTable items walked by an estimate, the rest of the range is extrapolated by the tables
+    private static final int MAX_ESTIMATED_ITEMS = 256;
+
+    private final List<MemTable> memTables;
+    private final long maxSequence;
+    private final List<RangeTombstoneIndex> memTableRangeTombstones;
+    private final List<SSTable> tables;
+    private final boolean verify;
+    @Nullable
+    private final Readahead readahead;
+    private final DAOMetrics metrics;
+    private final ValueLog valueLog;
+
+    /**
+     * Creates a view over the sources.
+     *
+     * @param memTables   changes not flushed yet, none if the view reads the tables only
+     * @param maxSequence the highest sequence number of the MemTable changes seen, {@link MemTable#LATEST} for all
+     * @param tables      tables from the oldest to the freshest one
+     * @param verify      whether to check the checksums of the records read
+     * @param readahead   prefetching of the long scans, null to read on demand
+     * @param metrics     metrics of the reads
+     * @param valueLog    log holding the separated values of the tables
+     */
+    ReadView(@NotNull final List<MemTable> memTables,
+             final long maxSequence,
+             @NotNull final List<SSTable> tables,
+             final boolean verify,
+             @Nullable final Readahead readahead,
+             @NotNull final DAOMetrics metrics,
+             @NotNull final ValueLog valueLog) {
+        this.memTables = memTables;
+        this.maxSequence = maxSequence;
+        this.memTableRangeTombstones = new ArrayList<>(memTables.size());
+        for (final MemTable memTable : memTables) {
+            memTableRangeTombstones.add(memTable.getRangeTombstoneIndex(maxSequence));
+        }
+        this.tables = tables;
+        this.verify = verify;
+        this.readahead = readahead;
+        this.metrics = metrics;
+        this.valueLog = valueLog;
+    }
+
+    /**
+     * Finds the live value for the key.
+     *
+     * @param key the key to look for
+     * @param now time in milliseconds to check the expiration against
+     * @return value of the key
+     * @throws NoSuchElementException if there is no live value
+     */
+    @NotNull
+    ByteBuffer get(@NotNull final ByteBuffer key, final long now) {
+        Item freshest = null;
+        for (final MemTable memTable : memTables) {
+            final Item item = memTable.get(key, maxSequence);
+            if (item != null && (freshest == null || item.getTimeStampAbs() > freshest.getTimeStampAbs())) {
+                freshest = item;
+            }
+        }
+        int probed = 0;
+        for (final SSTable table : tables) {
+            if (!table.mayContain(key)) {
+                continue;
+            }
+            probed++;
+            final Item item = table.get(key, verify);
+            if (item == null) {
+                continue;
+            }
+            metrics.recordRead(item);
+            if (freshest == null || item.getTimeStampAbs() > freshest.getTimeStampAbs()) {
+                freshest = item;
+            }
+        }
+        metrics.recordTablesProbed(probed);
+
+        if (freshest == null || freshest.isRemoved() || freshest.isExpired(now)
+                || isCovered(freshest, collectRangeTombstoneIndexes())) {
+            throw new NoSuchElementException("Not found");
+        }
+        return valueLog.resolve(freshest, verify).getValue();
+    }
+
+    /**
+     * Returns the live records starting at "from" (inclusive).
+     *
+     * @param from the key with which the iteration begins
+     * @param now  time in milliseconds to check the expiration against
+     * @return iterator in ascending order of the keys
+     */
+    @NotNull
+    Iterator<Record> iterator(@NotNull final ByteBuffer from, final long now) {
+        return Iterators.transform(items(from, now), i -> Record.of(i.getKey(), i.getValue()));
+    }
+
+    /**
+     * Returns the live items starting at "from" (inclusive), the separated values are read only for them.
+     *
+     * @param from the key with which the iteration begins
+     * @param now  time in milliseconds to check the expiration against
+     * @return iterator in ascending order of the keys
+     */
+    @NotNull
+    Iterator<Item> items(@NotNull final ByteBuffer from, final long now) {
+        return Iterators.transform(pointedItems(from, now), i -> valueLog.resolve(i, verify));
+    }
+
+    /**
+     * Returns the live records of the range with the options applied before the records are built.
+     * The key filter is pushed down to the sources, as it drops all the versions of a key alike.
+     * The value filter is evaluated on the freshest version only, otherwise an older version of a rejected key
+     * would come out of the merge instead.
+     *
+     * @param from    the first key of the range
+     * @param to      the key after the range, null for the end of the keys
+     * @param options prefix, filters, keys-only mode and limit of the scan
+     * @param now     time in milliseconds to check the expiration against
+     * @return iterator in ascending order of the keys
+     */
+    @NotNull
+    Iterator<Record> scan(@NotNull final ByteBuffer from,
+                          @Nullable final ByteBuffer to,
+                          @NotNull final ScanOptions options,
+                          final long now) {
+        ByteBuffer start = from;
+        ByteBuffer end = to;
+        final ByteBuffer prefix = options.getPrefix();
+        if (prefix != null) {
+            if (prefix.compareTo(start) > 0) {
+                start = prefix;
+            }
+            final ByteBuffer prefixEnd = Iters.prefixEnd(prefix);
+            if (prefixEnd != null && (end == null || prefixEnd.compareTo(end) < 0)) {
+                end = prefixEnd;
+            }
+        }
+        if ((end != null && start.compareTo(end) >= 0) || options.getLimit() == 0) {
+            return Collections.emptyIterator();
+        }
+
+        Iterator<Item> items = pointedItems(start, now, options);
+        if (end != null) {
+            items = until(items, end);
+        }
+        final Iterator<Record> records;
+        if (options.isKeysOnly()) {
+            records = Iterators.transform(items, i -> Record.of(i.getKey(), EMPTY));
+        } else {
+            items = Iterators.transform(items, i -> valueLog.resolve(i, verify));
+            final BiPredicate<ByteBuffer, ByteBuffer> filter = options.getFilter();
+            if (filter != null) {
+                items = Iterators.filter(
+                        items,
+                        i -> filter.test(i.getKey().asReadOnlyBuffer(), i.getValue().asReadOnlyBuffer()));
+            }
+            records = Iterators.transform(items, i -> Record.of(i.getKey(), i.getValue()));
+        }
+        return options.getLimit() == Integer.MAX_VALUE ? records : Iterators.limit(records, options.getLimit());
+    }
+
+    /**
+     * Estimates the number of the records in the range by the positions of its bounds in the tables.
+     * The overwritten, removed and expired records are counted as well.
+     *
+     * @param from the first key of the range
+     * @param to   the key after the range, null for the end of the keys
+     * @return approximate number of the records
+     */
+    long estimateCount(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        return estimate(from, to, false);
+    }
+
+    /**
+     * Estimates the bytes of the records in the range by the offsets of its bounds in the tables.
+     * The overwritten, removed and expired records are counted as well.
+     *
+     * @param from the first key of the range
+     * @param to   the key after the range, null for the end of the keys
+     * @return approximate size of the records in bytes
+     */
+    long estimateSize(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        return estimate(from, to, true);
+    }
+
+    /**
+     * Sums up the estimates of the tables and adds the MemTable items. Only the first of them are walked
+     * if the tables have records in the range, the rest are extrapolated by the share of the walked keys
+     * among the records of the tables. Otherwise the MemTables are walked through the range.
+     */
+    private long estimate(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to, final boolean bytes) {
+        final long tablesEstimate = estimateTables(from, to, bytes);
+        if (memTables.isEmpty()) {
+            return tablesEstimate;
+        }
+
+        final List<Iterator<Item>> iterators = new ArrayList<>(memTables.size());
+        for (final MemTable memTable : memTables) {
+            iterators.add(memTable.iterator(from, maxSequence));
+        }
+        final Iterator<Item> items = Iterators.mergeSorted(iterators, Item.COMPARATOR);
+        long walked = 0;
+        int count = 0;
+        while (items.hasNext()) {
+            final Item item = items.next();
+            if (to != null && item.getKey().compareTo(to) >= 0) {
+                break;
+            }
+            if (count == MAX_ESTIMATED_ITEMS && tablesEstimate > 0) {
+                final long walkedTablesEstimate = estimateTables(from, item.getKey(), bytes);
+                if (walkedTablesEstimate > 0) {
+                    return tablesEstimate + (long) ((double) walked * tablesEstimate / walkedTablesEstimate);
+                }
+            }
+            walked += bytes ? item.getBytesSize() : 1;
+            count++;
+        }
+        return tablesEstimate + walked;
+    }
+
+    private long estimateTables(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to, final boolean bytes) {
+        long result = 0;
+        for (final SSTable table : tables) {
+            result += bytes ? table.estimateBytes(from, to) : table.countRecords(from, to);
+        }
+        return result;
+    }
+
+    @NotNull
+    private Iterator<Item> pointedItems(@NotNull final ByteBuffer from, final long now) {
+        return pointedItems(from, now, ScanOptions.defaults());
+    }
+
+    /**
+     * Merges the sources from the key, the tables without the prefix of the options are skipped.
+     */
+    @NotNull
+    private Iterator<Item> pointedItems(@NotNull final ByteBuffer from,
+                                        final long now,
+                                        @NotNull final ScanOptions options) {
+        final Predicate<ByteBuffer> keyFilter = options.getKeyFilter();
+        final ByteBuffer prefix = options.getPrefix();
+        final List<Iterator<Item>> iterators = new ArrayList<>();
+        for (final MemTable memTable : memTables) {
+            final Iterator<Item> memTableItems = memTable.iterator(from, maxSequence);
+            iterators.add(keyFilter == null
+                    ? memTableItems
+                    : Iterators.filter(memTableItems, i -> keyFilter.test(i.getKey().asReadOnlyBuffer())));
+        }
+
+        int merged = 0;
+        for (final SSTable table : tables) {
+            if (table.mayContainFrom(from) && (prefix == null || table.mayContainPrefix(prefix))) {
+                iterators.add(Iterators.transform(
+                        table.getIterator(from, verify, readahead, keyFilter, options.isKeysOnly()),
+                        metrics::recordRead));
+                merged++;
+            }
+        }
+        metrics.recordTablesMerged(merged);
+
+        final Iterator<Item> mergedIterator = Iterators.mergeSorted(iterators, Item.COMPARATOR);
+        final Iterator<Item> collapsedIterator = Iters.collapseEquals(mergedIterator, Item::getKey);
+
+        final List<RangeTombstoneIndex> rangeTombstones = collectRangeTombstoneIndexes();
+        if (rangeTombstones.isEmpty()) {
+            return Iterators.filter(collapsedIterator, i -> !i.isRemoved() && !i.isExpired(now));
+        }
+        return Iterators.filter(
+                collapsedIterator,
+                i -> !i.isRemoved() && !i.isExpired(now) && !isCovered(i, rangeTombstones));
+    }
+
+    /**
+     * Returns the items before the key, the items after it are not read.
+     */
+    @NotNull
+    private static Iterator<Item> until(@NotNull final Iterator<Item> items, @NotNull final ByteBuffer to) {
+        return new AbstractIterator<>() {
+            @Override
+            protected Item computeNext() {
+                if (items.hasNext()) {
+                    final Item item = items.next();
+                    if (item.getKey().compareTo(to) < 0) {
+                        return item;
+                    }
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    /**
+     * Collects the range tombstone indexes of the MemTables and all the tables, the empty ones are left out.
+     */
+    @NotNull
+    private List<RangeTombstoneIndex> collectRangeTombstoneIndexes() {
+        final List<RangeTombstoneIndex> result = collectRangeTombstoneIndexes(tables);
+        for (final RangeTombstoneIndex index : memTableRangeTombstones) {
+            if (!index.isEmpty()) {
+                result.add(index);
+            }
+        }
+        return result;
+    }
+
+    @NotNull
+    static List<RangeTombstoneIndex> collectRangeTombstoneIndexes(@NotNull final List<SSTable> sources) {
+        final List<RangeTombstoneIndex> result = new ArrayList<>();
+        for (final SSTable table : sources) {
+            if (!table.hasRangeTombstones()) {
+                continue;
+            }
+            final RangeTombstoneIndex index = table.getRangeTombstoneIndex();
+            if (!index.isEmpty()) {
+                result.add(index);
+            }
+        }
+        return result;
+    }
+
+    @NotNull
+    static List<RangeTombstone> collectRangeTombstones(@NotNull final List<SSTable> sources) {
+        final List<RangeTombstone> result = new ArrayList<>();
+        for (final SSTable table : sources) {
+            result.addAll(table.getRangeTombstones());
+        }
+        return result;
+    }
+
+    /**
+     * Checks the item against the range tombstones of each source, a lookup per source.
+     */
+    static boolean isCovered(@NotNull final Item item, @NotNull final List<RangeTombstoneIndex> rangeTombstones) {
+        for (final RangeTombstoneIndex index : rangeTombstones) {
+            if (index.covers(item)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,106 @@
+package ru.mail.polis.nekobitlz;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Prefetching of the records ahead of a sequential scan.
+ * A scan starts prefetching once it has read {@link #MIN_WINDOW_BYTES} in a row,
+ * then the window doubles with every prefetch up to the maximum.
+ * Short scans and point lookups don't prefetch anything.
+ * The direct buffers the windows are read into are pooled, so the scans don't allocate them over and over.
+ */
+final class Readahead {
+
+    static final int MIN_WINDOW_BYTES = 128 * 1024;
+    // Two windows per scan in progress, the buffers of more scans are left to the garbage collector
+    private static final int POOLED_BUFFERS = 16;
+
+    private final Executor executor;
+    private final int maxWindowBytes;
+    // Buffers of maxWindowBytes, so any window fits any of them
+    private final BlockingQueue<ByteBuffer> buffers = new ArrayBlockingQueue<>(POOLED_BUFFERS);
+
+    /**
+     * Creates readahead settings.
+     *
+     * @param executor       runs the prefetches
+     * @param maxWindowBytes the largest region prefetched at once
+     */
+    Readahead(@NotNull final Executor executor, final int maxWindowBytes) {
+        this.executor = executor;
+        this.maxWindowBytes = Math.max(maxWindowBytes, MIN_WINDOW_BYTES);
+    }
+
+    @NotNull
+    Executor getExecutor() {
+        return executor;
+    }
+
+    @NotNull
+    Window window() {
+        return new Window(maxWindowBytes);
+    }
+
+    /**
+     * Takes a direct buffer for a window from the pool, allocating one if the pool is empty.
+     *
+     * @param size size of the window, at most the largest one
+     * @return buffer with the limit set to the size
+     */
+    @NotNull
+    ByteBuffer obtainBuffer(final int size) {
+        assert size <= maxWindowBytes;
+        final ByteBuffer pooled = buffers.poll();
+        final ByteBuffer result = pooled == null ? ByteBuffer.allocateDirect(maxWindowBytes) : pooled;
+        return result.clear().limit(size);
+    }
+
+    /**
+     * Returns the buffer to the pool, the buffer must not be used anymore. A full pool drops it.
+     *
+     * @param buffer buffer taken by {@link #obtainBuffer(int)}, null for none
+     */
+    void releaseBuffer(@Nullable final ByteBuffer buffer) {
+        if (buffer != null) {
+            buffers.offer(buffer);
+        }
+    }
+
+    /**
+     * Readahead state of a single scan.
+     */
+    static final class Window {
+
+        private final int maxBytes;
+        private long sequentialBytes;
+        private int bytes;
+
+        private Window(final int maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        /**
+         * Accounts the bytes read by the scan.
+         *
+         * @return true, if the scan is sequential enough to prefetch
+         */
+        boolean read(final long length) {
+            sequentialBytes += length;
+            return sequentialBytes >= MIN_WINDOW_BYTES;
+        }
+
+        /**
+         * Returns the size of the next prefetch.
+         */
+        int next() {
+            bytes = bytes == 0 ? MIN_WINDOW_BYTES : Math.min(bytes * 2, maxBytes);
+            return bytes;
+        }
+    }
+}
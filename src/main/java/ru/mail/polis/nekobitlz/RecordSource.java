@@ -0,0 +1,60 @@
+package ru.mail.polis.nekobitlz;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the records section of an SSTable.
+ * Positions are relative to the beginning of the file.
+ */
+interface RecordSource extends Closeable {
+
+    int PEEK_BYTES = 4096;
+
+    /**
+     * Reads the bytes from "start" (inclusive) to "end" (exclusive).
+     *
+     * @return the bytes, valid as long as the table is open
+     * @throws UncheckedIOException if a read error has occurred
+     */
+    @NotNull
+    ByteBuffer read(long start, long end);
+
+    /**
+     * Reads the beginning of the bytes from "start" (inclusive) to "end" (exclusive) for a quick look.
+     * It holds at least {@link #PEEK_BYTES} bytes unless the range is shorter.
+     *
+     * @return the bytes, valid until the next call by the same thread
+     * @throws UncheckedIOException if a read error has occurred
+     */
+    @NotNull
+    ByteBuffer peek(long start, long end);
+
+    /**
+     * Starts a sequential scan prefetching the records ahead of its reads.
+     *
+     * @param readahead prefetch settings
+     * @param limit     the end of the records
+     * @return reader of the consecutive records
+     */
+    @NotNull
+    Scan scan(@NotNull Readahead readahead, long limit);
+
+    /**
+     * Reads the records in ascending order of their positions.
+     */
+    interface Scan {
+
+        /**
+         * Reads the bytes from "start" (inclusive) to "end" (exclusive).
+         *
+         * @return the bytes, valid as long as the table is open
+         * @throws UncheckedIOException if a read error has occurred
+         */
+        @NotNull
+        ByteBuffer read(long start, long end);
+    }
+}
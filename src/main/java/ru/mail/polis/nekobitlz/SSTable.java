@@ -1,113 +1,908 @@
 package ru.mail.polis.nekobitlz;
 
+import com.google.common.hash.BloomFilter;
+import com.google.common.util.concurrent.RateLimiter;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.nio.LongBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 
 import static java.nio.file.StandardOpenOption.READ;
 
-public class SSTable {
+public class SSTable implements Closeable {
+
+    // The smallest record is a tombstone for the empty key, plus its offset
+    private static final int MIN_RECORD_BYTES = Integer.BYTES + Long.BYTES * 2;
+
+    private static final long UNKNOWN_SEQUENCE = -1;
+    // The largest buffer, larger tables are mapped by parts
+    private static final int MAX_MAPPING_BYTES = Integer.MAX_VALUE;
 
-    private final ByteBuffer records;
-    private final LongBuffer offsets;
     private final File file;
-    private final Long recordCount;
+    private final int level;
+    private final long maxSequence;
+    // Sequence number of all the records of an ingested table, zero if the records keep their own
+    private final long globalSequence;
+    private final TableAccess access;
+    // The records are mapped by segments of up to this size
+    private final long maxSegmentBytes;
+    // The table set of the DAO holds the first reference, snapshots and background tasks take the others
+    private final AtomicInteger references = new AtomicInteger(1);
+    private volatile boolean obsolete;
+    private volatile boolean opened;
+    private boolean closed;
+    private RecordSource records;
+    private long recordsEnd;
+    private LongBuffer offsets;
+    @Nullable
+    private IntBuffer checksums;
+    // Open addressing table of the records by the hashes of their keys, null if the table has none
+    @Nullable
+    private LongBuffer hashIndex;
+    // Packed key bytes after the common prefix of every fenceInterval-th record, null if the table has none.
+    // Sign flipped, so the signed comparison of the fences follows the order of the keys
+    @Nullable
+    private long[] fences;
+    private int fenceInterval;
+    // Bloom filter of the key prefixes cut by metadata.getFilterPrefix(), null if the table has none
+    @Nullable
+    private BloomFilter<ByteBuffer> prefixFilter;
+    // The keys of the table start with the first commonPrefix bytes of minKey
+    private int commonPrefix;
+    private ByteBuffer minKey;
+    private List<RangeTombstone> rangeTombstones;
+    private RangeTombstoneIndex rangeTombstoneIndex;
+    private TableMetadata metadata;
+    // Known without opening the table if the manifest has it, taken from the metadata once the table is opened
+    @Nullable
+    private volatile TableSummary summary;
+    private long recordCount;
+    // The records of the legacy tables have no expiration time
+    private int expiresAtBytes;
+
+    /**
+     * Opens Sorted Strings Table, mapping its records to memory.
+     *
+     * @param file  target file
+     * @param level level of the table, 0 for a flushed MemTable
+     * @throws IOException if a read error has occurred
+     * @throws IllegalArgumentException if the file is not a valid table
+     */
+    public SSTable(@NotNull final File file, final int level) throws IOException {
+        this(file, level, TableAccess.MMAP, MAX_MAPPING_BYTES);
+    }
+
+    /**
+     * Opens Sorted Strings Table, reading its records as the storage of the configuration does.
+     *
+     * @param file   target file
+     * @param level  level of the table, 0 for a flushed MemTable
+     * @param config configuration of the table access and the mapped segments
+     * @throws IOException if a read error has occurred
+     * @throws IllegalArgumentException if the file is not a valid table
+     */
+    public SSTable(@NotNull final File file, final int level, @NotNull final DAOConfig config) throws IOException {
+        this(file, level, config.getTableAccess(), config.getMappedSegmentBytes());
+    }
+
+    private SSTable(@NotNull final File file,
+                    final int level,
+                    @NotNull final TableAccess access,
+                    final long maxSegmentBytes) throws IOException {
+        this(file, level, access, maxSegmentBytes, UNKNOWN_SEQUENCE, 0, null);
+        open();
+    }
 
     /**
-     * Creates Sorted Strings Table.
+     * Registers Sorted Strings Table listed in the manifest without reading the file.
      *
-     * @param file target file
-     * @throws IOException if a write error has occurred
+     * @param file           target file
+     * @param level          level of the table, 0 for a flushed MemTable
+     * @param access          how the records are read
+     * @param maxSegmentBytes the largest segment of the records mapped at once
+     * @param maxSequence     the highest sequence number of the table, negative if unknown
+     * @param globalSequence  sequence number of all the records, zero to keep the stored ones
+     * @param summary         the summary of the table kept in the manifest, null if unknown
      */
-    public SSTable(@NotNull final File file) throws IOException {
+    SSTable(@NotNull final File file,
+            final int level,
+            @NotNull final TableAccess access,
+            final long maxSegmentBytes,
+            final long maxSequence,
+            final long globalSequence,
+            @Nullable final TableSummary summary) {
         this.file = file;
-        try (FileChannel fileChannel = (FileChannel) Files.newByteChannel(file.toPath(), READ)) {
-            assertCondition(fileChannel.size() >= Long.BYTES);
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.summary = summary;
+        this.level = level;
+        this.globalSequence = globalSequence;
+        this.access = access;
+        if (globalSequence != 0) {
+            this.maxSequence = globalSequence;
+        } else {
+            this.maxSequence = maxSequence < 0 ? UNKNOWN_SEQUENCE : maxSequence;
+        }
+    }
 
-            final ByteBuffer mappedByteBuffer = fileChannel
-                    .map(MapMode.READ_ONLY, 0, file.length())
-                    .order(ByteOrder.BIG_ENDIAN);
-            assertCondition(mappedByteBuffer.limit() < Integer.MAX_VALUE);
+    /**
+     * Opens the file and validates its footer, if it has not been done yet.
+     *
+     * @throws IOException if the file can't be read or the table is closed
+     * @throws IllegalArgumentException if the file is not a valid table
+     */
+    public void open() throws IOException {
+        if (opened) {
+            return;
+        }
 
-            recordCount = mappedByteBuffer.getLong(mappedByteBuffer.limit() - Long.BYTES);
-            assertCondition(mappedByteBuffer.limit() > recordCount * 21);
+        synchronized (this) {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            if (!opened) {
+                map();
+                opened = true;
+            }
+        }
+    }
 
-            offsets = mappedByteBuffer
-                    .duplicate()
-                    .position(getRemaining(mappedByteBuffer.limit()))
-                    .limit(mappedByteBuffer.limit() - Long.BYTES)
-                    .slice()
-                    .asLongBuffer();
-            assertCondition(offsets.limit() == recordCount);
+    /**
+     * Releases the file, the table can't be read anymore.
+     *
+     * @throws IOException if an I/O error has occurred
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        if (opened) {
+            records.close();
+        }
+    }
 
-            records = mappedByteBuffer
-                    .duplicate()
-                    .limit(getRemaining(mappedByteBuffer.limit()))
-                    .slice()
-                    .asReadOnlyBuffer();
+    /**
+     * Pins the table, so it stays readable until the matching {@link #release()}.
+     *
+     * @return false, if the table has already been released by everyone
+     */
+    public boolean acquire() {
+        while (true) {
+            final int count = references.get();
+            if (count == 0) {
+                return false;
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                return true;
+            }
         }
     }
 
+    /**
+     * Unpins the table. The last release closes it and removes the file of an obsolete table.
+     *
+     * @throws IOException if an I/O error has occurred
+     */
+    public void release() throws IOException {
+        if (references.decrementAndGet() == 0) {
+            close();
+            if (obsolete) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+    }
+
+    /**
+     * Marks the table replaced by compaction, its file is removed once the table is released by everyone.
+     */
+    public void markObsolete() {
+        obsolete = true;
+    }
+
+    private void map() throws IOException {
+        final FileChannel fileChannel = FileChannel.open(file.toPath(), READ);
+        boolean keepOpen = false;
+        try {
+            final FileMapping mapping = new FileMapping(fileChannel, access == TableAccess.MMAP, maxSegmentBytes);
+            metadata = readMetadata(mapping);
+            summary = TableSummary.of(metadata);
+            recordCount = metadata.getRecordCount();
+            expiresAtBytes = metadata.getFormatVersion() == TableMetadata.LEGACY_VERSION ? 0 : Long.BYTES;
+            final long rangeTombstonesSize = metadata.getRangeTombstonesSize();
+            final long hashIndexSize = metadata.getHashIndexSize();
+            final long fencesSize = metadata.getFencesSize();
+            final long prefixFilterSize = metadata.getPrefixFilterSize();
+            final int checksumBytes = metadata.hasChecksums() ? Integer.BYTES : 0;
+            final long footerStart = mapping.size - metadata.getBytesSize();
+            assertCondition(footerStart >= recordCount * (MIN_RECORD_BYTES + checksumBytes)
+                    + rangeTombstonesSize + hashIndexSize + fencesSize + prefixFilterSize);
+
+            final long prefixFilterStart = footerStart - prefixFilterSize;
+            prefixFilter = prefixFilterSize == 0
+                    ? null
+                    : readPrefixFilter(mapping.map(prefixFilterStart, prefixFilterSize), metadata);
+
+            final long fencesStart = prefixFilterStart - fencesSize;
+            fenceInterval = metadata.getFenceInterval();
+            fences = fencesSize == 0
+                    ? null
+                    : readFences(mapping.map(fencesStart, fencesSize), recordCount, metadata);
+            minKey = metadata.getMinKey();
+            commonPrefix = SSTableUtils.commonPrefix(minKey, metadata.getMaxKey());
+
+            final long hashIndexStart = fencesStart - hashIndexSize;
+            hashIndex = hashIndexSize == 0
+                    ? null
+                    : readHashIndex(mapping.map(hashIndexStart, hashIndexSize), recordCount, metadata);
+
+            final long rangeTombstonesStart = hashIndexStart - rangeTombstonesSize;
+            final ByteBuffer rangeTombstonesSection = mapping.map(rangeTombstonesStart, rangeTombstonesSize);
+            assertCondition(!metadata.hasChecksums()
+                    || SSTableUtils.checksum(rangeTombstonesSection) == metadata.getRangeTombstonesChecksum());
+            rangeTombstones = readRangeTombstones(rangeTombstonesSection, globalSequence);
+            rangeTombstoneIndex = RangeTombstoneIndex.of(rangeTombstones);
+
+            final long offsetsEnd = rangeTombstonesStart - checksumBytes * recordCount;
+            checksums = metadata.hasChecksums()
+                    ? mapping.map(offsetsEnd, checksumBytes * recordCount).asIntBuffer()
+                    : null;
+
+            recordsEnd = offsetsEnd - Long.BYTES * recordCount;
+            offsets = mapping.map(recordsEnd, Long.BYTES * recordCount).asLongBuffer();
+            if (access == TableAccess.MMAP) {
+                records = mapSegments(mapping);
+            } else {
+                records = new PreadRecordSource(file.toPath(), fileChannel);
+                keepOpen = true;
+            }
+        } finally {
+            if (!keepOpen) {
+                fileChannel.close();
+            }
+        }
+    }
+
+    @NotNull
+    private static LongBuffer readHashIndex(@NotNull final ByteBuffer section,
+                                            final long recordCount,
+                                            @NotNull final TableMetadata metadata) {
+        final int capacity = section.remaining() / Long.BYTES;
+        assertCondition(section.remaining() % Long.BYTES == 0
+                && Integer.bitCount(capacity) == 1
+                && capacity > recordCount);
+        assertCondition(SSTableUtils.checksum(section) == metadata.getHashIndexChecksum());
+        return section.asLongBuffer();
+    }
+
+    @NotNull
+    private static long[] readFences(@NotNull final ByteBuffer section,
+                                     final long recordCount,
+                                     @NotNull final TableMetadata metadata) {
+        final int interval = metadata.getFenceInterval();
+        assertCondition(interval > 0
+                && section.remaining() / Long.BYTES == (recordCount + interval - 1) / interval
+                && section.remaining() % Long.BYTES == 0);
+        assertCondition(SSTableUtils.checksum(section) == metadata.getFencesChecksum());
+        final long[] result = new long[section.remaining() / Long.BYTES];
+        section.asLongBuffer().get(result);
+        for (int i = 0; i < result.length; i++) {
+            result[i] ^= Long.MIN_VALUE;
+        }
+        return result;
+    }
+
+    @NotNull
+    private static BloomFilter<ByteBuffer> readPrefixFilter(@NotNull final ByteBuffer section,
+                                                            @NotNull final TableMetadata metadata) throws IOException {
+        assertCondition(SSTableUtils.checksum(section) == metadata.getPrefixFilterChecksum());
+        final byte[] bytes = new byte[section.remaining()];
+        section.get(bytes);
+        return BloomFilter.readFrom(new ByteArrayInputStream(bytes), SSTableUtils.PREFIX_FUNNEL);
+    }
+
+    @NotNull
+    private TableMetadata readMetadata(@NotNull final FileMapping mapping) throws IOException {
+        final ByteBuffer trailer = mapping.size >= TableMetadata.TRAILER_BYTES
+                ? mapping.map(mapping.size - TableMetadata.TRAILER_BYTES, TableMetadata.TRAILER_BYTES)
+                : ByteBuffer.allocate(0);
+        if (!TableMetadata.hasFooter(trailer)) {
+            return readLegacyMetadata(mapping);
+        }
+        final int bodySize = trailer.getInt();
+        assertCondition(bodySize > 0 && bodySize <= mapping.size - TableMetadata.TRAILER_BYTES);
+
+        final int footerSize = bodySize + TableMetadata.TRAILER_BYTES;
+        return TableMetadata.read(mapping.map(mapping.size - footerSize, footerSize));
+    }
+
+    /**
+     * Collects the metadata of a table of the {@link TableMetadata#LEGACY_VERSION} from its records.
+     * Layout: [records][long offsets][long record count], a record is [int key size][key][long timestamp]
+     * followed by [long value size][value] unless it is a tombstone.
+     * The whole layout is validated, so the files of any other format are rejected.
+     */
+    @NotNull
+    private TableMetadata readLegacyMetadata(@NotNull final FileMapping mapping) throws IOException {
+        assertCondition(mapping.size >= Long.BYTES && mapping.size <= MAX_MAPPING_BYTES);
+        final long count = mapping.map(mapping.size - Long.BYTES, Long.BYTES).getLong();
+        assertCondition(count >= 0 && count <= (mapping.size - Long.BYTES) / MIN_RECORD_BYTES);
+        final int end = (int) (mapping.size - Long.BYTES * (count + 1));
+        assertCondition(count > 0 || end == 0);
+        final LongBuffer legacyOffsets = mapping.map(end, Long.BYTES * count).asLongBuffer();
+        final ByteBuffer legacyRecords = mapping.map(0, end);
+
+        final TableMetadata.Builder builder = TableMetadata.builder(file.lastModified());
+        ByteBuffer previousKey = null;
+        for (int i = 0; i < count; i++) {
+            final long start = legacyOffsets.get(i);
+            final long recordEnd = i + 1 == count ? end : legacyOffsets.get(i + 1);
+            assertCondition(i > 0 || start == 0);
+            assertCondition(start + Integer.BYTES + Long.BYTES <= recordEnd && recordEnd <= end);
+            final ByteBuffer record = legacyRecords.duplicate()
+                    .position((int) start)
+                    .limit((int) recordEnd)
+                    .slice();
+            final int keySize = record.getInt();
+            assertCondition(keySize >= 0 && keySize <= record.remaining() - Long.BYTES);
+            final ByteBuffer key = record.duplicate().limit(Integer.BYTES + keySize).slice();
+            assertCondition(previousKey == null || previousKey.compareTo(key) < 0);
+            final long timeStamp = record.position(Integer.BYTES + keySize).getLong();
+            if (timeStamp < 0) {
+                assertCondition(!record.hasRemaining());
+            } else {
+                assertCondition(record.remaining() >= Long.BYTES && record.getLong() == record.remaining());
+            }
+            builder.add(new Item(key, record.slice(), timeStamp));
+            previousKey = key;
+        }
+        return builder.buildLegacy();
+    }
+
+    /**
+     * Maps the records by segments of up to maxSegmentBytes, each one holding whole records.
+     */
+    @NotNull
+    private RecordSource mapSegments(@NotNull final FileMapping mapping) throws IOException {
+        final List<Long> starts = new ArrayList<>();
+        final List<ByteBuffer> segments = new ArrayList<>();
+        long firstRecord = 0;
+        while (firstRecord < recordCount) {
+            final long start = offsets.get((int) firstRecord);
+            // The last record ending within the segment, at least the first one
+            long left = firstRecord + 1;
+            long right = recordCount - 1;
+            while (left <= right) {
+                final long mid = left + (right - left) / 2;
+                if (getRecordEnd(mid) - start <= maxSegmentBytes) {
+                    left = mid + 1;
+                } else {
+                    right = mid - 1;
+                }
+            }
+
+            final long end = getRecordEnd(right);
+            assertCondition(start <= end && end <= recordsEnd);
+            starts.add(start);
+            segments.add(mapping.map(start, end - start));
+            firstRecord = right + 1;
+        }
+        return new MappedRecordSource(starts, segments);
+    }
+
+    private void ensureOpen() {
+        try {
+            open();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open table " + file.getName(), e);
+        }
+    }
+
+    public boolean isOpened() {
+        return opened;
+    }
+
     public File getFile() {
         return file;
     }
 
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Returns the sequence number assigned to all the records on ingestion, zero for a regular table.
+     */
+    public long getGlobalSequence() {
+        return globalSequence;
+    }
+
+    /**
+     * Returns the highest sequence number of the table without opening it, if it is known.
+     */
+    public long getMaxSequence() {
+        if (maxSequence != UNKNOWN_SEQUENCE) {
+            return maxSequence;
+        }
+        return getMetadata().getMaxSequence();
+    }
+
+    @NotNull
+    public TableMetadata getMetadata() {
+        ensureOpen();
+        return metadata;
+    }
+
+    /**
+     * Returns the summary of the table for the manifest.
+     *
+     * @return summary, null if the table has not been opened and the manifest had no summary of it
+     */
+    @Nullable
+    TableSummary getSummary() {
+        return summary;
+    }
+
+    /**
+     * Checks if the key is within the key range of the table, the table is opened only if the range is unknown.
+     *
+     * @param key the key to check
+     * @return false, if the table definitely has no record for the key
+     */
+    public boolean mayContain(@NotNull final ByteBuffer key) {
+        final TableSummary known = summary;
+        if (known != null && known.hasKeyRange()) {
+            return known.mayContain(key);
+        }
+        return getMetadata().mayContain(key);
+    }
+
+    /**
+     * Checks if the table may have keys not less than the given one, the table is opened only if its range is unknown.
+     *
+     * @param from the lower bound (inclusive)
+     * @return false, if all keys of the table are less than "from"
+     */
+    public boolean mayContainFrom(@NotNull final ByteBuffer from) {
+        final TableSummary known = summary;
+        if (known != null && known.hasKeyRange()) {
+            return known.mayContainFrom(from);
+        }
+        return getMetadata().mayContainFrom(from);
+    }
+
+    /**
+     * Checks if the table stores any range tombstone, the table is opened only if the summary is unknown.
+     *
+     * @return false, if the table has no range tombstones
+     */
+    public boolean hasRangeTombstones() {
+        final TableSummary known = summary;
+        if (known != null) {
+            return known.getRangeTombstonesSize() > 0;
+        }
+        return getMetadata().getRangeTombstonesSize() > 0;
+    }
+
+    @NotNull
+    public List<RangeTombstone> getRangeTombstones() {
+        ensureOpen();
+        return rangeTombstones;
+    }
+
+    @NotNull
+    RangeTombstoneIndex getRangeTombstoneIndex() {
+        ensureOpen();
+        return rangeTombstoneIndex;
+    }
+
+    /**
+     * Finds the record for the key.
+     *
+     * @param key    the key to look for
+     * @param verify whether to check the checksum of the found record
+     * @return item stored for the key, null if there is none
+     * @throws UncheckedIOException with {@link CorruptedTableException} if the record is damaged
+     */
+    @Nullable
+    public Item get(@NotNull final ByteBuffer key, final boolean verify) {
+        ensureOpen();
+        if (!metadata.mayContain(key)) {
+            return null;
+        }
+
+        if (hashIndex != null) {
+            final long position = findPosition(key);
+            return position < 0 ? null : getItem(position, verify);
+        }
+
+        final long position = getPosition(key);
+        if (position < recordCount && peekKey(position).equals(key)) {
+            return getItem(position, verify);
+        }
+        return null;
+    }
+
+    /**
+     * Checks if this table has a record for the key.
+     *
+     * @param key the key to look for
+     * @return true, if any version of the key is stored in this table
+     */
+    public boolean contains(@NotNull final ByteBuffer key) {
+        ensureOpen();
+        if (!metadata.mayContain(key)) {
+            return false;
+        }
+        if (hashIndex != null) {
+            return findPosition(key) >= 0;
+        }
+
+        final long position = getPosition(key);
+        return position < recordCount && peekKey(position).equals(key);
+    }
+
+    /**
+     * Checks if this table may have keys starting with the prefix, by its prefix filter if it has one.
+     *
+     * @param prefix the first bytes of the keys
+     * @return false, if the table definitely has no record with the prefix
+     */
+    public boolean mayContainPrefix(@NotNull final ByteBuffer prefix) {
+        ensureOpen();
+        final KeyPrefix filterPrefix = metadata.getFilterPrefix();
+        if (prefixFilter == null || filterPrefix == null) {
+            return true;
+        }
+        // The keys starting with the prefix share its own prefix, unless it is too short to have one
+        final ByteBuffer filtered = filterPrefix.extract(prefix);
+        return filtered == null || prefixFilter.mightContain(filtered);
+    }
+
+    /**
+     * Checks if this table has a record in the range.
+     *
+     * @param from the first key of the range
+     * @param to   the key after the range
+     * @return true, if any key from "from" (inclusive) until "to" (exclusive) is stored in this table
+     */
+    public boolean containsRange(@NotNull final ByteBuffer from, @NotNull final ByteBuffer to) {
+        ensureOpen();
+        if (!metadata.mayContainFrom(from) || metadata.getMinKey().compareTo(to) >= 0) {
+            return false;
+        }
+
+        final long position = getPosition(from);
+        return position < recordCount && peekKey(position).compareTo(to) < 0;
+    }
+
+    /**
+     * Counts the records in the range, the tombstones and the overwritten values included.
+     *
+     * @param from the first key of the range
+     * @param to   the key after the range, null for the end of the table
+     * @return number of the records from "from" (inclusive) until "to" (exclusive)
+     */
+    public long countRecords(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        ensureOpen();
+        final long end = to == null ? recordCount : getPosition(to);
+        return Math.max(end - getPosition(from), 0);
+    }
+
+    /**
+     * Estimates the bytes of the records in the range by their offsets, the records are not read.
+     * The separated values are counted in proportion to the number of the records.
+     *
+     * @param from the first key of the range
+     * @param to   the key after the range, null for the end of the table
+     * @return bytes of the records from "from" (inclusive) until "to" (exclusive)
+     */
+    public long estimateBytes(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        ensureOpen();
+        final long start = getPosition(from);
+        final long end = to == null ? recordCount : getPosition(to);
+        if (end <= start) {
+            return 0;
+        }
+
+        final long recordBytes = (end == recordCount ? recordsEnd : offsets.get((int) end)) - offsets.get((int) start);
+        long separatedBytes = 0;
+        for (final long bytes : metadata.getValueLogBytes().values()) {
+            separatedBytes += bytes;
+        }
+        return recordBytes + (long) ((double) separatedBytes * (end - start) / recordCount);
+    }
+
+    /**
+     * Picks the keys splitting the records in the range into parts of about the same number of records.
+     * The keys are sampled by the offsets of the records, so only the picked records are read.
+     *
+     * @param from  the first key of the range
+     * @param to    the key after the range, null for the end of the table
+     * @param parts number of the parts
+     * @return up to "parts - 1" keys after "from" in ascending order, copied out of the table
+     */
+    @NotNull
+    public List<ByteBuffer> splitKeys(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to, final int parts) {
+        ensureOpen();
+        final long start = getPosition(from);
+        final long end = to == null ? recordCount : getPosition(to);
+        final List<ByteBuffer> result = new ArrayList<>();
+        long previous = start;
+        for (int part = 1; part < parts; part++) {
+            final long position = start + (end - start) * part / parts;
+            if (position > previous) {
+                final ByteBuffer key = peekKey(position);
+                result.add(ByteBuffer.allocate(key.remaining()).put(key).flip());
+                previous = position;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns an iterator over the elements in this table, reading the records one by one.
+     *
+     * @param from   the key with which the iteration begins
+     * @param verify whether to check the checksums of the records
+     * @return iterator throwing UncheckedIOException with {@link CorruptedTableException} on a damaged record
+     */
+    public Iterator<Item> getIterator(final ByteBuffer from, final boolean verify) {
+        return getIterator(from, verify, null);
+    }
+
     /**
      * Returns an iterator over the elements in this table.
      *
-     * @param from the key with which the iteration begins
-     * @return iterator
+     * @param from      the key with which the iteration begins
+     * @param verify    whether to check the checksums of the records
+     * @param readahead prefetch settings for long scans, null to read the records one by one
+     * @return iterator throwing UncheckedIOException with {@link CorruptedTableException} on a damaged record
+     */
+    Iterator<Item> getIterator(final ByteBuffer from,
+                               final boolean verify,
+                               @Nullable final Readahead readahead) {
+        return getIterator(from, verify, readahead, null, false);
+    }
+
+    /**
+     * Returns an iterator over the elements in this table with the keys accepted by the filter.
+     * The filter is evaluated against the keys as stored, the rejected records are not decoded.
+     * Only the heads of the records are read in the keys-only mode, unless the records are short,
+     * so the values are neither read nor verified.
+     *
+     * @param from      the key with which the iteration begins
+     * @param verify    whether to check the checksums of the records, ignored in the keys-only mode
+     * @param readahead prefetch settings for long scans, null to read the records one by one
+     * @param keyFilter filter of the keys, null to accept all of them
+     * @param keysOnly  whether to leave the values out, the items get empty values then
+     * @return iterator throwing UncheckedIOException with {@link CorruptedTableException} on a damaged record
      */
-    public Iterator<Item> getIterator(final ByteBuffer from) {
+    Iterator<Item> getIterator(final ByteBuffer from,
+                               final boolean verify,
+                               @Nullable final Readahead readahead,
+                               @Nullable final Predicate<ByteBuffer> keyFilter,
+                               final boolean keysOnly) {
+        ensureOpen();
+        // The short records are read in whole by the readahead, that's cheaper than a read of each head
+        final boolean headsOnly = keysOnly
+                && (access == TableAccess.MMAP || recordsEnd > recordCount * RecordSource.PEEK_BYTES);
+        final RecordSource.Scan scan = readahead == null || headsOnly
+                ? records::read
+                : records.scan(readahead, recordsEnd);
         return new Iterator<>() {
             long position = getPosition(from);
+            @Nullable
+            Item next;
 
             @Override
             public boolean hasNext() {
-                return position < recordCount;
+                while (next == null && position < recordCount) {
+                    next = read(position++);
+                }
+                return next != null;
             }
 
             @Override
             public Item next() {
-                final Item item = getItem(position);
-                position++;
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final Item item = next;
+                next = null;
                 return item;
             }
+
+            @Nullable
+            private Item read(final long pos) {
+                final long start = offsets.get((int) pos);
+                final long end = getRecordEnd(pos);
+                final ByteBuffer record = headsOnly ? readHead(start, end) : scan.read(start, end);
+                if (keyFilter != null && !keyFilter.test(getKey(record))) {
+                    return null;
+                }
+                return keysOnly ? getKeyItem(record) : getItem(pos, record, verify);
+            }
         };
     }
 
-    private int getRemaining(final int limit) {
-        return (int) (limit - Long.BYTES * (recordCount + 1));
+    /**
+     * Checks the checksums of all the records.
+     *
+     * @param rateLimiter limits the number of bytes read per second
+     * @throws CorruptedTableException if a record is damaged
+     * @throws InterruptedIOException if the thread has been interrupted
+     * @throws IOException if the table can't be opened
+     */
+    public void verify(@NotNull final RateLimiter rateLimiter) throws IOException {
+        open();
+        for (long position = 0; position < recordCount; position++) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Verification of " + file.getName() + " has been interrupted");
+            }
+            final ByteBuffer record = getRecord(position);
+            if (record.hasRemaining()) {
+                rateLimiter.acquire(record.remaining());
+            }
+            checkRecord(position, record);
+        }
+    }
+
+    private void checkRecord(final long position, @NotNull final ByteBuffer record) throws CorruptedTableException {
+        if (checksums != null && SSTableUtils.checksum(record) != checksums.get((int) position)) {
+            throw new CorruptedTableException("Checksum mismatch in " + file.getName() + " at record " + position);
+        }
+    }
+
+    @NotNull
+    private static List<RangeTombstone> readRangeTombstones(@NotNull final ByteBuffer section,
+                                                            final long globalSequence) {
+        if (!section.hasRemaining()) {
+            return Collections.emptyList();
+        }
+
+        final List<RangeTombstone> result = new ArrayList<>();
+        while (section.hasRemaining()) {
+            final ByteBuffer from = readSizedBuffer(section);
+            final ByteBuffer to = readSizedBuffer(section);
+            assertCondition(section.remaining() >= Long.BYTES);
+            final long timeStamp = section.getLong();
+            result.add(new RangeTombstone(from, to, globalSequence == 0 ? timeStamp : globalSequence));
+        }
+        return result;
     }
 
     @NotNull
-    private Item getItem(final long pos) {
-        final ByteBuffer record = getRecord(pos);
+    private static ByteBuffer readSizedBuffer(@NotNull final ByteBuffer section) {
+        assertCondition(section.remaining() >= Integer.BYTES);
+        final int size = section.getInt();
+        assertCondition(size >= 0 && size <= section.remaining());
+        final ByteBuffer result = section.duplicate()
+                .limit(section.position() + size)
+                .slice()
+                .asReadOnlyBuffer();
+        section.position(section.position() + size);
+        return result;
+    }
+
+    @NotNull
+    private Item getItem(final long pos, final boolean verify) {
+        return getItem(pos, getRecord(pos), verify);
+    }
+
+    @NotNull
+    private Item getItem(final long pos, @NotNull final ByteBuffer record, final boolean verify) {
+        if (verify) {
+            try {
+                checkRecord(pos, record);
+            } catch (CorruptedTableException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        final ByteBuffer key = getKey(record);
+        final long timeStamp = getTimeStamp(record);
+        if (timeStamp < 0) {
+            return new Item(key.duplicate(), ByteBuffer.allocate(0), timeStamp);
+        }
+
+        return new Item(
+                key.duplicate(),
+                getValue(record).duplicate(),
+                timeStamp,
+                getExpiresAt(record),
+                getValueSize(record) < 0);
+    }
+
+    /**
+     * Returns the item of the record without its value, the key is copied out of the record.
+     */
+    @NotNull
+    private Item getKeyItem(@NotNull final ByteBuffer record) {
         final ByteBuffer key = getKey(record);
+        final ByteBuffer copy = ByteBuffer.allocate(key.remaining()).put(key).flip();
         final long timeStamp = getTimeStamp(record);
-        final ByteBuffer value = timeStamp >= 0 ? getValue(record) : ByteBuffer.allocate(0);
+        if (timeStamp < 0) {
+            return new Item(copy, ByteBuffer.allocate(0), timeStamp);
+        }
+        return new Item(copy, ByteBuffer.allocate(0), timeStamp, getExpiresAt(record));
+    }
 
-        return new Item(key.duplicate(), value.duplicate(), timeStamp);
+    /**
+     * Returns the record up to its value at least, it may be overwritten by the next read.
+     */
+    @NotNull
+    private ByteBuffer readHead(final long start, final long end) {
+        final ByteBuffer peeked = records.peek(start, end);
+        if (peeked.remaining() == end - start
+                || (peeked.remaining() >= Integer.BYTES
+                && Integer.BYTES + peeked.getInt(peeked.position()) + Long.BYTES * 2 <= peeked.remaining())) {
+            return peeked;
+        }
+        // The key is longer than the quick look
+        return records.read(start, end);
     }
 
     private ByteBuffer getRecord(final long index) {
-        final int intIndex = (int) index;
-        final long offset = offsets.get(intIndex);
-        final long recordLimit = recordCount - index == 1 ? records.limit() : offsets.get(intIndex + 1);
+        return records.read(offsets.get((int) index), getRecordEnd(index));
+    }
 
-        return records.duplicate()
-                .position((int) offset)
-                .limit((int) recordLimit)
-                .slice()
-                .asReadOnlyBuffer();
+    /**
+     * Returns the key of the record for a comparison, it may be overwritten by the next read.
+     */
+    private ByteBuffer peekKey(final long index) {
+        final long start = offsets.get((int) index);
+        final long end = getRecordEnd(index);
+        final ByteBuffer peeked = records.peek(start, end);
+        if (peeked.remaining() >= Integer.BYTES
+                && Integer.BYTES + peeked.getInt(peeked.position()) <= peeked.remaining()) {
+            return getKey(peeked);
+        }
+        // The key is longer than the quick look
+        return getKey(records.read(start, end));
+    }
+
+    /**
+     * Compares the key of the record with the given key starting with the common prefix of the table.
+     * The 8 bytes after the common prefix are compared as a word read in place, the whole keys only if they match.
+     *
+     * @param keyWord the bytes of the given key after the common prefix, packed by {@link SSTableUtils#keyPrefix}
+     */
+    private int compareKey(final long index, @NotNull final ByteBuffer key, final long keyWord) {
+        final long start = offsets.get((int) index);
+        final long end = getRecordEnd(index);
+        final ByteBuffer peeked = records.peek(start, end);
+        if (peeked.remaining() >= Integer.BYTES) {
+            final int keyStart = peeked.position() + Integer.BYTES;
+            final int keySize = peeked.getInt(peeked.position());
+            if (keySize <= peeked.limit() - keyStart) {
+                final long word = SSTableUtils.keyPrefix(peeked, keyStart, keySize, commonPrefix);
+                return word == keyWord ? getKey(peeked).compareTo(key) : Long.compareUnsigned(word, keyWord);
+            }
+        }
+        // The key is longer than the quick look
+        return getKey(records.read(start, end)).compareTo(key);
+    }
+
+    private long getRecordEnd(final long index) {
+        return index + 1 == recordCount ? recordsEnd : offsets.get((int) index + 1);
     }
 
     private ByteBuffer getKey(@NotNull final ByteBuffer record) {
@@ -121,23 +916,95 @@ public class SSTable {
     private ByteBuffer getValue(@NotNull final ByteBuffer record) {
         final ByteBuffer rec = record.duplicate();
         final int keySize = rec.getInt();
-        return rec.position(Integer.BYTES + keySize + Long.BYTES * 2)
+        return rec.position(Integer.BYTES + keySize + Long.BYTES * 2 + expiresAtBytes)
                 .slice()
                 .asReadOnlyBuffer();
     }
 
     private long getTimeStamp(@NotNull final ByteBuffer record) {
         final ByteBuffer rec = record.duplicate();
-        return rec.position(Integer.BYTES + rec.getInt())
+        final long timeStamp = rec.position(Integer.BYTES + rec.getInt())
+                .getLong();
+        if (globalSequence == 0) {
+            return timeStamp;
+        }
+        return timeStamp < 0 ? -globalSequence : globalSequence;
+    }
+
+    private long getExpiresAt(@NotNull final ByteBuffer record) {
+        if (expiresAtBytes == 0) {
+            return Item.NEVER_EXPIRES;
+        }
+        final ByteBuffer rec = record.duplicate();
+        return rec.position(Integer.BYTES + rec.getInt() + Long.BYTES)
                 .getLong();
     }
 
+    /**
+     * Returns the stored size of the value, negative if the value is a pointer to the value log.
+     */
+    private long getValueSize(@NotNull final ByteBuffer record) {
+        final ByteBuffer rec = record.duplicate();
+        return rec.position(Integer.BYTES + rec.getInt() + Long.BYTES + expiresAtBytes)
+                .getLong();
+    }
+
+    /**
+     * Looks the key up in the hash index, the records are read only if the upper half of their hash matches.
+     *
+     * @return number of the record for the key, negative if there is none
+     */
+    private long findPosition(@NotNull final ByteBuffer key) {
+        final LongBuffer slots = hashIndex;
+        final long hash = SSTableUtils.keyHash(key);
+        final long tag = hash & SSTableUtils.HASH_TAG_MASK;
+        final int mask = slots.limit() - 1;
+        int slot = (int) hash & mask;
+        while (true) {
+            final long entry = slots.get(slot);
+            if (entry == 0) {
+                return -1;
+            }
+            if ((entry & SSTableUtils.HASH_TAG_MASK) == tag) {
+                final long position = (entry & ~SSTableUtils.HASH_TAG_MASK) - 1;
+                if (peekKey(position).equals(key)) {
+                    return position;
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Looks for the key by binary search over the records, narrowed down by the fences if the table has them.
+     *
+     * @return number of the record for the key, or of the first record after the key
+     */
     private long getPosition(final ByteBuffer key) {
+        // All the keys starting with the common prefix are between the keys without it
+        if (recordCount > 0 && SSTableUtils.commonPrefix(key, minKey) < commonPrefix) {
+            return key.compareTo(minKey) < 0 ? 0 : recordCount;
+        }
+
+        final long keyWord = SSTableUtils.keyPrefix(key, commonPrefix);
         long left = 0;
         long right = recordCount - 1;
+        if (fences != null) {
+            // The records of the smaller fences are before the key, the ones of the greater fences are after it
+            final long prefix = keyWord ^ Long.MIN_VALUE;
+            final int below = searchFences(prefix, 0, false);
+            final int notAbove = searchFences(prefix, below, true);
+            if (below > 0) {
+                left = (long) (below - 1) * fenceInterval + 1;
+            }
+            if (notAbove < fences.length) {
+                right = (long) notAbove * fenceInterval - 1;
+            }
+        }
+
         while (left <= right) {
             final long mid = left + (right - left) / 2;
-            final int compare = getKey(getRecord(mid)).compareTo(key);
+            final int compare = compareKey(mid, key, keyWord);
             if (compare > 0) {
                 right = mid - 1;
             } else if (compare < 0) {
@@ -149,9 +1016,86 @@ public class SSTable {
         return left;
     }
 
-    private void assertCondition(final boolean b) {
+    /**
+     * Counts the fences less than the prefix, or not greater than it if inclusive.
+     * The search interpolates the position while it halves the range at least, and bisects otherwise,
+     * so uniform keys take a few steps and skewed ones at most twice the steps of the binary search.
+     *
+     * @param from the fences before it are known to be counted
+     */
+    private int searchFences(final long prefix, final int from, final boolean inclusive) {
+        final long[] values = fences;
+        int left = from;
+        int right = values.length - 1;
+        boolean interpolate = true;
+        while (left <= right) {
+            final int width = right - left;
+            final int mid;
+            if (interpolate && values[right] > values[left]) {
+                final double fraction = ((double) prefix - values[left]) / ((double) values[right] - values[left]);
+                mid = left + (int) (width * Math.min(Math.max(fraction, 0), 1));
+            } else {
+                mid = (left + right) >>> 1;
+            }
+            if (values[mid] < prefix || (inclusive && values[mid] == prefix)) {
+                left = mid + 1;
+            } else {
+                right = mid - 1;
+            }
+            interpolate = right - left < width / 2;
+        }
+        return left;
+    }
+
+    private static void assertCondition(final boolean b) {
         if (!b) {
             throw new IllegalArgumentException();
         }
     }
+
+    /**
+     * Maps the parts of a file, the whole file at once if it fits a single buffer.
+     * Without memory mapping the parts are read into the heap.
+     */
+    private static final class FileMapping {
+
+        private final FileChannel fileChannel;
+        private final boolean mmap;
+        private final long size;
+        @Nullable
+        private final ByteBuffer whole;
+
+        FileMapping(@NotNull final FileChannel fileChannel,
+                    final boolean mmap,
+                    final long maxSegmentBytes) throws IOException {
+            this.fileChannel = fileChannel;
+            this.mmap = mmap;
+            this.size = fileChannel.size();
+            this.whole = mmap && size <= maxSegmentBytes ? fileChannel.map(MapMode.READ_ONLY, 0, size) : null;
+        }
+
+        @NotNull
+        ByteBuffer map(final long position, final long length) throws IOException {
+            assertCondition(position >= 0 && length >= 0 && length <= MAX_MAPPING_BYTES && position + length <= size);
+            if (!mmap) {
+                return read(position, (int) length);
+            }
+
+            final ByteBuffer result = whole == null
+                    ? fileChannel.map(MapMode.READ_ONLY, position, length)
+                    : whole.duplicate().position((int) position).limit((int) (position + length)).slice();
+            return result.order(ByteOrder.BIG_ENDIAN);
+        }
+
+        @NotNull
+        private ByteBuffer read(final long position, final int length) throws IOException {
+            final ByteBuffer result = ByteBuffer.allocate(length);
+            while (result.hasRemaining()) {
+                if (fileChannel.read(result, position + result.position()) < 0) {
+                    throw new EOFException();
+                }
+            }
+            return result.flip();
+        }
+    }
 }
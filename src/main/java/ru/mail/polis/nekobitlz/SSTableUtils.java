@@ -1,27 +1,42 @@
 package ru.mail.polis.nekobitlz;
 
+import com.google.common.hash.Funnel;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.file.Files;
+import java.nio.ByteOrder;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
-import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
-import java.util.List;
 import java.util.UUID;
-
-import static java.nio.file.StandardOpenOption.CREATE;
-import static java.nio.file.StandardOpenOption.WRITE;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
 
 public final class SSTableUtils {
 
     public static final String VALID_FILE_EXTENSION = ".dat";
-    private static final String TEMP_FILE_EXTENSION = ".temp";
+    static final String TEMP_FILE_EXTENSION = ".temp";
+    // A table found in the folder but missing from the manifest is renamed to this extension instead of deleted
+    static final String ORPHAN_FILE_EXTENSION = ".orphan";
+    // The upper half of a key hash is stored in the hash index to skip the records with other keys
+    static final long HASH_TAG_MASK = 0xFFFFFFFF00000000L;
+    // Flipping the sign bits of the bytes turns their signed order into the unsigned one
+    private static final long SIGN_BITS = 0x8080808080808080L;
+    private static final Pattern TABLE_FILE_NAME = Pattern.compile(
+            "[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}" + Pattern.quote(VALID_FILE_EXTENSION));
+    private static final Pattern TEMP_FILE_NAME = Pattern.compile(
+            "(" + TABLE_FILE_NAME.pattern() + "|" + Pattern.quote(Manifest.FILE_NAME) + ")"
+                    + Pattern.quote(TEMP_FILE_EXTENSION));
+    private static final HashFunction KEY_HASH = Hashing.murmur3_128();
+    // Share of the absent key prefixes let through by the prefix filters, about 10 bits per prefix
+    static final double PREFIX_FILTER_FPP = 0.01;
+    // Feeds the key prefixes to the prefix filters, a part of the file format
+    static final Funnel<ByteBuffer> PREFIX_FUNNEL = (prefix, into) -> into.putBytes(prefix.duplicate());
 
     private SSTableUtils() {
     }
@@ -39,73 +54,137 @@ public final class SSTableUtils {
                 .endsWith(VALID_FILE_EXTENSION);
     }
 
+    /**
+     * Checks if the file name is the one given by writeTableToDisk.
+     *
+     * @param fileName file name without directory
+     * @return true, if the name is made of a random UUID and VALID_FILE_EXTENSION
+     */
+    public static boolean isTableFileName(@NotNull final String fileName) {
+        return TABLE_FILE_NAME.matcher(fileName).matches();
+    }
+
+    /**
+     * Checks if the file is an unfinished temporary file of a table or of the manifest.
+     *
+     * @param path file path
+     * @return true, if the file name is the one of a table or of the manifest followed by TEMP_FILE_EXTENSION
+     */
+    public static boolean isTempFile(@NotNull final Path path) {
+        return TEMP_FILE_NAME.matcher(path.getFileName().toString()).matches();
+    }
+
     /**
      * Writes new SSTable on disk.
      *
-     * @param items  iterator over the data to be written
-     * @param folder files directory
+     * @param items           iterator over the data to be written
+     * @param rangeTombstones range removals to be written
+     * @param folder          files directory
+     * @param createdAt       creation time of the data in milliseconds
      * @return path of new file
      * @throws IOException if a write error has occurred
      */
     @NotNull
     public static Path writeTableToDisk(@NotNull final Iterator<Item> items,
-                                        @NotNull final File folder) throws IOException {
-        final List<Long> offsets = new ArrayList<>();
-        final String uuid = UUID.randomUUID().toString();
-
-        final String fileName = uuid + TEMP_FILE_EXTENSION;
-        final String fileNameComplete = uuid + VALID_FILE_EXTENSION;
-
-        final Path folderPath = folder.toPath();
-        final Path path = folderPath.resolve(Paths.get(fileName));
-        final Path pathComplete = folderPath.resolve(Paths.get(fileNameComplete));
-
-        long offset = 0;
-        offsets.add(offset);
+                                        @NotNull final Collection<RangeTombstone> rangeTombstones,
+                                        @NotNull final File folder,
+                                        final long createdAt) throws IOException {
+        return writeTableToDisk(items, rangeTombstones, folder, createdAt, null, false, null);
+    }
 
-        try (FileChannel fileChannel = (FileChannel) Files.newByteChannel(path, WRITE, CREATE)) {
+    /**
+     * Writes new SSTable on disk at a limited rate.
+     *
+     * @param items           iterator over the data to be written
+     * @param rangeTombstones range removals to be written
+     * @param folder          files directory
+     * @param createdAt       creation time of the data in milliseconds
+     * @param throttle        write rate limit, null for no limit
+     * @param hashIndex       whether to add the hash index of the keys for the point lookups
+     * @param filterPrefix    the part of the keys to build the prefix filter over, null for no prefix filter
+     * @return path of new file
+     * @throws IOException if a write error has occurred
+     */
+    @NotNull
+    static Path writeTableToDisk(@NotNull final Iterator<Item> items,
+                                 @NotNull final Collection<RangeTombstone> rangeTombstones,
+                                 @NotNull final File folder,
+                                 final long createdAt,
+                                 @Nullable final IoThrottle throttle,
+                                 final boolean hashIndex,
+                                 @Nullable final KeyPrefix filterPrefix) throws IOException {
+        final Path path = newTablePath(folder);
+        try (SSTableWriter writer = new SSTableWriter(path, createdAt, throttle, hashIndex, filterPrefix)) {
             while (items.hasNext()) {
-                final Item currentItem = items.next();
-                writeItemToFile(fileChannel, currentItem);
-                offset += currentItem.getBytesSize();
-                offsets.add(offset);
+                writer.add(items.next());
             }
-            writeOffsetToFile(offsets, fileChannel);
-            Files.move(path, pathComplete, StandardCopyOption.ATOMIC_MOVE);
+            return writer.finish(rangeTombstones);
         }
+    }
 
-        return pathComplete;
+    /**
+     * Picks the path for a new table in the folder.
+     *
+     * @param folder files directory
+     * @return path with a random UUID and VALID_FILE_EXTENSION as the file name
+     */
+    @NotNull
+    public static Path newTablePath(@NotNull final File folder) {
+        return folder.toPath().resolve(UUID.randomUUID() + VALID_FILE_EXTENSION);
     }
 
-    private static void writeItemToFile(final FileChannel fileChannel,
-                                        @NotNull final Item currentItem) throws IOException {
-        final ByteBuffer key = currentItem.getKey();
-        final ByteBuffer value = currentItem.getValue();
-        final ByteBuffer row = ByteBuffer.allocate((int) currentItem.getBytesSize());
+    /**
+     * Hashes the key for the hash index of a table, the hash is a part of the file format.
+     */
+    static long keyHash(@NotNull final ByteBuffer key) {
+        return KEY_HASH.hashBytes(key.duplicate()).asLong();
+    }
 
-        row.putInt(key.remaining())
-                .put(key.duplicate())
-                .putLong(currentItem.getTimeStamp());
+    /**
+     * Packs 8 bytes of the key from the given index into a long, so that unsigned comparison of the packed values
+     * never contradicts the order of the keys. The bytes past the end of the key count as the smallest ones.
+     */
+    static long keyPrefix(@NotNull final ByteBuffer key, final int from) {
+        return keyPrefix(key, key.position(), key.remaining(), from);
+    }
 
-        if (!currentItem.isRemoved()) {
-            row.putLong(value.remaining()).put(value.duplicate());
+    /**
+     * Packs 8 bytes of the key stored in the buffer at the given index, as {@link #keyPrefix(ByteBuffer, int)}.
+     *
+     * @param buffer   buffer holding the key
+     * @param keyStart index of the key in the buffer
+     * @param keySize  size of the key
+     * @param from     index of the first packed byte within the key
+     */
+    static long keyPrefix(@NotNull final ByteBuffer buffer, final int keyStart, final int keySize, final int from) {
+        final int start = keyStart + from;
+        final int end = keyStart + keySize;
+        if (start + Long.BYTES <= end && buffer.order() == ByteOrder.BIG_ENDIAN) {
+            // The keys are ordered by signed bytes
+            return buffer.getLong(start) ^ SIGN_BITS;
         }
 
-        row.flip();
-        fileChannel.write(row);
+        long result = 0;
+        for (int i = start; i < start + Long.BYTES; i++) {
+            result = (result << Byte.SIZE) | (i < end ? (buffer.get(i) ^ 0x80) & 0xFF : 0);
+        }
+        return result;
     }
 
-    private static void writeOffsetToFile(@NotNull final List<Long> offsets,
-                                          final FileChannel fileChannel) throws IOException {
-        final int offsetsCount = offsets.size();
-        final ByteBuffer offsetsByteBuffer = ByteBuffer.allocate(offsetsCount * Long.BYTES);
-        offsets.set(offsetsCount - 1, (long) offsetsCount - 1);
-
-        for (final Long i : offsets) {
-            offsetsByteBuffer.putLong(i);
-        }
+    /**
+     * Returns the number of the leading bytes shared by the keys.
+     */
+    static int commonPrefix(@NotNull final ByteBuffer left, @NotNull final ByteBuffer right) {
+        final int mismatch = left.mismatch(right);
+        return mismatch < 0 ? left.remaining() : mismatch;
+    }
 
-        offsetsByteBuffer.flip();
-        fileChannel.write(offsetsByteBuffer);
+    /**
+     * Computes CRC32C checksum of the remaining bytes without moving the buffer position.
+     */
+    static int checksum(@NotNull final ByteBuffer buffer) {
+        final CRC32C crc = new CRC32C();
+        crc.update(buffer.duplicate());
+        return (int) crc.getValue();
     }
 }
@@ -0,0 +1,378 @@
+package ru.mail.polis.nekobitlz;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.primitives.ImmutableIntArray;
+import com.google.common.primitives.ImmutableLongArray;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Streaming writer of an SSTable file from records in ascending order of the keys.
+ * The records go straight to the file, only their offsets and checksums are kept in memory.
+ * The file is written under a temporary name and gets its final name on {@link #finish()}.
+ *
+ * <p>A standalone table built by {@link #create(Path)} has no sequence numbers of its own,
+ * they are assigned when the table is taken over by {@link DAOImpl#ingest(java.io.File)}.
+ */
+public final class SSTableWriter implements Closeable {
+
+    // All the records of a standalone table share the sequence number
+    static final long STANDALONE_SEQUENCE = 1;
+    // Every such record gets a fence, 0.5 bytes per record
+    static final int FENCE_INTERVAL = 16;
+
+    private final Path path;
+    private final Path tempPath;
+    private final FileChannel fileChannel;
+    private final ImmutableLongArray.Builder offsets = ImmutableLongArray.builder();
+    private final ImmutableIntArray.Builder checksums = ImmutableIntArray.builder();
+    private final TableMetadata.Builder metadata;
+    // Hashes of the keys in the order of the records, null if the table gets no hash index
+    @Nullable
+    private final ImmutableLongArray.Builder keyHashes;
+    // The fenced keys as the length of their common prefix with the first key and 8 bytes after it,
+    // the fences are the 8 bytes after the common prefix of the first and the last keys
+    private final ImmutableIntArray.Builder fenceMismatches = ImmutableIntArray.builder();
+    private final ImmutableLongArray.Builder fenceBytes = ImmutableLongArray.builder();
+    // The distinct prefixes of the keys, the keys sharing a prefix are next to each other
+    @Nullable
+    private final KeyPrefix filterPrefix;
+    private final List<ByteBuffer> prefixes = new ArrayList<>();
+    @Nullable
+    private final IoThrottle throttle;
+    private long offset;
+    private long recordCount;
+    @Nullable
+    private ByteBuffer firstKey;
+    @Nullable
+    private ByteBuffer lastKey;
+    private boolean finished;
+
+    SSTableWriter(@NotNull final Path path,
+                  final long createdAt,
+                  @Nullable final IoThrottle throttle,
+                  final boolean hashIndex,
+                  @Nullable final KeyPrefix filterPrefix) throws IOException {
+        this.path = path;
+        this.tempPath = path.resolveSibling(path.getFileName() + SSTableUtils.TEMP_FILE_EXTENSION);
+        this.fileChannel = FileChannel.open(tempPath, WRITE, CREATE, TRUNCATE_EXISTING);
+        this.metadata = TableMetadata.builder(createdAt);
+        this.throttle = throttle;
+        this.keyHashes = hashIndex ? ImmutableLongArray.builder() : null;
+        this.filterPrefix = filterPrefix;
+    }
+
+    /**
+     * Starts a standalone table.
+     *
+     * @param path destination file, replaced if it exists
+     * @return writer expecting the records in ascending order of the keys
+     * @throws IOException if the file can't be created
+     */
+    @NotNull
+    public static SSTableWriter create(@NotNull final Path path) throws IOException {
+        return new SSTableWriter(path, System.currentTimeMillis(), null, false, null);
+    }
+
+    /**
+     * Appends the value for the key.
+     *
+     * @param key   the key greater than all the written ones
+     * @param value value of the key
+     * @throws IOException if a write error has occurred
+     * @throws IllegalArgumentException if the key is out of order
+     */
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
+        add(new Item(key.duplicate(), value.duplicate(), STANDALONE_SEQUENCE));
+    }
+
+    /**
+     * Appends the removal of the key, it hides the value of the key in the tables ingested before.
+     *
+     * @param key the key greater than all the written ones
+     * @throws IOException if a write error has occurred
+     * @throws IllegalArgumentException if the key is out of order
+     */
+    public void remove(@NotNull final ByteBuffer key) throws IOException {
+        add(new Item(key.duplicate(), ByteBuffer.allocate(0), -STANDALONE_SEQUENCE));
+    }
+
+    void add(@NotNull final Item item) throws IOException {
+        if (finished) {
+            throw new IllegalStateException("The table is finished");
+        }
+        if (lastKey != null && lastKey.compareTo(item.getKey()) >= 0) {
+            throw new IllegalArgumentException("Keys are not in ascending order");
+        }
+
+        offsets.add(offset);
+        checksums.add(writeItem(item));
+        offset += item.getBytesSize();
+        metadata.add(item);
+        if (keyHashes != null) {
+            keyHashes.add(SSTableUtils.keyHash(item.getKey()));
+        }
+        if (filterPrefix != null) {
+            final ByteBuffer prefix = filterPrefix.extract(item.getKey());
+            if (prefix != null && (prefixes.isEmpty() || !prefixes.get(prefixes.size() - 1).equals(prefix))) {
+                prefixes.add(prefix);
+            }
+        }
+        if (firstKey == null) {
+            firstKey = item.getKey();
+        }
+        if (recordCount++ % FENCE_INTERVAL == 0) {
+            final int mismatch = SSTableUtils.commonPrefix(firstKey, item.getKey());
+            fenceMismatches.add(mismatch);
+            fenceBytes.add(SSTableUtils.keyPrefix(item.getKey(), mismatch));
+        }
+        lastKey = item.getKey();
+    }
+
+    /**
+     * Writes the index and the footer and moves the file to its final name.
+     *
+     * @return path of the table
+     * @throws IOException if a write error has occurred
+     */
+    @NotNull
+    public Path finish() throws IOException {
+        return finish(Collections.emptyList());
+    }
+
+    @NotNull
+    Path finish(@NotNull final Collection<RangeTombstone> rangeTombstones) throws IOException {
+        if (finished) {
+            throw new IllegalStateException("The table is finished");
+        }
+
+        writeOffsets();
+        writeChecksums();
+        final CRC32C rangeTombstonesChecksum = new CRC32C();
+        final long rangeTombstonesSize = writeRangeTombstones(rangeTombstones, rangeTombstonesChecksum);
+        for (final RangeTombstone rangeTombstone : rangeTombstones) {
+            metadata.add(rangeTombstone);
+        }
+        final ByteBuffer hashIndex = buildHashIndex();
+        final int hashIndexChecksum = SSTableUtils.checksum(hashIndex);
+        final long hashIndexSize = hashIndex.remaining();
+        write(hashIndex);
+        final ByteBuffer fences = buildFences();
+        final int fencesChecksum = SSTableUtils.checksum(fences);
+        final long fencesSize = fences.remaining();
+        write(fences);
+        final ByteBuffer prefixFilter = buildPrefixFilter();
+        if (filterPrefix != null) {
+            metadata.prefixFilter(filterPrefix, prefixFilter.remaining(), SSTableUtils.checksum(prefixFilter));
+        }
+        write(prefixFilter);
+        writeFooter(metadata.build(
+                rangeTombstonesSize,
+                (int) rangeTombstonesChecksum.getValue(),
+                hashIndexSize,
+                hashIndexChecksum,
+                fencesSize,
+                fencesChecksum));
+        // The contents reach the disk before the name, the manifest only lists the tables synced
+        fileChannel.force(true);
+        fileChannel.close();
+        Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        finished = true;
+        return path;
+    }
+
+    /**
+     * Drops an unfinished table.
+     *
+     * @throws IOException if an I/O error has occurred
+     */
+    @Override
+    public void close() throws IOException {
+        if (!finished) {
+            finished = true;
+            fileChannel.close();
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    /**
+     * Writes the record of the item.
+     *
+     * @return CRC32C checksum of the record
+     */
+    private int writeItem(@NotNull final Item item) throws IOException {
+        final ByteBuffer key = item.getKey();
+        final ByteBuffer value = item.getValue();
+        final ByteBuffer row = ByteBuffer.allocate((int) item.getBytesSize());
+
+        row.putInt(key.remaining())
+                .put(key.duplicate())
+                .putLong(item.getTimeStamp());
+
+        if (!item.isRemoved()) {
+            // A negative size marks a pointer to the value log
+            row.putLong(item.getExpiresAt())
+                    .putLong(item.isSeparated() ? -value.remaining() : value.remaining())
+                    .put(value.duplicate());
+        }
+
+        row.flip();
+        final int checksum = SSTableUtils.checksum(row);
+        write(row);
+        return checksum;
+    }
+
+    private void writeOffsets() throws IOException {
+        final ImmutableLongArray values = offsets.build();
+        final ByteBuffer buffer = ByteBuffer.allocate(values.length() * Long.BYTES);
+        values.forEach(buffer::putLong);
+        write(buffer.flip());
+    }
+
+    private void writeChecksums() throws IOException {
+        final ImmutableIntArray values = checksums.build();
+        final ByteBuffer buffer = ByteBuffer.allocate(values.length() * Integer.BYTES);
+        values.forEach(buffer::putInt);
+        write(buffer.flip());
+    }
+
+    private long writeRangeTombstones(@NotNull final Collection<RangeTombstone> rangeTombstones,
+                                      @NotNull final CRC32C checksum) throws IOException {
+        long size = 0;
+        for (final RangeTombstone rangeTombstone : rangeTombstones) {
+            final ByteBuffer from = rangeTombstone.getFrom();
+            final ByteBuffer to = rangeTombstone.getTo();
+            final ByteBuffer row = ByteBuffer.allocate((int) rangeTombstone.getBytesSize())
+                    .putInt(from.remaining())
+                    .put(from.duplicate())
+                    .putInt(to.remaining())
+                    .put(to.duplicate())
+                    .putLong(rangeTombstone.getTimeStamp())
+                    .flip();
+            size += row.remaining();
+            checksum.update(row.duplicate());
+            write(row);
+        }
+        return size;
+    }
+
+    /**
+     * Builds the open addressing table of the records by the hashes of their keys, at most half full.
+     * Each slot holds the upper half of the hash and the record number plus one, zero marks an empty slot.
+     *
+     * @return the slots, empty if the table gets no hash index
+     */
+    @NotNull
+    private ByteBuffer buildHashIndex() {
+        if (keyHashes == null) {
+            return ByteBuffer.allocate(0);
+        }
+        final ImmutableLongArray hashes = keyHashes.build();
+        if (hashes.isEmpty()) {
+            return ByteBuffer.allocate(0);
+        }
+
+        final int capacity = Integer.highestOneBit(hashes.length() * 2 - 1) << 1;
+        final LongBuffer slots = LongBuffer.allocate(capacity);
+        final int mask = capacity - 1;
+        for (int i = 0; i < hashes.length(); i++) {
+            final long hash = hashes.get(i);
+            int slot = (int) hash & mask;
+            while (slots.get(slot) != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots.put(slot, (hash & SSTableUtils.HASH_TAG_MASK) | (i + 1));
+        }
+
+        final ByteBuffer result = ByteBuffer.allocate(capacity * Long.BYTES);
+        result.asLongBuffer().put(slots.array());
+        return result;
+    }
+
+    /**
+     * Builds the fences of the key search: the 8 bytes after the common prefix of all the keys
+     * of every {@link #FENCE_INTERVAL}-th record, packed by {@link SSTableUtils#keyPrefix(ByteBuffer, int)}.
+     *
+     * @return the fences, empty if the table has no records
+     */
+    @NotNull
+    private ByteBuffer buildFences() {
+        final ImmutableIntArray mismatches = fenceMismatches.build();
+        final ImmutableLongArray bytes = fenceBytes.build();
+        final ByteBuffer result = ByteBuffer.allocate(mismatches.length() * Long.BYTES);
+        if (firstKey == null || lastKey == null) {
+            return result;
+        }
+
+        // The fenced keys share their bytes with the first key up to the mismatch
+        final int commonPrefix = SSTableUtils.commonPrefix(firstKey, lastKey);
+        final long firstKeyPrefix = SSTableUtils.keyPrefix(firstKey, commonPrefix);
+        for (int i = 0; i < mismatches.length(); i++) {
+            final int shared = mismatches.get(i) - commonPrefix;
+            if (shared >= Long.BYTES) {
+                result.putLong(firstKeyPrefix);
+            } else {
+                final long sharedMask = shared == 0 ? 0 : -1L << (Long.SIZE - shared * Byte.SIZE);
+                result.putLong((firstKeyPrefix & sharedMask) | (bytes.get(i) >>> (shared * Byte.SIZE)));
+            }
+        }
+        return result.flip();
+    }
+
+    /**
+     * Builds the Bloom filter of the distinct key prefixes, serialized by {@link BloomFilter#writeTo}.
+     *
+     * @return the filter, empty if the table gets no prefix filter
+     */
+    @NotNull
+    private ByteBuffer buildPrefixFilter() throws IOException {
+        if (filterPrefix == null) {
+            return ByteBuffer.allocate(0);
+        }
+
+        final BloomFilter<ByteBuffer> filter = BloomFilter.create(
+                SSTableUtils.PREFIX_FUNNEL,
+                prefixes.size(),
+                SSTableUtils.PREFIX_FILTER_FPP);
+        prefixes.forEach(filter::put);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        filter.writeTo(out);
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    /**
+     * Writes the footer after all the sections, the table is read starting with it.
+     * The footer holds the statistics of the records, the sizes and the checksums of the sections.
+     */
+    private void writeFooter(@NotNull final TableMetadata footer) throws IOException {
+        write(footer.toByteBuffer());
+    }
+
+    private void write(@NotNull final ByteBuffer buffer) throws IOException {
+        if (throttle != null) {
+            throttle.acquire(buffer.remaining());
+        }
+        while (buffer.hasRemaining()) {
+            fileChannel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package ru.mail.polis.nekobitlz;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+
+/**
+ * Options of {@link DAOImpl#scan(ByteBuffer, ByteBuffer, ScanOptions)}, applied by the storage
+ * before the records are built, so the skipped records cost neither allocations nor value reads.
+ */
+public final class ScanOptions {
+
+    private static final ScanOptions DEFAULT = builder().build();
+
+    @Nullable
+    private final ByteBuffer prefix;
+    @Nullable
+    private final Predicate<ByteBuffer> keyFilter;
+    @Nullable
+    private final BiPredicate<ByteBuffer, ByteBuffer> filter;
+    private final boolean keysOnly;
+    private final int limit;
+
+    private ScanOptions(@NotNull final Builder builder) {
+        this.prefix = builder.prefix;
+        this.keyFilter = builder.keyFilter;
+        this.filter = builder.filter;
+        this.keysOnly = builder.keysOnly;
+        this.limit = builder.limit;
+    }
+
+    @NotNull
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Returns the options of a plain scan.
+     */
+    @NotNull
+    public static ScanOptions defaults() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns the prefix of the scanned keys, null if the keys are not restricted by a prefix.
+     */
+    @Nullable
+    public ByteBuffer getPrefix() {
+        return prefix == null ? null : prefix.asReadOnlyBuffer();
+    }
+
+    @Nullable
+    public Predicate<ByteBuffer> getKeyFilter() {
+        return keyFilter;
+    }
+
+    @Nullable
+    public BiPredicate<ByteBuffer, ByteBuffer> getFilter() {
+        return filter;
+    }
+
+    public boolean isKeysOnly() {
+        return keysOnly;
+    }
+
+    /**
+     * Returns the largest number of the scanned records, Integer.MAX_VALUE if there is no limit.
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    public static final class Builder {
+
+        @Nullable
+        private ByteBuffer prefix;
+        @Nullable
+        private Predicate<ByteBuffer> keyFilter;
+        @Nullable
+        private BiPredicate<ByteBuffer, ByteBuffer> filter;
+        private boolean keysOnly;
+        private int limit = Integer.MAX_VALUE;
+
+        private Builder() {
+        }
+
+        /**
+         * Restricts the scan to the keys starting with the prefix, the range is narrowed down accordingly.
+         *
+         * @param prefix the first bytes of the keys
+         * @return this builder
+         */
+        @NotNull
+        public Builder prefix(@NotNull final ByteBuffer prefix) {
+            this.prefix = ByteBuffer.allocate(prefix.remaining()).put(prefix.duplicate()).flip();
+            return this;
+        }
+
+        /**
+         * Skips the keys rejected by the filter. The filter is evaluated by the table cursors against the keys
+         * as stored, so the rejected records are neither merged nor decoded. It must not keep the keys,
+         * since they are valid during the call only, and it has to give the same answer for the same key.
+         *
+         * @param keyFilter predicate of the read-only keys
+         * @return this builder
+         */
+        @NotNull
+        public Builder keyFilter(@NotNull final Predicate<ByteBuffer> keyFilter) {
+            this.keyFilter = keyFilter;
+            return this;
+        }
+
+        /**
+         * Skips the records rejected by the filter. The filter is evaluated against the latest live value
+         * of each key before the record is built. It must not keep the buffers, which may be reused afterwards.
+         *
+         * @param filter predicate of the read-only key and value
+         * @return this builder
+         */
+        @NotNull
+        public Builder filter(@NotNull final BiPredicate<ByteBuffer, ByteBuffer> filter) {
+            this.filter = filter;
+            return this;
+        }
+
+        /**
+         * Leaves the values out, the records are returned with empty values. The values are not read at all:
+         * neither the separated ones nor the checksums of the records covering them are checked.
+         *
+         * @return this builder
+         */
+        @NotNull
+        public Builder keysOnly() {
+            this.keysOnly = true;
+            return this;
+        }
+
+        /**
+         * Stops the scan after the given number of records.
+         *
+         * @param limit the largest number of the records
+         * @return this builder
+         */
+        @NotNull
+        public Builder limit(final int limit) {
+            if (limit < 0) {
+                throw new IllegalArgumentException("Negative limit: " + limit);
+            }
+            this.limit = limit;
+            return this;
+        }
+
+        /**
+         * Creates the options.
+         *
+         * @return the options
+         * @throws IllegalStateException if the records are filtered by value in the keys-only mode
+         */
+        @NotNull
+        public ScanOptions build() {
+            if (keysOnly && filter != null) {
+                throw new IllegalStateException("The values are not read in the keys-only mode");
+            }
+            return new ScanOptions(this);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package ru.mail.polis.nekobitlz;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.Record;
+import ru.mail.polis.Snapshot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Point-in-time view over the MemTables up to the sequence number pinned at its creation and the tables pinned then.
+ * The time of the creation is used for the expiration checks as well, so the view never changes.
+ */
+final class SnapshotImpl implements Snapshot {
+
+    private final List<MemTable> memTables;
+    private final long sequence;
+    private final List<SSTable> tables;
+    private final long createdAt;
+    private final ReadView view;
+    private boolean closed;
+
+    /**
+     * Creates a view over the MemTables and the tables.
+     *
+     * @param memTables the MemTables with the sequence number pinned for the view
+     * @param sequence  the pinned sequence number, the later changes are not seen
+     * @param tables    tables acquired for the view, from the oldest to the freshest one
+     * @param createdAt time of the creation in milliseconds
+     * @param verify    whether to check the checksums of the records read
+     * @param readahead prefetching of the long scans, null to read on demand
+     * @param metrics   metrics of the reads
+     * @param valueLog  log holding the separated values of the tables
+     */
+    SnapshotImpl(@NotNull final List<MemTable> memTables,
+                 final long sequence,
+                 @NotNull final List<SSTable> tables,
+                 final long createdAt,
+                 final boolean verify,
+                 @Nullable final Readahead readahead,
+                 @NotNull final DAOMetrics metrics,
+                 @NotNull final ValueLog valueLog) {
+        this.memTables = List.copyOf(memTables);
+        this.sequence = sequence;
+        this.tables = List.copyOf(tables);
+        this.createdAt = createdAt;
+        this.view = new ReadView(this.memTables, sequence, this.tables, verify, readahead, metrics, valueLog);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Record> iterator(@NotNull final ByteBuffer from) {
+        return view.iterator(from, createdAt);
+    }
+
+    /**
+     * Provides a stream of the records in the range, a parallel stream reads the parts of the range
+     * split by the keys sampled from the tables. The stream is valid until the snapshot is closed.
+     */
+    @NotNull
+    @Override
+    public Stream<Record> stream(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        if (to != null && from.compareTo(to) > 0) {
+            return Stream.empty();
+        }
+        return StreamSupport.stream(RangeSpliterator.create(view, tables, createdAt, from, to, null), false);
+    }
+
+    @NotNull
+    Iterator<Item> items(@NotNull final ByteBuffer from) {
+        return view.items(from, createdAt);
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws NoSuchElementException {
+        return view.get(key, createdAt);
+    }
+
+    /**
+     * Releases the pinned sequence number and tables, the files removed by compaction meanwhile are deleted here.
+     *
+     * @throws IOException if an I/O error has occurred
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        for (final MemTable memTable : memTables) {
+            memTable.unpin(sequence);
+        }
+        IOException failure = null;
+        for (final SSTable table : tables) {
+            try {
+                table.release();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
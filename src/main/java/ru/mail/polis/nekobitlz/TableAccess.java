@@ -0,0 +1,15 @@
+package ru.mail.polis.nekobitlz;
+
+/**
+ * How the records of the SSTables are read.
+ */
+public enum TableAccess {
+    /**
+     * The files are memory mapped, the records are read by page faults.
+     */
+    MMAP,
+    /**
+     * The records are read by positional reads, the files don't take address space.
+     */
+    PREAD
+}
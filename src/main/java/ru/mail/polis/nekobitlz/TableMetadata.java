@@ -0,0 +1,510 @@
+package ru.mail.polis.nekobitlz;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+/**
+ * Footer of an SSTable file.
+ * Layout: [body][int body size][int body checksum][long magic].
+ * The tables written before the footers were introduced end with the number of the records instead,
+ * their metadata is collected from the records, see {@link Builder#buildLegacy()}.
+ */
+public final class TableMetadata {
+
+    static final int FORMAT_VERSION = 7;
+    // Tables of the original format: no footer, no expiration times of the records
+    static final int LEGACY_VERSION = 0;
+    // Tables of the first version have no checksums of the records and the range tombstones
+    private static final int FIRST_CHECKSUMMED_VERSION = 2;
+    // Tables of the earlier versions hold all the values inline
+    private static final int FIRST_VALUE_LOG_VERSION = 3;
+    private static final int FIRST_HASH_INDEX_VERSION = 4;
+    // Tables of the earlier versions are searched without the fences
+    private static final int FIRST_FENCES_VERSION = 5;
+    private static final int FIRST_PREFIX_FILTER_VERSION = 6;
+    // Tables of the earlier versions don't count their range tombstones
+    private static final int FIRST_RANGE_TOMBSTONE_COUNT_VERSION = 7;
+    static final int TRAILER_BYTES = Integer.BYTES * 2 + Long.BYTES;
+    private static final long MAGIC = 0x4E454B4F4C534D54L;
+
+    private final int formatVersion;
+    private final long createdAt;
+    private final long liveCount;
+    private final long tombstoneCount;
+    private final long minSequence;
+    private final long maxSequence;
+    private final long rangeTombstonesSize;
+    private final int rangeTombstonesChecksum;
+    private final ByteBuffer minKey;
+    private final ByteBuffer maxKey;
+    // Bytes of the value log records referenced by the table, by segment
+    private final SortedMap<Long, Long> valueLogBytes;
+    private final long hashIndexSize;
+    private final int hashIndexChecksum;
+    private final int fenceInterval;
+    private final long fencesSize;
+    private final int fencesChecksum;
+    // The part of the keys the prefix filter is built over, null if the table has no filter
+    @Nullable
+    private final KeyPrefix filterPrefix;
+    private final long prefixFilterSize;
+    private final int prefixFilterChecksum;
+    private final long rangeTombstoneCount;
+
+    private TableMetadata(@NotNull final Builder builder,
+                          final int formatVersion,
+                          final long rangeTombstonesSize,
+                          final int rangeTombstonesChecksum,
+                          final long hashIndexSize,
+                          final int hashIndexChecksum,
+                          final long fencesSize,
+                          final int fencesChecksum) {
+        this.formatVersion = formatVersion;
+        this.createdAt = builder.createdAt;
+        this.liveCount = builder.liveCount;
+        this.tombstoneCount = builder.tombstoneCount;
+        this.minSequence = builder.minSequence == Long.MAX_VALUE ? 0 : builder.minSequence;
+        this.maxSequence = builder.maxSequence;
+        this.rangeTombstonesSize = rangeTombstonesSize;
+        this.rangeTombstonesChecksum = rangeTombstonesChecksum;
+        this.minKey = builder.minKey == null ? ByteBuffer.allocate(0) : builder.minKey;
+        this.maxKey = builder.maxKey == null ? ByteBuffer.allocate(0) : builder.maxKey;
+        this.valueLogBytes = Collections.unmodifiableSortedMap(new TreeMap<>(builder.valueLogBytes));
+        this.hashIndexSize = hashIndexSize;
+        this.hashIndexChecksum = hashIndexChecksum;
+        this.fenceInterval = formatVersion >= FIRST_FENCES_VERSION ? SSTableWriter.FENCE_INTERVAL : 0;
+        this.fencesSize = fencesSize;
+        this.fencesChecksum = fencesChecksum;
+        this.filterPrefix = builder.filterPrefix;
+        this.prefixFilterSize = builder.prefixFilterSize;
+        this.prefixFilterChecksum = builder.prefixFilterChecksum;
+        this.rangeTombstoneCount = builder.rangeTombstoneCount;
+    }
+
+    private TableMetadata(@NotNull final ByteBuffer body) {
+        this.formatVersion = body.getInt();
+        assertCondition(formatVersion > 0 && formatVersion <= FORMAT_VERSION);
+        this.createdAt = body.getLong();
+        this.liveCount = body.getLong();
+        this.tombstoneCount = body.getLong();
+        this.minSequence = body.getLong();
+        this.maxSequence = body.getLong();
+        this.rangeTombstonesSize = body.getLong();
+        this.rangeTombstonesChecksum = hasChecksums() ? body.getInt() : 0;
+        this.minKey = readKey(body);
+        this.maxKey = readKey(body);
+        this.valueLogBytes = formatVersion >= FIRST_VALUE_LOG_VERSION
+                ? readValueLogBytes(body)
+                : Collections.emptySortedMap();
+        if (formatVersion >= FIRST_HASH_INDEX_VERSION) {
+            this.hashIndexSize = body.getLong();
+            this.hashIndexChecksum = body.getInt();
+        } else {
+            this.hashIndexSize = 0;
+            this.hashIndexChecksum = 0;
+        }
+        if (formatVersion >= FIRST_FENCES_VERSION) {
+            this.fenceInterval = body.getInt();
+            this.fencesSize = body.getLong();
+            this.fencesChecksum = body.getInt();
+        } else {
+            this.fenceInterval = 0;
+            this.fencesSize = 0;
+            this.fencesChecksum = 0;
+        }
+        if (formatVersion >= FIRST_PREFIX_FILTER_VERSION) {
+            this.filterPrefix = KeyPrefix.read(body);
+            this.prefixFilterSize = body.getLong();
+            this.prefixFilterChecksum = body.getInt();
+        } else {
+            this.filterPrefix = null;
+            this.prefixFilterSize = 0;
+            this.prefixFilterChecksum = 0;
+        }
+        this.rangeTombstoneCount = formatVersion >= FIRST_RANGE_TOMBSTONE_COUNT_VERSION ? body.getLong() : 0;
+        assertCondition(rangeTombstoneCount >= 0 && (rangeTombstoneCount == 0 || rangeTombstonesSize > 0));
+        assertCondition(liveCount >= 0 && tombstoneCount >= 0 && rangeTombstonesSize >= 0 && hashIndexSize >= 0);
+        assertCondition(fenceInterval >= 0 && fencesSize >= 0);
+        assertCondition(prefixFilterSize >= 0 && (filterPrefix == null) == (prefixFilterSize == 0));
+        assertCondition(minSequence >= 0 && minSequence <= maxSequence);
+    }
+
+    @NotNull
+    static Builder builder(final long createdAt) {
+        return new Builder(createdAt);
+    }
+
+    /**
+     * Checks if the file ends with a footer.
+     *
+     * @param trailer the last {@link #TRAILER_BYTES} bytes of the file
+     * @return false, if the table is of the {@link #LEGACY_VERSION} or the file is not a table
+     */
+    static boolean hasFooter(@NotNull final ByteBuffer trailer) {
+        return trailer.remaining() == TRAILER_BYTES && trailer.getLong(trailer.limit() - Long.BYTES) == MAGIC;
+    }
+
+    /**
+     * Reads the footer at the end of the file contents.
+     *
+     * @param file the whole file contents
+     * @return metadata of the table
+     * @throws IllegalArgumentException if the footer is missing or damaged
+     */
+    @NotNull
+    static TableMetadata read(@NotNull final ByteBuffer file) {
+        final int limit = file.limit();
+        assertCondition(limit >= TRAILER_BYTES && file.getLong(limit - Long.BYTES) == MAGIC);
+
+        final int checksum = file.getInt(limit - Long.BYTES - Integer.BYTES);
+        final int bodySize = file.getInt(limit - TRAILER_BYTES);
+        assertCondition(bodySize > 0 && bodySize <= limit - TRAILER_BYTES);
+
+        final ByteBuffer body = file.duplicate()
+                .position(limit - TRAILER_BYTES - bodySize)
+                .limit(limit - TRAILER_BYTES)
+                .slice();
+        final CRC32C crc = new CRC32C();
+        crc.update(body.duplicate());
+        assertCondition((int) crc.getValue() == checksum);
+
+        return new TableMetadata(body);
+    }
+
+    /**
+     * Serializes the footer.
+     *
+     * @return buffer ready to be written at the end of the file
+     */
+    @NotNull
+    ByteBuffer toByteBuffer() {
+        final int bodySize = getBodySize();
+        final ByteBuffer result = ByteBuffer.allocate(bodySize + TRAILER_BYTES)
+                .putInt(formatVersion)
+                .putLong(createdAt)
+                .putLong(liveCount)
+                .putLong(tombstoneCount)
+                .putLong(minSequence)
+                .putLong(maxSequence)
+                .putLong(rangeTombstonesSize)
+                .putInt(rangeTombstonesChecksum)
+                .putInt(minKey.remaining())
+                .put(minKey.duplicate())
+                .putInt(maxKey.remaining())
+                .put(maxKey.duplicate())
+                .putInt(valueLogBytes.size());
+        for (final Map.Entry<Long, Long> entry : valueLogBytes.entrySet()) {
+            result.putLong(entry.getKey()).putLong(entry.getValue());
+        }
+        result.putLong(hashIndexSize).putInt(hashIndexChecksum);
+        result.putInt(fenceInterval).putLong(fencesSize).putInt(fencesChecksum);
+        KeyPrefix.write(filterPrefix, result);
+        result.putLong(prefixFilterSize).putInt(prefixFilterChecksum);
+        result.putLong(rangeTombstoneCount);
+
+        final CRC32C crc = new CRC32C();
+        crc.update(result.duplicate().flip());
+        return result.putInt(bodySize)
+                .putInt((int) crc.getValue())
+                .putLong(MAGIC)
+                .flip();
+    }
+
+    /**
+     * Returns the size of the footer as stored in the file, just the number of the records for a legacy table.
+     */
+    int getBytesSize() {
+        return formatVersion == LEGACY_VERSION ? Long.BYTES : getBodySize() + TRAILER_BYTES;
+    }
+
+    private int getBodySize() {
+        final int checksumBytes = hasChecksums() ? Integer.BYTES : 0;
+        int size = Integer.BYTES + Long.BYTES * 6 + checksumBytes + Integer.BYTES * 2
+                + minKey.remaining() + maxKey.remaining();
+        if (formatVersion >= FIRST_VALUE_LOG_VERSION) {
+            size += Integer.BYTES + Long.BYTES * 2 * valueLogBytes.size();
+        }
+        if (formatVersion >= FIRST_HASH_INDEX_VERSION) {
+            size += Long.BYTES + Integer.BYTES;
+        }
+        if (formatVersion >= FIRST_FENCES_VERSION) {
+            size += Integer.BYTES + Long.BYTES + Integer.BYTES;
+        }
+        if (formatVersion >= FIRST_PREFIX_FILTER_VERSION) {
+            size += KeyPrefix.BYTES + Long.BYTES + Integer.BYTES;
+        }
+        if (formatVersion >= FIRST_RANGE_TOMBSTONE_COUNT_VERSION) {
+            size += Long.BYTES;
+        }
+        return size;
+    }
+
+    /**
+     * Checks if the table stores checksums of its records and range tombstones.
+     */
+    public boolean hasChecksums() {
+        return formatVersion >= FIRST_CHECKSUMMED_VERSION;
+    }
+
+    public int getFormatVersion() {
+        return formatVersion;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public long getRecordCount() {
+        return liveCount + tombstoneCount;
+    }
+
+    public long getLiveCount() {
+        return liveCount;
+    }
+
+    public long getTombstoneCount() {
+        return tombstoneCount;
+    }
+
+    public long getMinSequence() {
+        return minSequence;
+    }
+
+    public long getMaxSequence() {
+        return maxSequence;
+    }
+
+    public long getRangeTombstonesSize() {
+        return rangeTombstonesSize;
+    }
+
+    public int getRangeTombstonesChecksum() {
+        return rangeTombstonesChecksum;
+    }
+
+    /**
+     * Returns the number of the range tombstones, zero for the tables of the earlier versions.
+     */
+    public long getRangeTombstoneCount() {
+        return rangeTombstoneCount;
+    }
+
+    /**
+     * Returns the size of the hash index of the keys, zero if the table has none.
+     */
+    public long getHashIndexSize() {
+        return hashIndexSize;
+    }
+
+    public int getHashIndexChecksum() {
+        return hashIndexChecksum;
+    }
+
+    /**
+     * Returns the number of the records per fence, zero if the table has no fences.
+     */
+    public int getFenceInterval() {
+        return fenceInterval;
+    }
+
+    /**
+     * Returns the size of the fences of the key search, zero if the table has none.
+     */
+    public long getFencesSize() {
+        return fencesSize;
+    }
+
+    public int getFencesChecksum() {
+        return fencesChecksum;
+    }
+
+    /**
+     * Returns the part of the keys the prefix filter is built over, null if the table has no prefix filter.
+     */
+    @Nullable
+    public KeyPrefix getFilterPrefix() {
+        return filterPrefix;
+    }
+
+    /**
+     * Returns the size of the Bloom filter of the key prefixes, zero if the table has none.
+     */
+    public long getPrefixFilterSize() {
+        return prefixFilterSize;
+    }
+
+    public int getPrefixFilterChecksum() {
+        return prefixFilterChecksum;
+    }
+
+    public ByteBuffer getMinKey() {
+        return minKey.asReadOnlyBuffer();
+    }
+
+    public ByteBuffer getMaxKey() {
+        return maxKey.asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the bytes of the value log records referenced by the table.
+     *
+     * @return sizes by segment number, empty if all the values are inline
+     */
+    @NotNull
+    public SortedMap<Long, Long> getValueLogBytes() {
+        return valueLogBytes;
+    }
+
+    /**
+     * Returns the share of tombstones among the records of the table, a range tombstone counts as one.
+     *
+     * @return value between 0 and 1
+     */
+    public double getTombstoneRatio() {
+        final long count = getRecordCount() + rangeTombstoneCount;
+        return count == 0 ? 0 : (double) (tombstoneCount + rangeTombstoneCount) / count;
+    }
+
+    /**
+     * Checks if the key is within the key range of the table.
+     *
+     * @param key the key to check
+     * @return false, if the table definitely has no record for the key
+     */
+    public boolean mayContain(@NotNull final ByteBuffer key) {
+        return getRecordCount() > 0 && minKey.compareTo(key) <= 0 && key.compareTo(maxKey) <= 0;
+    }
+
+    /**
+     * Checks if the table may have keys not less than the given one.
+     *
+     * @param from the lower bound (inclusive)
+     * @return false, if all keys of the table are less than "from"
+     */
+    public boolean mayContainFrom(@NotNull final ByteBuffer from) {
+        return getRecordCount() > 0 && from.compareTo(maxKey) <= 0;
+    }
+
+    @NotNull
+    private static ByteBuffer readKey(@NotNull final ByteBuffer body) {
+        final int size = body.getInt();
+        assertCondition(size >= 0 && size <= body.remaining());
+        final ByteBuffer result = ByteBuffer.allocate(size);
+        result.put(body.duplicate().limit(body.position() + size)).flip();
+        body.position(body.position() + size);
+        return result;
+    }
+
+    @NotNull
+    private static SortedMap<Long, Long> readValueLogBytes(@NotNull final ByteBuffer body) {
+        final int count = body.getInt();
+        assertCondition(count >= 0 && count <= body.remaining() / (Long.BYTES * 2));
+        final SortedMap<Long, Long> result = new TreeMap<>();
+        for (int i = 0; i < count; i++) {
+            final long segment = body.getLong();
+            final long bytes = body.getLong();
+            assertCondition(segment >= 0 && bytes > 0);
+            result.put(segment, bytes);
+        }
+        return Collections.unmodifiableSortedMap(result);
+    }
+
+    private static void assertCondition(final boolean b) {
+        if (!b) {
+            throw new IllegalArgumentException();
+        }
+    }
+
+    /**
+     * Collects the statistics of the records written in ascending order.
+     */
+    static final class Builder {
+
+        private final long createdAt;
+        private final SortedMap<Long, Long> valueLogBytes = new TreeMap<>();
+        private long liveCount;
+        private long tombstoneCount;
+        private long minSequence = Long.MAX_VALUE;
+        private long maxSequence;
+        private ByteBuffer minKey;
+        private ByteBuffer maxKey;
+        @Nullable
+        private KeyPrefix filterPrefix;
+        private long prefixFilterSize;
+        private int prefixFilterChecksum;
+        private long rangeTombstoneCount;
+
+        private Builder(final long createdAt) {
+            this.createdAt = createdAt;
+        }
+
+        void add(@NotNull final Item item) {
+            if (minKey == null) {
+                minKey = item.getKey().duplicate();
+            }
+            maxKey = item.getKey().duplicate();
+            if (item.isRemoved()) {
+                tombstoneCount++;
+            } else {
+                liveCount++;
+            }
+            addSequence(item.getTimeStampAbs());
+            if (item.isSeparated()) {
+                final ByteBuffer pointer = item.getValue();
+                valueLogBytes.merge(ValueLog.getSegment(pointer), (long) ValueLog.getLength(pointer), Long::sum);
+            }
+        }
+
+        void add(@NotNull final RangeTombstone rangeTombstone) {
+            rangeTombstoneCount++;
+            addSequence(rangeTombstone.getTimeStamp());
+        }
+
+        /**
+         * Describes the prefix filter section, the table has none unless this is called.
+         */
+        void prefixFilter(@NotNull final KeyPrefix prefix, final long size, final int checksum) {
+            this.filterPrefix = prefix;
+            this.prefixFilterSize = size;
+            this.prefixFilterChecksum = checksum;
+        }
+
+        @NotNull
+        TableMetadata build(final long rangeTombstonesSize,
+                            final int rangeTombstonesChecksum,
+                            final long hashIndexSize,
+                            final int hashIndexChecksum,
+                            final long fencesSize,
+                            final int fencesChecksum) {
+            return new TableMetadata(
+                    this,
+                    FORMAT_VERSION,
+                    rangeTombstonesSize,
+                    rangeTombstonesChecksum,
+                    hashIndexSize,
+                    hashIndexChecksum,
+                    fencesSize,
+                    fencesChecksum);
+        }
+
+        /**
+         * Describes a table of the {@link #LEGACY_VERSION} by the statistics of its records.
+         */
+        @NotNull
+        TableMetadata buildLegacy() {
+            return new TableMetadata(this, LEGACY_VERSION, 0, 0, 0, 0, 0, 0);
+        }
+
+        private void addSequence(final long sequence) {
+            minSequence = Math.min(minSequence, sequence);
+            maxSequence = Math.max(maxSequence, sequence);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package ru.mail.polis.nekobitlz;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The part of the metadata of a table kept in the manifest, so the reads skip the table without opening it.
+ * The keys longer than {@link #MAX_KEY_BYTES} are not kept, the table is opened to check them.
+ */
+final class TableSummary {
+
+    // Longer keys would make the manifest, read and rewritten as a whole, too large
+    static final int MAX_KEY_BYTES = 128;
+
+    private final long recordCount;
+    private final long rangeTombstonesSize;
+    @Nullable
+    private final ByteBuffer minKey;
+    @Nullable
+    private final ByteBuffer maxKey;
+
+    TableSummary(final long recordCount,
+                 final long rangeTombstonesSize,
+                 @Nullable final ByteBuffer minKey,
+                 @Nullable final ByteBuffer maxKey) {
+        this.recordCount = recordCount;
+        this.rangeTombstonesSize = rangeTombstonesSize;
+        this.minKey = minKey;
+        this.maxKey = maxKey;
+    }
+
+    /**
+     * Summarizes the metadata read from the footer of a table.
+     *
+     * @param metadata metadata of the table
+     * @return summary with the keys, unless they are too long
+     */
+    @NotNull
+    static TableSummary of(@NotNull final TableMetadata metadata) {
+        return new TableSummary(
+                metadata.getRecordCount(),
+                metadata.getRangeTombstonesSize(),
+                shortKey(metadata.getMinKey()),
+                shortKey(metadata.getMaxKey()));
+    }
+
+    long getRecordCount() {
+        return recordCount;
+    }
+
+    long getRangeTombstonesSize() {
+        return rangeTombstonesSize;
+    }
+
+    /**
+     * Returns the smallest key of the table, null if it is not kept.
+     */
+    @Nullable
+    ByteBuffer getMinKey() {
+        return minKey == null ? null : minKey.asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the largest key of the table, null if it is not kept.
+     */
+    @Nullable
+    ByteBuffer getMaxKey() {
+        return maxKey == null ? null : maxKey.asReadOnlyBuffer();
+    }
+
+    /**
+     * Checks if the key range of the table is known, the keys are kept or the table has no records.
+     */
+    boolean hasKeyRange() {
+        return recordCount == 0 || (minKey != null && maxKey != null);
+    }
+
+    /**
+     * Checks the key against the key range as {@link TableMetadata#mayContain(ByteBuffer)} does.
+     *
+     * @param key the key to check
+     * @return false, if the table definitely has no record for the key
+     */
+    boolean mayContain(@NotNull final ByteBuffer key) {
+        assert hasKeyRange();
+        return recordCount > 0 && minKey.compareTo(key) <= 0 && key.compareTo(maxKey) <= 0;
+    }
+
+    /**
+     * Checks the key against the key range as {@link TableMetadata#mayContainFrom(ByteBuffer)} does.
+     *
+     * @param from the lower bound (inclusive)
+     * @return false, if all keys of the table are less than "from"
+     */
+    boolean mayContainFrom(@NotNull final ByteBuffer from) {
+        assert hasKeyRange();
+        return recordCount > 0 && from.compareTo(maxKey) <= 0;
+    }
+
+    @Nullable
+    private static ByteBuffer shortKey(@NotNull final ByteBuffer key) {
+        return key.remaining() <= MAX_KEY_BYTES ? key : null;
+    }
+}
@@ -0,0 +1,375 @@
+package ru.mail.polis.nekobitlz;
+
+import com.google.common.base.Strings;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Append-only log of the large values. The tables hold pointers to the records of the log instead of the values,
+ * so compaction moves the pointers only.
+ * The log consists of numbered segments, the records are appended to the last one until it outgrows the segment size.
+ * A segment is deleted once no table points to it, the live values of a segment are moved by compaction.
+ * Record layout: [int key size][key][int value size][value][int CRC32C of the preceding bytes].
+ * Pointer layout: [long segment][long offset][int record size].
+ */
+final class ValueLog implements Closeable {
+
+    static final String FILE_EXTENSION = ".vlog";
+    private static final Pattern FILE_NAME = Pattern.compile("[0-9]{16}" + Pattern.quote(FILE_EXTENSION));
+    private static final int POINTER_BYTES = Long.BYTES * 2 + Integer.BYTES;
+    private static final int RECORD_OVERHEAD = Integer.BYTES * 3;
+
+    private final File folder;
+    private final int minValueBytes;
+    private final long segmentBytes;
+    private final DAOMetrics metrics;
+    private final ConcurrentMap<Long, Segment> segments = new ConcurrentHashMap<>();
+    // The segment being appended to, created on the first append after the start
+    @Nullable
+    private Segment head;
+    private long nextSegment;
+
+    /**
+     * Opens the segments of the folder, the new records go to a new segment.
+     *
+     * @param folder        files directory
+     * @param minValueBytes the smallest value moved to the log, zero to keep all the values inline
+     * @param segmentBytes  size from which a new segment is started
+     * @param files         regular files of the folder
+     * @param metrics       receiver of the written and reclaimed bytes
+     * @throws IOException if a segment can't be opened
+     */
+    ValueLog(@NotNull final File folder,
+             final int minValueBytes,
+             final long segmentBytes,
+             @NotNull final List<Path> files,
+             @NotNull final DAOMetrics metrics) throws IOException {
+        this.folder = folder;
+        this.minValueBytes = minValueBytes;
+        this.segmentBytes = segmentBytes;
+        this.metrics = metrics;
+        for (final Path path : files) {
+            final String fileName = path.getFileName().toString();
+            if (FILE_NAME.matcher(fileName).matches()) {
+                final long id = Long.parseLong(fileName.substring(0, fileName.length() - FILE_EXTENSION.length()));
+                segments.put(id, new Segment(id, path, FileChannel.open(path, READ)));
+                nextSegment = Math.max(nextSegment, id + 1);
+            }
+        }
+    }
+
+    static long getSegment(@NotNull final ByteBuffer pointer) {
+        return pointer.getLong(pointer.position());
+    }
+
+    private static long getOffset(@NotNull final ByteBuffer pointer) {
+        return pointer.getLong(pointer.position() + Long.BYTES);
+    }
+
+    static int getLength(@NotNull final ByteBuffer pointer) {
+        return pointer.getInt(pointer.position() + Long.BYTES * 2);
+    }
+
+    /**
+     * Moves the value of the item to the log, if the value is large enough.
+     *
+     * @param item     item to be written to a table
+     * @param throttle write rate limit, null for no limit
+     * @return item pointing to its value, the same item if the value stays inline
+     * @throws IOException if a write error has occurred
+     */
+    @NotNull
+    Item separate(@NotNull final Item item, @Nullable final IoThrottle throttle) throws IOException {
+        if (minValueBytes == 0
+                || item.isRemoved()
+                || item.isSeparated()
+                || item.getValue().remaining() < minValueBytes) {
+            return item;
+        }
+        return item.withValue(append(item.getKey(), item.getValue(), throttle), true);
+    }
+
+    /**
+     * Reads the value the item points to.
+     *
+     * @param item   item read from a table
+     * @param verify whether to check the checksum of the record
+     * @return item holding its value, the same item if the value is inline
+     * @throws UncheckedIOException with {@link CorruptedTableException} if the record is damaged or missing
+     */
+    @NotNull
+    Item resolve(@NotNull final Item item, final boolean verify) {
+        if (!item.isSeparated()) {
+            return item;
+        }
+        try {
+            return item.withValue(read(item.getKey(), item.getValue(), verify), false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Moves the value of the item to the head of the log, if it is stored in one of the given segments.
+     *
+     * @param item     item to be written to a table
+     * @param from     numbers of the segments to be emptied
+     * @param throttle write rate limit, null for no limit
+     * @return item pointing to the moved value, the same item if the value stays in place
+     * @throws IOException if a read or write error has occurred
+     */
+    @NotNull
+    Item relocate(@NotNull final Item item,
+                  @NotNull final Set<Long> from,
+                  @Nullable final IoThrottle throttle) throws IOException {
+        if (!item.isSeparated() || !from.contains(getSegment(item.getValue()))) {
+            return item;
+        }
+        final ByteBuffer value = read(item.getKey(), item.getValue(), true);
+        return item.withValue(append(item.getKey(), value, throttle), true);
+    }
+
+    /**
+     * Returns the segments which are not appended to anymore.
+     *
+     * @return sizes of the segments by number
+     */
+    @NotNull
+    synchronized Map<Long, Long> getSealedSegments() {
+        final Map<Long, Long> result = new HashMap<>();
+        for (final Segment segment : segments.values()) {
+            if (segment != head) {
+                result.put(segment.id, segment.size);
+            }
+        }
+        return result;
+    }
+
+    boolean isEmpty() {
+        return segments.isEmpty();
+    }
+
+    /**
+     * Deletes the segments nobody points to, the head included. No append may be in progress,
+     * since the pointers to the appended records are not registered in the tables yet.
+     *
+     * @param referenced numbers of the segments the tables point to
+     * @throws IOException if a segment can't be deleted
+     */
+    synchronized void deleteUnreferenced(@NotNull final Set<Long> referenced) throws IOException {
+        for (final Iterator<Segment> iterator = segments.values().iterator(); iterator.hasNext(); ) {
+            final Segment segment = iterator.next();
+            if (!referenced.contains(segment.id)) {
+                iterator.remove();
+                segment.delete();
+                metrics.recordValueLogReclaimed(segment.size);
+                if (segment == head) {
+                    head = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Forces the appended records to the disk, so the tables pointing to them may be listed in the manifest.
+     *
+     * @throws IOException if an I/O error has occurred
+     */
+    synchronized void sync() throws IOException {
+        if (head != null) {
+            head.sync();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (final Segment segment : segments.values()) {
+            segment.close();
+        }
+    }
+
+    @NotNull
+    private synchronized ByteBuffer append(@NotNull final ByteBuffer key,
+                                           @NotNull final ByteBuffer value,
+                                           @Nullable final IoThrottle throttle) throws IOException {
+        final int length = RECORD_OVERHEAD + key.remaining() + value.remaining();
+        if (head == null || (head.size > 0 && head.size + length > segmentBytes)) {
+            startSegment();
+        }
+
+        final ByteBuffer record = ByteBuffer.allocate(length)
+                .putInt(key.remaining())
+                .put(key.duplicate())
+                .putInt(value.remaining())
+                .put(value.duplicate());
+        record.putInt(SSTableUtils.checksum(record.duplicate().flip()))
+                .flip();
+        if (throttle != null) {
+            throttle.acquire(length);
+        }
+        final long offset = head.append(record);
+        metrics.recordValueLogWrite(length);
+        return ByteBuffer.allocate(POINTER_BYTES)
+                .putLong(head.id)
+                .putLong(offset)
+                .putInt(length)
+                .flip();
+    }
+
+    private void startSegment() throws IOException {
+        if (head != null) {
+            head.seal();
+        }
+        final long id = nextSegment++;
+        final Path path = folder.toPath().resolve(Strings.padStart(Long.toString(id), 16, '0') + FILE_EXTENSION);
+        final FileChannel writeChannel = FileChannel.open(path, WRITE, CREATE_NEW);
+        final Segment segment = new Segment(id, path, FileChannel.open(path, READ));
+        segment.writeChannel = writeChannel;
+        segments.put(id, segment);
+        head = segment;
+    }
+
+    @NotNull
+    private ByteBuffer read(@NotNull final ByteBuffer key,
+                            @NotNull final ByteBuffer pointer,
+                            final boolean verify) throws IOException {
+        final long id = getSegment(pointer);
+        final long offset = getOffset(pointer);
+        final Segment segment = segments.get(id);
+        if (segment == null) {
+            throw new CorruptedTableException("Missing value log segment " + id);
+        }
+
+        final ByteBuffer record = segment.read(offset, getLength(pointer));
+        final int keySize = record.getInt(0);
+        final int valueStart = Integer.BYTES * 2 + keySize;
+        if (keySize != key.remaining()
+                || RECORD_OVERHEAD + keySize > record.limit()
+                || valueStart + record.getInt(Integer.BYTES + keySize) + Integer.BYTES != record.limit()
+                || !record.duplicate().position(Integer.BYTES).limit(Integer.BYTES + keySize).equals(key)) {
+            throw new CorruptedTableException("Value log record doesn't match the key in " + segment.path.getFileName()
+                    + " at " + offset);
+        }
+        final int checksumStart = record.limit() - Integer.BYTES;
+        if (verify && SSTableUtils.checksum(record.duplicate().limit(checksumStart)) != record.getInt(checksumStart)) {
+            throw new CorruptedTableException("Checksum mismatch in " + segment.path.getFileName() + " at " + offset);
+        }
+        return record.position(valueStart)
+                .limit(checksumStart)
+                .slice()
+                .asReadOnlyBuffer();
+    }
+
+    /**
+     * Segment file, read by positional reads.
+     */
+    private static final class Segment {
+
+        private final long id;
+        private final Path path;
+        private volatile FileChannel readChannel;
+        // Open while the segment is the head of the log
+        @Nullable
+        private FileChannel writeChannel;
+        private volatile long size;
+        private volatile boolean closed;
+
+        Segment(final long id, @NotNull final Path path, @NotNull final FileChannel readChannel) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.readChannel = readChannel;
+            this.size = readChannel.size();
+        }
+
+        long append(@NotNull final ByteBuffer record) throws IOException {
+            final long offset = size;
+            long position = offset;
+            while (record.hasRemaining()) {
+                position += writeChannel.write(record, position);
+            }
+            size = position;
+            return offset;
+        }
+
+        void sync() throws IOException {
+            if (writeChannel != null) {
+                writeChannel.force(true);
+            }
+        }
+
+        void seal() throws IOException {
+            if (writeChannel != null) {
+                writeChannel.force(true);
+                writeChannel.close();
+                writeChannel = null;
+            }
+        }
+
+        @NotNull
+        ByteBuffer read(final long offset, final int length) throws IOException {
+            final ByteBuffer result = ByteBuffer.allocate(length);
+            while (true) {
+                final FileChannel current = readChannel;
+                try {
+                    while (result.hasRemaining()) {
+                        if (current.read(result, offset + result.position()) < 0) {
+                            throw new EOFException("Unexpected end of " + path.getFileName());
+                        }
+                    }
+                    return result.flip();
+                } catch (ClosedByInterruptException e) {
+                    // The interrupt of a reader closes the channel for everyone
+                    reopen(current);
+                    throw e;
+                } catch (ClosedChannelException e) {
+                    if (closed) {
+                        throw e;
+                    }
+                    reopen(current);
+                    result.clear();
+                }
+            }
+        }
+
+        private synchronized void reopen(@NotNull final FileChannel stale) throws IOException {
+            if (!closed && readChannel == stale) {
+                readChannel = FileChannel.open(path, READ);
+            }
+        }
+
+        synchronized void close() throws IOException {
+            closed = true;
+            seal();
+            readChannel.close();
+        }
+
+        void delete() throws IOException {
+            close();
+            Files.deleteIfExists(path);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package ru.mail.polis.nekobitlz;
+
+import com.google.common.util.concurrent.RateLimiter;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.function.IntSupplier;
+
+/**
+ * Holds the writes back while compaction is behind the flushes.
+ * Past the soft limit on the number of tables the writes are slowed down,
+ * the rate falls linearly from the configured one to zero at the hard limit.
+ * At the hard limit the flushes wait until compaction replaces some of the tables,
+ * so the writes go on until the MemTable is full and then wait for the flush.
+ */
+final class WriteStall {
+
+    // The waiting flushes recheck the tables, in case compaction has failed and needs to be scheduled again
+    private static final long WAIT_MILLIS = 100;
+
+    private final int softLimit;
+    private final int hardLimit;
+    private final long bytesPerSecond;
+    private final IntSupplier tableCount;
+    private final DAOMetrics metrics;
+    private final RateLimiter rateLimiter = RateLimiter.create(Double.MAX_VALUE);
+    private final Object monitor = new Object();
+    private volatile boolean closed;
+
+    /**
+     * Creates the stall control.
+     *
+     * @param softLimit      number of tables from which the writes are slowed down
+     * @param hardLimit      number of tables at which the writes stop
+     * @param bytesPerSecond write rate right past the soft limit
+     * @param tableCount     source of the number of tables
+     * @param metrics        receiver of the stall times
+     */
+    WriteStall(final int softLimit,
+               final int hardLimit,
+               final long bytesPerSecond,
+               @NotNull final IntSupplier tableCount,
+               @NotNull final DAOMetrics metrics) {
+        this.softLimit = softLimit;
+        this.hardLimit = hardLimit;
+        this.bytesPerSecond = bytesPerSecond;
+        this.tableCount = tableCount;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Slows down a change of the given size past the soft limit.
+     *
+     * @param bytes size of the change
+     */
+    void await(final long bytes) {
+        final int tables = tableCount.getAsInt();
+        // At the hard limit the flush stops instead
+        if (tables <= softLimit || tables >= hardLimit) {
+            return;
+        }
+
+        final long start = System.nanoTime();
+        final double rate = (double) bytesPerSecond * (hardLimit - tables) / (hardLimit - softLimit);
+        if (rateLimiter.getRate() != rate) {
+            rateLimiter.setRate(rate);
+        }
+        rateLimiter.acquire((int) Math.min(Math.max(bytes, 1), Integer.MAX_VALUE));
+        metrics.recordWriteSlowdown(System.nanoTime() - start);
+    }
+
+    /**
+     * Checks if the flushes have to wait for compaction.
+     */
+    boolean isStopped() {
+        return tableCount.getAsInt() >= hardLimit;
+    }
+
+    /**
+     * Waits until a flush may add a table, there are fewer tables than the hard limit.
+     *
+     * @param compaction schedules compaction, called while the flushes are stopped
+     * @throws IOException if the DAO is closed or the thread is interrupted meanwhile
+     */
+    void awaitFlush(@NotNull final Runnable compaction) throws IOException {
+        if (!isStopped()) {
+            return;
+        }
+
+        final long start = System.nanoTime();
+        try {
+            awaitCompaction(compaction);
+        } finally {
+            metrics.recordWriteStop(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Wakes up the stopped flushes, called whenever compaction has reduced the number of tables.
+     */
+    void tablesRemoved() {
+        synchronized (monitor) {
+            monitor.notifyAll();
+        }
+    }
+
+    /**
+     * Fails the stopped flushes and the ones to come, the DAO is closed.
+     */
+    void close() {
+        closed = true;
+        tablesRemoved();
+    }
+
+    /**
+     * Waits until there are fewer tables than the hard limit.
+     */
+    private void awaitCompaction(@NotNull final Runnable compaction) throws IOException {
+        synchronized (monitor) {
+            while (true) {
+                if (closed) {
+                    throw new IOException("The DAO is closed");
+                }
+                if (!isStopped()) {
+                    return;
+                }
+                compaction.run();
+                try {
+                    monitor.wait(WAIT_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for compaction");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.nekobitlz.DAOConfig;
+import ru.mail.polis.nekobitlz.DAOImpl;
+import ru.mail.polis.nekobitlz.TableAccess;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Damaged storage tests for {@link DAO} implementations.
+ */
+class CorruptionTest extends TestBase {
+    private static final int VALUE_SIZE = 64 * 1024;
+
+    @Test
+    void detectOnGet(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomBuffer(VALUE_SIZE);
+
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, value);
+        }
+
+        damage(data);
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertThrows(UncheckedIOException.class, () -> dao.get(key));
+        }
+    }
+
+    @Test
+    void detectOnCompact(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomBuffer(VALUE_SIZE);
+
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, value);
+        }
+
+        damage(data);
+
+        final ByteBuffer otherKey = randomKey();
+        final ByteBuffer otherValue = randomValue();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(otherKey, otherValue);
+            assertThrows(IOException.class, dao::compact);
+        }
+
+        // The failed compaction neither loses nor hides anything
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(otherValue, dao.get(otherKey));
+            assertThrows(UncheckedIOException.class, () -> dao.get(key));
+        }
+    }
+
+    @Test
+    void detectOnPreadGet(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomBuffer(VALUE_SIZE);
+
+        try (DAO dao = openPread(data)) {
+            dao.upsert(key, value);
+        }
+
+        damage(data);
+
+        try (DAO dao = openPread(data)) {
+            assertThrows(UncheckedIOException.class, () -> dao.get(key));
+        }
+    }
+
+    @Test
+    void detectOnPreadScan(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomBuffer(VALUE_SIZE);
+
+        try (DAO dao = openPread(data)) {
+            dao.upsert(key, value);
+        }
+
+        damage(data);
+
+        try (DAO dao = openPread(data)) {
+            // The merge of the tables reads their first records as soon as the iterator is created
+            assertThrows(UncheckedIOException.class, () -> {
+                final Iterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0));
+                iterator.forEachRemaining(record -> { });
+            });
+        }
+    }
+
+    @Test
+    void detectOnPreadCompact(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomBuffer(VALUE_SIZE);
+
+        try (DAO dao = openPread(data)) {
+            dao.upsert(key, value);
+        }
+
+        damage(data);
+
+        final ByteBuffer otherKey = randomKey();
+        final ByteBuffer otherValue = randomValue();
+        try (DAO dao = openPread(data)) {
+            dao.upsert(otherKey, otherValue);
+            assertThrows(IOException.class, dao::compact);
+        }
+
+        try (DAO dao = openPread(data)) {
+            assertEquals(otherValue, dao.get(otherKey));
+            assertThrows(UncheckedIOException.class, () -> dao.get(key));
+        }
+    }
+
+    private static DAO openPread(final File data) throws IOException {
+        final DAOConfig config = DAOConfig.builder(DAOFactory.MAX_HEAP / 32)
+                .tableAccess(TableAccess.PREAD)
+                .build();
+        return new DAOImpl(data, config);
+    }
+
+    /**
+     * Flips a byte in the middle of the biggest file.
+     */
+    private static void damage(final File data) throws IOException {
+        final File[] files = data.listFiles();
+        assertNotNull(files);
+        final File biggest = Arrays.stream(files)
+                .max(Comparator.comparingLong(File::length))
+                .orElseThrow();
+
+        try (RandomAccessFile file = new RandomAccessFile(biggest, "rw")) {
+            final long position = file.length() / 2;
+            file.seek(position);
+            final int b = file.read();
+            file.seek(position);
+            file.write(b ^ 0xFF);
+        }
+    }
+}
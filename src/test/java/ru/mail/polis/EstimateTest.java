@@ -0,0 +1,88 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.nekobitlz.DAOConfig;
+import ru.mail.polis.nekobitlz.DAOImpl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Range estimate tests for {@link DAOImpl}.
+ */
+class EstimateTest extends TestBase {
+    private static final int KEY_COUNT = 4000;
+    private static final int VALUE_LENGTH = 256;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    @Test
+    void tablesAndMemTable(@TempDir File data) throws IOException {
+        // Several tables and a MemTable larger than the walked part of it
+        estimate(data, DAOConfig.builder(KEY_COUNT * VALUE_LENGTH / 3).build());
+    }
+
+    @Test
+    void memTableOnly(@TempDir File data) throws IOException {
+        estimate(data, DAOConfig.builder(DAOFactory.MAX_HEAP / 32).build());
+    }
+
+    @Test
+    void separatedValues(@TempDir File data) throws IOException {
+        final DAOConfig config = DAOConfig.builder(KEY_COUNT * VALUE_LENGTH / 3)
+                .valueSeparation(VALUE_LENGTH / 2, 1024 * 1024)
+                .build();
+        estimate(data, config);
+    }
+
+    private static void estimate(@NotNull final File data, @NotNull final DAOConfig config) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> values = new TreeMap<>();
+        try (DAOImpl dao = new DAOImpl(data, config)) {
+            for (int i = 0; i < KEY_COUNT; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomBuffer(VALUE_LENGTH);
+                values.put(key, value);
+                dao.upsert(key, value);
+            }
+
+            assertEstimates(dao, values, EMPTY, null);
+            final List<ByteBuffer> keys = new ArrayList<>(values.keySet());
+            for (int part = 0; part < 4; part++) {
+                final ByteBuffer from = keys.get(KEY_COUNT * part / 4);
+                final ByteBuffer to = part == 3 ? null : keys.get(KEY_COUNT * (part + 1) / 4);
+                assertEstimates(dao, values, from, to);
+            }
+            assertEquals(0, dao.estimateCount(keys.get(KEY_COUNT / 2), keys.get(KEY_COUNT / 4)));
+            assertEquals(0, dao.estimateSize(keys.get(KEY_COUNT / 2), keys.get(KEY_COUNT / 2)));
+        }
+    }
+
+    private static void assertEstimates(@NotNull final DAOImpl dao,
+                                        @NotNull final NavigableMap<ByteBuffer, ByteBuffer> values,
+                                        @NotNull final ByteBuffer from,
+                                        final ByteBuffer to) {
+        final NavigableMap<ByteBuffer, ByteBuffer> range = to == null
+                ? values.tailMap(from, true)
+                : values.subMap(from, true, to, false);
+        long size = 0;
+        for (final ByteBuffer value : range.values()) {
+            size += KEY_LENGTH + value.remaining();
+        }
+        assertClose(range.size(), dao.estimateCount(from, to));
+        // The records hold their sizes and timestamps too
+        assertClose(size + range.size() * 28L, dao.estimateSize(from, to));
+    }
+
+    private static void assertClose(final long expected, final long actual) {
+        assertTrue(Math.abs(actual - expected) <= expected / 5, actual + " is far from " + expected);
+    }
+}
@@ -0,0 +1,159 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.nekobitlz.DAOConfig;
+import ru.mail.polis.nekobitlz.DAOImpl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Time-to-live tests for {@link DAOImpl}.
+ */
+class ExpirationTest extends TestBase {
+    private static final Duration TTL = Duration.ofMinutes(1);
+
+    private final ManualClock clock = new ManualClock();
+
+    @Test
+    void expire(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+
+        try (DAOImpl dao = open(data)) {
+            dao.upsert(key, value, TTL);
+            clock.advance(TTL.minusMillis(1));
+            assertEquals(value, dao.get(key));
+            clock.advance(Duration.ofMillis(1));
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            assertFalse(dao.iterator(ByteBuffer.allocate(0)).hasNext());
+        }
+    }
+
+    @Test
+    void liveAfterReopen(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+
+        try (DAOImpl dao = open(data)) {
+            dao.upsert(key, value, TTL);
+        }
+
+        try (DAOImpl dao = open(data)) {
+            assertEquals(value, dao.get(key));
+        }
+    }
+
+    @Test
+    void noResurrection(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+
+        try (DAOImpl dao = open(data)) {
+            dao.upsert(key, randomValue());
+        }
+
+        try (DAOImpl dao = open(data)) {
+            dao.upsert(key, randomValue(), TTL);
+        }
+
+        clock.advance(TTL);
+
+        try (DAOImpl dao = open(data)) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            dao.compact();
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+        }
+    }
+
+    @Test
+    void compactExpired(@TempDir File data) throws IOException {
+        final int valueSize = 1024 * 1024;
+        final int keyCount = 10;
+
+        try (DAOImpl dao = open(data)) {
+            for (int i = 0; i < keyCount; i++) {
+                dao.upsert(randomKey(), randomBuffer(valueSize), TTL);
+            }
+        }
+
+        clock.advance(TTL);
+
+        try (DAOImpl dao = open(data)) {
+            dao.compact();
+        }
+
+        assertTrue(Files.directorySize(data) < valueSize);
+    }
+
+    @Test
+    void endlessTtl(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+
+        try (DAOImpl dao = open(data)) {
+            dao.upsert(key, value, ChronoUnit.FOREVER.getDuration());
+            dao.upsert(randomKey(), value, Duration.ofMillis(Long.MAX_VALUE));
+            clock.advance(Duration.ofDays(365 * 1000));
+            assertEquals(value, dao.get(key));
+        }
+    }
+
+    @Test
+    void invalidTtl(@TempDir File data) throws IOException {
+        try (DAOImpl dao = open(data)) {
+            assertThrows(IllegalArgumentException.class, () -> dao.upsert(randomKey(), randomValue(), Duration.ZERO));
+        }
+    }
+
+    @NotNull
+    private DAOImpl open(@NotNull final File data) throws IOException {
+        return new DAOImpl(data, DAOConfig.builder(DAOFactory.MAX_HEAP / 32).clock(clock).build());
+    }
+
+    /**
+     * Clock moved by the tests only.
+     */
+    private static final class ManualClock extends Clock {
+        private final AtomicLong millis = new AtomicLong(System.currentTimeMillis());
+
+        void advance(@NotNull final Duration duration) {
+            millis.addAndGet(duration.toMillis());
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(final ZoneId zone) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis.get());
+        }
+
+        @Override
+        public long millis() {
+            return millis.get();
+        }
+    }
+}
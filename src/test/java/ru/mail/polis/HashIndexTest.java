@@ -0,0 +1,114 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.nekobitlz.DAOConfig;
+import ru.mail.polis.nekobitlz.DAOImpl;
+import ru.mail.polis.nekobitlz.SSTable;
+import ru.mail.polis.nekobitlz.SSTableUtils;
+import ru.mail.polis.nekobitlz.TableAccess;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Hash index tests for {@link DAOImpl}.
+ */
+class HashIndexTest extends TestBase {
+    private static final int KEY_COUNT = 500;
+    private static final long FLUSH_THRESHOLD = 16 * 1024;
+
+    @Test
+    void mmapLookups(@TempDir File data) throws IOException {
+        lookups(data, TableAccess.MMAP);
+    }
+
+    @Test
+    void preadLookups(@TempDir File data) throws IOException {
+        lookups(data, TableAccess.PREAD);
+    }
+
+    private static void lookups(@NotNull final File data, @NotNull final TableAccess access) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> values = new TreeMap<>();
+        final List<ByteBuffer> removed = new ArrayList<>();
+        final DAOConfig config = DAOConfig.builder(FLUSH_THRESHOLD)
+                .tableAccess(access)
+                .hashIndex(true)
+                .build();
+
+        try (DAOImpl dao = new DAOImpl(data, config)) {
+            for (int i = 0; i < KEY_COUNT; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                values.put(key, value);
+                dao.upsert(key, value);
+            }
+            for (final ByteBuffer key : values.keySet()) {
+                if (removed.size() < KEY_COUNT / 10) {
+                    removed.add(key);
+                    dao.remove(key);
+                }
+            }
+            values.keySet().removeAll(removed);
+            dao.flush();
+
+            assertContents(dao, values, removed);
+            dao.compact();
+            assertContents(dao, values, removed);
+        }
+
+        final File[] tables = data.listFiles((dir, name) -> SSTableUtils.isTableFileName(name));
+        assertNotNull(tables);
+        for (final File file : tables) {
+            try (SSTable table = new SSTable(file, 0, config)) {
+                assertTrue(table.getMetadata().getHashIndexSize() > 0);
+            }
+        }
+
+        // The tables with a hash index are read regardless of the settings
+        try (DAO dao = DAOFactory.create(data)) {
+            assertContents(dao, values, removed);
+        }
+    }
+
+    private static void assertContents(@NotNull final DAO dao,
+                                       @NotNull final NavigableMap<ByteBuffer, ByteBuffer> values,
+                                       @NotNull final List<ByteBuffer> removed) throws IOException {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : values.entrySet()) {
+            assertEquals(entry.getValue(), dao.get(entry.getKey()));
+        }
+        for (final ByteBuffer key : removed) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+        }
+        for (int i = 0; i < KEY_COUNT; i++) {
+            final ByteBuffer key = randomKey();
+            if (!values.containsKey(key)) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            }
+        }
+
+        // The scans go through the sorted records
+        final ByteBuffer from = values.keySet().stream().skip(values.size() / 2).findFirst().orElseThrow();
+        final Iterator<Record> iterator = dao.iterator(from);
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : values.tailMap(from).entrySet()) {
+            assertTrue(iterator.hasNext());
+            assertEquals(Record.of(entry.getKey(), entry.getValue()), iterator.next());
+        }
+        assertFalse(iterator.hasNext());
+    }
+}
@@ -0,0 +1,215 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.nekobitlz.DAOImpl;
+import ru.mail.polis.nekobitlz.SSTableUtils;
+import ru.mail.polis.nekobitlz.SSTableWriter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Bulk load and export tests for {@link DAOImpl}.
+ */
+class IngestTest extends TestBase {
+    private static final int KEY_COUNT = 1000;
+
+    @Test
+    void ingestOverrides(@TempDir File root) throws IOException {
+        final File data = folder(root, "data");
+        final File external = folder(root, "external");
+        final ByteBuffer updated = key(1);
+        final ByteBuffer added = key(2);
+        final ByteBuffer removed = key(3);
+        final ByteBuffer value = randomValue();
+
+        final Path path = external.toPath().resolve("dataset.dat");
+        try (SSTableWriter writer = SSTableWriter.create(path)) {
+            writer.upsert(updated, value);
+            writer.upsert(added, value);
+            writer.remove(removed);
+            writer.finish();
+        }
+
+        final ByteBuffer later = randomValue();
+        try (DAOImpl dao = (DAOImpl) DAOFactory.create(data)) {
+            dao.upsert(updated, randomValue());
+            dao.upsert(removed, randomValue());
+            dao.ingest(path.toFile());
+
+            assertEquals(value, dao.get(updated));
+            assertEquals(value, dao.get(added));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+
+            dao.upsert(added, later);
+            assertEquals(later, dao.get(added));
+        }
+
+        // The ingested records keep their place among the changes
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(updated));
+            assertEquals(later, dao.get(added));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+            dao.compact();
+            assertEquals(value, dao.get(updated));
+            assertEquals(later, dao.get(added));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+    }
+
+    @Test
+    void exportAndIngest(@TempDir File root) throws IOException {
+        final File source = folder(root, "source");
+        final File target = folder(root, "target");
+        final File external = folder(root, "external");
+        final ByteBuffer from = key(KEY_COUNT / 4);
+        final ByteBuffer to = key(KEY_COUNT / 2);
+        final File file = new File(external, "export.dat");
+
+        try (DAOImpl dao = (DAOImpl) DAOFactory.create(source)) {
+            for (int i = 0; i < KEY_COUNT; i++) {
+                dao.upsert(key(i), join(key(i), key(i)));
+            }
+            assertEquals(KEY_COUNT / 4, dao.exportRange(from, to, file));
+            // The export reads the MemTable as is, nothing is flushed
+            assertEquals(0, listTables(source).length);
+        }
+
+        try (DAOImpl dao = (DAOImpl) DAOFactory.create(target)) {
+            dao.ingest(file);
+            final Iterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0));
+            for (int i = KEY_COUNT / 4; i < KEY_COUNT / 2; i++) {
+                final Record record = iterator.next();
+                assertEquals(key(i), record.getKey());
+                assertEquals(join(key(i), key(i)), record.getValue());
+            }
+            assertFalse(iterator.hasNext());
+        }
+    }
+
+    @Test
+    void ingestCopies(@TempDir File root) throws IOException {
+        final File data = folder(root, "data");
+        final File external = folder(root, "external");
+        final ByteBuffer value = randomValue();
+        final File file = writeTable(external, value);
+
+        try (DAOImpl dao = (DAOImpl) DAOFactory.create(data)) {
+            dao.ingest(file);
+            final File table = listTables(data)[0];
+            assertFalse(Files.isSameFile(file.toPath(), table.toPath()));
+
+            // The source may be changed in place, the storage doesn't see it
+            damage(file);
+            assertEquals(value, dao.get(key(1)));
+        }
+    }
+
+    @Test
+    void ingestLinked(@TempDir File root) throws IOException {
+        final File data = folder(root, "data");
+        final File external = folder(root, "external");
+        final ByteBuffer value = randomValue();
+        final File file = writeTable(external, value);
+
+        try (DAOImpl dao = (DAOImpl) DAOFactory.create(data)) {
+            dao.ingest(file, true);
+            assertEquals(value, dao.get(key(1)));
+        }
+        // Linked or copied where links are not supported, the source is left in place
+        assertTrue(file.exists());
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(key(1)));
+        }
+    }
+
+    @Test
+    void outOfOrder(@TempDir File external) throws IOException {
+        final Path path = external.toPath().resolve("dataset.dat");
+        try (SSTableWriter writer = SSTableWriter.create(path)) {
+            writer.upsert(key(2), randomValue());
+            assertThrows(IllegalArgumentException.class, () -> writer.upsert(key(1), randomValue()));
+            assertThrows(IllegalArgumentException.class, () -> writer.upsert(key(2), randomValue()));
+        }
+
+        // An unfinished table leaves nothing behind
+        final String[] files = external.list();
+        assertNotNull(files);
+        assertEquals(0, files.length);
+    }
+
+    @Test
+    void rejectInvalid(@TempDir File root) throws IOException {
+        final File data = folder(root, "data");
+        final File external = folder(root, "external");
+        final File file = new File(external, "garbage.dat");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.getChannel().write(randomBuffer(1024));
+        }
+
+        try (DAOImpl dao = (DAOImpl) DAOFactory.create(data)) {
+            assertThrows(IOException.class, () -> dao.ingest(file));
+            dao.upsert(key(1), randomValue());
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            final Iterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0));
+            assertEquals(key(1), iterator.next().getKey());
+            assertFalse(iterator.hasNext());
+        }
+    }
+
+    /**
+     * Creates a subfolder of the temporary folder, since a test gets the same folder for every parameter.
+     */
+    @NotNull
+    private static File folder(@NotNull final File root, @NotNull final String name) throws IOException {
+        return Files.createDirectories(root.toPath().resolve(name)).toFile();
+    }
+
+    @NotNull
+    private static File writeTable(@NotNull final File folder, @NotNull final ByteBuffer value) throws IOException {
+        final Path path = folder.toPath().resolve("dataset.dat");
+        try (SSTableWriter writer = SSTableWriter.create(path)) {
+            writer.upsert(key(1), value);
+            writer.finish();
+        }
+        return path.toFile();
+    }
+
+    /**
+     * Overwrites the whole file with zeros, keeping its size.
+     */
+    private static void damage(@NotNull final File file) throws IOException {
+        // Not truncated first, a mapped file must keep its size
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.write(new byte[(int) out.length()]);
+        }
+    }
+
+    @NotNull
+    private static File[] listTables(@NotNull final File data) {
+        final File[] result = data.listFiles((dir, name) -> SSTableUtils.isTableFileName(name));
+        assertNotNull(result);
+        return result;
+    }
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("key%08d", i).getBytes(StandardCharsets.UTF_8));
+    }
+}
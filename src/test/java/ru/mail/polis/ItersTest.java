@@ -4,8 +4,11 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterators;
 import org.junit.jupiter.api.Test;
 
+import java.nio.ByteBuffer;
+
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
 
 /**
  * Unit tests for {@link Iters} facilities.
@@ -39,4 +42,19 @@ class ItersTest {
                 ImmutableList.of(1, 2, 3, 5, 6),
                 ImmutableList.copyOf(collapsed));
     }
+
+    @Test
+    void prefixEnd() {
+        assertEquals(
+                ByteBuffer.wrap(new byte[]{1, 3}),
+                Iters.prefixEnd(ByteBuffer.wrap(new byte[]{1, 2})));
+        assertEquals(
+                ByteBuffer.wrap(new byte[]{2}),
+                Iters.prefixEnd(ByteBuffer.wrap(new byte[]{1, Byte.MAX_VALUE})));
+        assertEquals(
+                ByteBuffer.wrap(new byte[]{0}),
+                Iters.prefixEnd(ByteBuffer.wrap(new byte[]{-1})));
+        assertNull(Iters.prefixEnd(ByteBuffer.wrap(new byte[]{Byte.MAX_VALUE, Byte.MAX_VALUE})));
+        assertNull(Iters.prefixEnd(ByteBuffer.allocate(0)));
+    }
 }
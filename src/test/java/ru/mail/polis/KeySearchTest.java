@@ -0,0 +1,288 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.nekobitlz.DAOConfig;
+import ru.mail.polis.nekobitlz.DAOImpl;
+import ru.mail.polis.nekobitlz.TableAccess;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Key search tests for the tables of {@link DAOImpl}.
+ */
+class KeySearchTest extends TestBase {
+    private static final int KEY_COUNT = 2000;
+    private static final int PROBE_COUNT = 2000;
+    // Few distinct bytes give many keys sharing their prefixes or being the prefixes of each other
+    private static final byte[] KEY_BYTES = {Byte.MIN_VALUE, -1, 0, 1, Byte.MAX_VALUE};
+    private static final byte[] COMMON_PREFIX = {'u', 's', 'e', 'r', ':', 0, -1, 'i', 'd', ':'};
+    // Longer than the quick look of the positional reads, so the search reads such keys whole
+    private static final int LONG_KEY_BYTES = 5000;
+
+    @Test
+    void mmapSearch(@TempDir File data) throws IOException {
+        search(data, TableAccess.MMAP);
+    }
+
+    @Test
+    void preadSearch(@TempDir File data) throws IOException {
+        search(data, TableAccess.PREAD);
+    }
+
+    private static void search(@NotNull final File data, @NotNull final TableAccess access) throws IOException {
+        final Random random = new Random(42);
+        final NavigableMap<ByteBuffer, ByteBuffer> values = new TreeMap<>();
+        final DAOConfig config = DAOConfig.builder(DAOFactory.MAX_HEAP / 32)
+                .tableAccess(access)
+                .build();
+
+        try (DAOImpl dao = new DAOImpl(data, config)) {
+            for (int i = 0; i < KEY_COUNT; i++) {
+                final ByteBuffer key = key(random);
+                final ByteBuffer value = randomBuffer(8);
+                values.put(key, value);
+                dao.upsert(key, value);
+            }
+            dao.flush();
+            assertSearch(dao, values, random);
+
+            dao.compact();
+            assertSearch(dao, values, random);
+        }
+    }
+
+    @Test
+    void mmapWordComparison(@TempDir File data) throws IOException {
+        wordComparison(data, TableAccess.MMAP);
+    }
+
+    @Test
+    void preadWordComparison(@TempDir File data) throws IOException {
+        wordComparison(data, TableAccess.PREAD);
+    }
+
+    /**
+     * Searches the keys whose words after the common prefix are the hard cases of the packed comparison:
+     * the bytes of the opposite signs, the keys shorter than a word and the keys of equal words but
+     * different lengths, as the bytes {@code 0x80} of the shorter key pack to the same word as the missing ones.
+     */
+    private static void wordComparison(@NotNull final File data, @NotNull final TableAccess access)
+            throws IOException {
+        final byte min = Byte.MIN_VALUE;
+        final byte max = Byte.MAX_VALUE;
+        final byte[][] suffixes = {
+                {},
+                {min},
+                {min, min},
+                {min, min, min, min, min, min, min},
+                {min, min, min, min, min, min, min, min},
+                {min, min, min, min, min, min, min, min, min},
+                {min, 0},
+                {min, max},
+                {-1},
+                {-1, min},
+                {0},
+                {0, min},
+                {0, 0, 0, 0, 0, 0, 0, min},
+                {0, 0, 0, 0, 0, 0, 0, max},
+                {0, 0, 0, 0, 0, 0, 0, max, min},
+                {1},
+                {max},
+                {max, min},
+                {max, max, max, max, max, max, max, max, max},
+        };
+        final NavigableMap<ByteBuffer, ByteBuffer> values = new TreeMap<>();
+        for (final byte[] suffix : suffixes) {
+            values.put(join(ByteBuffer.wrap(COMMON_PREFIX), ByteBuffer.wrap(suffix)), randomBuffer(8));
+        }
+        // Long keys of equal words, told apart by their last bytes only
+        for (final byte last : new byte[]{min, -1, 0, max}) {
+            final byte[] key = new byte[LONG_KEY_BYTES];
+            System.arraycopy(COMMON_PREFIX, 0, key, 0, COMMON_PREFIX.length);
+            key[COMMON_PREFIX.length] = 1;
+            key[key.length - 1] = last;
+            values.put(ByteBuffer.wrap(key), randomBuffer(8));
+        }
+
+        final List<ByteBuffer> probes = new ArrayList<>();
+        for (final ByteBuffer key : values.keySet()) {
+            probes.add(key);
+            probes.add(key.duplicate().limit(key.limit() - 1));
+            for (final byte last : new byte[]{min, 0, max}) {
+                probes.add(join(key, ByteBuffer.wrap(new byte[]{last})));
+                final byte[] changed = key.array().clone();
+                if (changed.length > COMMON_PREFIX.length) {
+                    changed[changed.length - 1] = last;
+                    probes.add(ByteBuffer.wrap(changed));
+                }
+            }
+        }
+
+        final DAOConfig config = DAOConfig.builder(DAOFactory.MAX_HEAP / 32)
+                .tableAccess(access)
+                .build();
+        try (DAOImpl dao = new DAOImpl(data, config)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : values.entrySet()) {
+                dao.upsert(entry.getKey(), entry.getValue());
+            }
+            dao.flush();
+        }
+
+        try (DAOImpl dao = new DAOImpl(data, config)) {
+            for (final ByteBuffer probe : probes) {
+                final ByteBuffer value = values.get(probe);
+                if (value == null) {
+                    assertThrows(NoSuchElementException.class, () -> dao.get(probe));
+                } else {
+                    assertEquals(value, dao.get(probe));
+                }
+                final List<Record> expected = new ArrayList<>();
+                values.tailMap(probe, true).forEach((k, v) -> expected.add(Record.of(k, v)));
+                final List<Record> actual = new ArrayList<>();
+                dao.iterator(probe).forEachRemaining(actual::add);
+                assertEquals(expected, actual);
+            }
+        }
+    }
+
+    @Test
+    void getPrunedByKeyRange(@TempDir File data) throws IOException {
+        final List<NavigableMap<ByteBuffer, ByteBuffer>> tables = writeDisjointTables(data);
+
+        try (DAOImpl dao = new DAOImpl(data, DAOFactory.MAX_HEAP / 32)) {
+            for (final NavigableMap<ByteBuffer, ByteBuffer> table : tables) {
+                for (final Map.Entry<ByteBuffer, ByteBuffer> entry : table.entrySet()) {
+                    assertEquals(entry.getValue(), dao.get(entry.getKey()));
+                }
+            }
+            // Only the table holding the key range is read
+            assertEquals(1, (long) dao.getMetrics().values().get("get.tablesProbed.max"));
+        }
+
+        try (DAOImpl dao = new DAOImpl(data, DAOFactory.MAX_HEAP / 32)) {
+            // Below, between and above the key ranges of the tables
+            for (final ByteBuffer missing : new ByteBuffer[]{key('a'), key('b'), key('d')}) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(missing));
+            }
+            assertEquals(3, (long) dao.getMetrics().values().get("get.tablesProbed.count"));
+            assertEquals(0, (long) dao.getMetrics().values().get("get.tablesProbed.max"));
+        }
+    }
+
+    @Test
+    void iteratorPrunedByKeyRange(@TempDir File data) throws IOException {
+        final List<NavigableMap<ByteBuffer, ByteBuffer>> tables = writeDisjointTables(data);
+        final NavigableMap<ByteBuffer, ByteBuffer> last = tables.get(tables.size() - 1);
+
+        try (DAOImpl dao = new DAOImpl(data, DAOFactory.MAX_HEAP / 32)) {
+            // The tables with all the keys before the start are skipped
+            final Iterator<Record> iterator = dao.iterator(last.firstKey());
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : last.entrySet()) {
+                assertEquals(Record.of(entry.getKey(), entry.getValue()), iterator.next());
+            }
+            assertFalse(iterator.hasNext());
+            assertEquals(1, (long) dao.getMetrics().values().get("iterator.tablesMerged.max"));
+
+            assertFalse(dao.iterator(key('d')).hasNext());
+            assertEquals(1, (long) dao.getMetrics().values().get("iterator.tablesMerged.max"));
+
+            assertTrue(dao.iterator(ByteBuffer.allocate(0)).hasNext());
+            assertEquals(tables.size(), (long) dao.getMetrics().values().get("iterator.tablesMerged.max"));
+        }
+    }
+
+    /**
+     * Flushes a table for each of the prefixes, so the key ranges of the tables do not overlap.
+     */
+    @NotNull
+    private static List<NavigableMap<ByteBuffer, ByteBuffer>> writeDisjointTables(@NotNull final File data)
+            throws IOException {
+        final List<NavigableMap<ByteBuffer, ByteBuffer>> result = new ArrayList<>();
+        try (DAOImpl dao = new DAOImpl(data, DAOFactory.MAX_HEAP / 32)) {
+            for (final char prefix : new char[]{'a', 'c'}) {
+                final NavigableMap<ByteBuffer, ByteBuffer> table = new TreeMap<>();
+                for (int i = 0; i < 100; i++) {
+                    final ByteBuffer key = join(key(prefix), randomKey());
+                    final ByteBuffer value = randomValue();
+                    table.put(key, value);
+                    dao.upsert(key, value);
+                }
+                dao.flush();
+                result.add(table);
+            }
+        }
+        return result;
+    }
+
+    @NotNull
+    private static ByteBuffer key(final char prefix) {
+        return ByteBuffer.wrap(new byte[]{(byte) prefix});
+    }
+
+    private static void assertSearch(@NotNull final DAO dao,
+                                     @NotNull final NavigableMap<ByteBuffer, ByteBuffer> values,
+                                     @NotNull final Random random) throws IOException {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : values.entrySet()) {
+            assertEquals(entry.getValue(), dao.get(entry.getKey()));
+        }
+
+        for (int i = 0; i < PROBE_COUNT; i++) {
+            final ByteBuffer probe = probe(random);
+            if (!values.containsKey(probe)) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(probe));
+            }
+            final Map.Entry<ByteBuffer, ByteBuffer> expected = values.ceilingEntry(probe);
+            final Iterator<Record> iterator = dao.iterator(probe);
+            if (expected == null) {
+                assertFalse(iterator.hasNext());
+            } else {
+                assertTrue(iterator.hasNext());
+                assertEquals(Record.of(expected.getKey(), expected.getValue()), iterator.next());
+            }
+        }
+    }
+
+    @NotNull
+    private static ByteBuffer key(@NotNull final Random random) {
+        final byte[] result = new byte[COMMON_PREFIX.length + random.nextInt(13)];
+        System.arraycopy(COMMON_PREFIX, 0, result, 0, COMMON_PREFIX.length);
+        for (int i = COMMON_PREFIX.length; i < result.length; i++) {
+            result[i] = KEY_BYTES[random.nextInt(KEY_BYTES.length)];
+        }
+        return ByteBuffer.wrap(result);
+    }
+
+    /**
+     * Returns either a possible key or a key cut within the common prefix or diverging from it.
+     */
+    @NotNull
+    private static ByteBuffer probe(@NotNull final Random random) {
+        final ByteBuffer key = key(random);
+        switch (random.nextInt(4)) {
+            case 0:
+                return key.limit(random.nextInt(COMMON_PREFIX.length));
+            case 1:
+                key.put(random.nextInt(COMMON_PREFIX.length), KEY_BYTES[random.nextInt(KEY_BYTES.length)]);
+                return key;
+            default:
+                return key;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.nekobitlz.DAOConfig;
+import ru.mail.polis.nekobitlz.DAOImpl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the tables mapped by segments, with the segments small enough for the records to cross their bounds.
+ */
+class MappedSegmentTest extends TestBase {
+    private static final int SEGMENT_BYTES = 4096;
+    private static final int KEY_COUNT = 500;
+    private static final int PROBE_COUNT = 200;
+
+    @Test
+    void readsAcrossSegments(@TempDir File data) throws IOException {
+        final Random random = new Random(7);
+        final NavigableMap<ByteBuffer, ByteBuffer> values = new TreeMap<>();
+        final DAOConfig config = DAOConfig.builder(DAOFactory.MAX_HEAP / 32)
+                .mappedSegmentBytes(SEGMENT_BYTES)
+                .build();
+
+        try (DAOImpl dao = new DAOImpl(data, config)) {
+            for (int i = 0; i < KEY_COUNT; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = value(random);
+                values.put(key, value);
+                dao.upsert(key, value);
+                if (i % (KEY_COUNT / 4) == 0) {
+                    dao.flush();
+                }
+            }
+            dao.flush();
+            assertReads(dao, values, random);
+
+            dao.compact();
+            assertReads(dao, values, random);
+        }
+
+        try (DAOImpl dao = new DAOImpl(data, config)) {
+            assertReads(dao, values, random);
+        }
+    }
+
+    /**
+     * Returns a value from a few bytes to a few segments long, so the records end anywhere within the segments
+     * and some of them are larger than a segment.
+     */
+    @NotNull
+    private static ByteBuffer value(@NotNull final Random random) {
+        final int size = random.nextInt(10) == 0
+                ? SEGMENT_BYTES + random.nextInt(SEGMENT_BYTES * 2)
+                : 1 + random.nextInt(SEGMENT_BYTES / 2);
+        final byte[] result = new byte[size];
+        random.nextBytes(result);
+        return ByteBuffer.wrap(result);
+    }
+
+    private static void assertReads(@NotNull final DAO dao,
+                                    @NotNull final NavigableMap<ByteBuffer, ByteBuffer> values,
+                                    @NotNull final Random random) throws IOException {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : values.entrySet()) {
+            assertEquals(entry.getValue(), dao.get(entry.getKey()));
+        }
+
+        final Iterator<Record> all = dao.iterator(ByteBuffer.allocate(0));
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : values.entrySet()) {
+            assertEquals(Record.of(entry.getKey(), entry.getValue()), all.next());
+        }
+        assertFalse(all.hasNext());
+
+        for (int i = 0; i < PROBE_COUNT; i++) {
+            final ByteBuffer from = randomKey();
+            final Iterator<Record> iterator = dao.iterator(from);
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : values.tailMap(from).entrySet()) {
+                assertTrue(iterator.hasNext());
+                assertEquals(Record.of(entry.getKey(), entry.getValue()), iterator.next());
+                if (random.nextInt(8) == 0) {
+                    break;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.nekobitlz.DAOConfig;
+import ru.mail.polis.nekobitlz.DAOImpl;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Metrics tests for {@link DAOImpl}.
+ */
+class MetricsTest extends TestBase {
+    private static final int KEY_COUNT = 100;
+    private static final long FLUSH_THRESHOLD = 4 * 1024;
+
+    @Test
+    void operations(@TempDir File data) throws Exception {
+        final AtomicReference<SortedMap<String, Long>> lastReport = new AtomicReference<>();
+        final DAOConfig config = DAOConfig.builder(FLUSH_THRESHOLD)
+                .metricsReporter(lastReport::set, Duration.ofHours(1))
+                .build();
+
+        try (DAOImpl dao = new DAOImpl(data, config)) {
+            final ByteBuffer key = randomKey();
+            final ByteBuffer value = randomValue();
+            dao.upsert(key, value);
+            dao.remove(randomKey());
+            assertEquals(value, dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(randomKey()));
+            assertTrue(dao.iterator(ByteBuffer.allocate(0)).hasNext());
+
+            final Map<String, Long> values = dao.getMetrics().values();
+            assertEquals(1, (long) values.get("upsert.latencyNanos.count"));
+            assertEquals(1, (long) values.get("remove.latencyNanos.count"));
+            assertEquals(2, (long) values.get("get.latencyNanos.count"));
+            assertEquals(1, (long) values.get("iterator.latencyNanos.count"));
+            assertEquals(0, (long) values.get("tables.count"));
+            assertTrue(values.get("memtable.bytes") > 0);
+
+            for (int i = 0; i < KEY_COUNT; i++) {
+                dao.upsert(randomKey(), randomValue());
+            }
+            assertEquals(value, dao.get(key));
+            assertEquals(3, (long) dao.getMetrics().values().get("get.tablesProbed.count"));
+        }
+
+        // The last report is sent on close
+        final SortedMap<String, Long> report = lastReport.get();
+        assertNotNull(report);
+        assertTrue(report.get("compaction.count") > 0);
+        assertTrue(report.get("read.bytes") > 0);
+        assertTrue(report.get("compaction.bytesWritten") > 0);
+        assertTrue(report.get("flush.count") > 1);
+    }
+
+    @Test
+    void jmx(@TempDir File data) throws Exception {
+        final DAOConfig config = DAOConfig.builder(DAOFactory.MAX_HEAP / 32)
+                .jmx(true)
+                .build();
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName(
+                "ru.mail.polis.nekobitlz:type=DAO,folder=" + ObjectName.quote(data.getAbsolutePath()));
+
+        try (DAO dao = new DAOImpl(data, config)) {
+            dao.upsert(randomKey(), randomValue());
+            assertEquals(1L, server.getAttribute(name, "upsert.latencyNanos.count"));
+        }
+        assertFalse(server.isRegistered(name));
+    }
+}
@@ -0,0 +1,125 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.nekobitlz.DAOConfig;
+import ru.mail.polis.nekobitlz.DAOImpl;
+import ru.mail.polis.nekobitlz.Namespaces;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Namespace tests for {@link Namespaces}.
+ */
+class NamespaceTest extends TestBase {
+    private static final long MEMORY_BUDGET = 256 * 1024;
+
+    @Test
+    void independentNamespaces(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer usersValue = randomValue();
+        final ByteBuffer ordersValue = randomValue();
+        try (Namespaces namespaces = new Namespaces(data, config())) {
+            final DAOImpl users = namespaces.open("users");
+            assertTrue(users == namespaces.open("users"));
+            users.upsert(key, usersValue);
+            namespaces.open("orders").upsert(key, ordersValue);
+            namespaces.open("empty");
+
+            assertEquals(usersValue, users.get(key));
+            assertEquals(ordersValue, namespaces.open("orders").get(key));
+            assertFalse(namespaces.open("empty").iterator(ByteBuffer.allocate(0)).hasNext());
+            assertThrows(IllegalArgumentException.class, () -> namespaces.open("../users"));
+            assertThrows(IllegalArgumentException.class, () -> namespaces.open(""));
+
+            // A namespace closed on its own is opened anew
+            users.close();
+            assertEquals(usersValue, namespaces.open("users").get(key));
+        }
+
+        try (Namespaces namespaces = new Namespaces(data, config())) {
+            assertEquals(Set.of("empty", "orders", "users"), namespaces.names());
+            assertEquals(usersValue, namespaces.open("users").get(key));
+            assertEquals(ordersValue, namespaces.open("orders").get(key));
+        }
+    }
+
+    @Test
+    void sharedMemoryBudget(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> small = new HashMap<>();
+        final Map<ByteBuffer, ByteBuffer> large = new HashMap<>();
+        try (Namespaces namespaces = new Namespaces(data, config())) {
+            // Neither MemTable exceeds the budget alone, both of them together do
+            upsert(namespaces.open("small"), small, MEMORY_BUDGET / 4);
+            upsert(namespaces.open("large"), large, MEMORY_BUDGET * 3 / 4);
+
+            // The largest MemTable is flushed, the small one is kept
+            assertEquals(0, (long) namespaces.open("small").getMetrics().values().get("flush.count"));
+            assertTrue(namespaces.open("large").getMetrics().values().get("flush.count") > 0);
+            assertContents(namespaces.open("small"), small);
+            assertContents(namespaces.open("large"), large);
+        }
+
+        try (Namespaces namespaces = new Namespaces(data, config())) {
+            assertContents(namespaces.open("small"), small);
+            assertContents(namespaces.open("large"), large);
+        }
+    }
+
+    @Test
+    void flushedMemTablesLeaveBudget(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> values = new HashMap<>();
+        try (Namespaces namespaces = new Namespaces(data, config())) {
+            final DAOImpl first = namespaces.open("first");
+            upsert(first, values, MEMORY_BUDGET * 3 / 4);
+            first.flush();
+            assertEquals(1, (long) first.getMetrics().values().get("flush.count"));
+
+            // The flushed MemTable doesn't count anymore, neither does the one of a closed namespace
+            final DAOImpl second = namespaces.open("second");
+            upsert(second, values, MEMORY_BUDGET * 3 / 4);
+            assertEquals(0, (long) second.getMetrics().values().get("flush.count"));
+            assertEquals(1, (long) first.getMetrics().values().get("flush.count"));
+            second.close();
+
+            final DAOImpl third = namespaces.open("third");
+            upsert(third, values, MEMORY_BUDGET * 3 / 4);
+            assertEquals(0, (long) third.getMetrics().values().get("flush.count"));
+            assertEquals(1, (long) first.getMetrics().values().get("flush.count"));
+        }
+    }
+
+    @NotNull
+    private static DAOConfig config() {
+        return DAOConfig.builder(MEMORY_BUDGET).build();
+    }
+
+    private static void upsert(@NotNull final DAO dao,
+                               @NotNull final Map<ByteBuffer, ByteBuffer> values,
+                               final long bytes) throws IOException {
+        for (long written = 0; written < bytes; written += KEY_LENGTH + 1024) {
+            final ByteBuffer key = randomKey();
+            final ByteBuffer value = randomValue();
+            values.put(key, value);
+            dao.upsert(key, value);
+        }
+    }
+
+    private static void assertContents(@NotNull final DAO dao,
+                                       @NotNull final Map<ByteBuffer, ByteBuffer> values) throws IOException {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : values.entrySet()) {
+            assertEquals(entry.getValue(), dao.get(entry.getKey()));
+        }
+    }
+}
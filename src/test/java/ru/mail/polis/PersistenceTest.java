@@ -19,6 +19,7 @@ package ru.mail.polis;
 import org.junit.jupiter.api.RepeatedTest;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.nekobitlz.MemTable;
 
 import java.io.File;
 import java.io.IOException;
@@ -29,6 +30,9 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
@@ -136,6 +140,61 @@ class PersistenceTest extends TestBase {
         }
     }
 
+    @Test
+    void sequenceAfterRestart(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer removed = randomKey();
+
+        // Many changes before the ones of the key
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int i = 0; i < 1000; i++) {
+                dao.upsert(randomKey(), randomValue());
+            }
+            dao.upsert(key, join(key, key));
+            dao.upsert(removed, join(removed, removed));
+        }
+
+        // A few changes after the restart must still be the newest ones
+        final ByteBuffer value = randomValue();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, value);
+            dao.remove(removed);
+            assertEquals(value, dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+            dao.compact();
+            assertEquals(value, dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+    }
+
+    @Test
+    void concurrentWritesOfKeyOrdered() {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer first = randomValue();
+        final ByteBuffer second = randomValue();
+        final AtomicLong sequence = new AtomicLong();
+        final AtomicBoolean raced = new AtomicBoolean();
+        final MemTable[] memTable = new MemTable[1];
+        // Another writer of the key takes its number and gets in right after the first number is taken
+        memTable[0] = new MemTable(Long.MAX_VALUE, () -> {
+            final long number = sequence.incrementAndGet();
+            if (raced.compareAndSet(false, true)) {
+                CompletableFuture.runAsync(() -> memTable[0].upsert(key, second)).join();
+            }
+            return number;
+        });
+
+        // The write installed last holds the latest number, so it wins in the flushed tables as well
+        memTable[0].upsert(key, first);
+        assertEquals(first, memTable[0].get(key).getValue());
+        assertEquals(sequence.get(), memTable[0].get(key).getTimeStampAbs());
+    }
+
     @Test
     void hugeKeys(@TempDir File data) throws IOException {
         // Reference key
@@ -0,0 +1,140 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.nekobitlz.DAOConfig;
+import ru.mail.polis.nekobitlz.DAOImpl;
+import ru.mail.polis.nekobitlz.TableAccess;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the tables read by positional reads instead of mapping them to memory.
+ */
+class PreadTest extends TestBase {
+    private static final int KEY_COUNT = 1000;
+    private static final int PROBE_COUNT = 200;
+    private static final int READAHEAD_BYTES = 256 * 1024;
+    private static final int LONG_VALUE_BYTES = 8 * 1024;
+
+    @Test
+    void getAndScan(@TempDir File data) throws IOException {
+        final Random random = new Random(11);
+        final NavigableMap<ByteBuffer, ByteBuffer> values = new TreeMap<>();
+        final DAOConfig config = DAOConfig.builder(DAOFactory.MAX_HEAP / 32)
+                .tableAccess(TableAccess.PREAD)
+                .build();
+
+        try (DAOImpl dao = new DAOImpl(data, config)) {
+            for (int i = 0; i < KEY_COUNT; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                values.put(key, value);
+                dao.upsert(key, value);
+                if (i % (KEY_COUNT / 4) == 0) {
+                    dao.flush();
+                }
+            }
+            // Removed keys are shadowed by the tombstones of the newer tables
+            for (int i = 0; i < KEY_COUNT / 10; i++) {
+                final ByteBuffer key = values.firstKey();
+                values.remove(key);
+                dao.remove(key);
+            }
+            dao.flush();
+            assertReads(dao, values, random);
+
+            dao.compact();
+            assertReads(dao, values, random);
+        }
+
+        try (DAOImpl dao = new DAOImpl(data, config)) {
+            assertReads(dao, values, random);
+            assertThrows(NoSuchElementException.class, () -> dao.get(randomKey()));
+        }
+    }
+
+    @Test
+    void scanWithReadahead(@TempDir File data) throws IOException {
+        final Random random = new Random(13);
+        final NavigableMap<ByteBuffer, ByteBuffer> values = new TreeMap<>();
+        final DAOConfig config = DAOConfig.builder(DAOFactory.MAX_HEAP / 32)
+                .tableAccess(TableAccess.PREAD)
+                .readahead(READAHEAD_BYTES)
+                .build();
+
+        try (DAOImpl dao = new DAOImpl(data, config)) {
+            // About 4 MB in a single table, so a full scan prefetches a dozen windows of up to 256 KB,
+            // with the records crossing the window bounds and a few of them longer than a window
+            for (int i = 0; i < KEY_COUNT; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = longValue(random, i % 300 == 0 ? READAHEAD_BYTES * 2 : LONG_VALUE_BYTES);
+                values.put(key, value);
+                dao.upsert(key, value);
+            }
+            dao.flush();
+            dao.compact();
+            assertEquals(1, (long) dao.getMetrics().values().get("tables.count"));
+
+            // The scans interleave, so each of them takes its own windows from the shared pool
+            final Iterator<Record> first = dao.iterator(ByteBuffer.allocate(0));
+            final Iterator<Record> second = dao.iterator(values.firstKey());
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : values.entrySet()) {
+                final Record expected = Record.of(entry.getKey(), entry.getValue());
+                assertEquals(expected, first.next());
+                assertEquals(expected, second.next());
+            }
+            assertFalse(first.hasNext());
+            assertFalse(second.hasNext());
+
+            assertReads(dao, values, random);
+        }
+    }
+
+    @NotNull
+    private static ByteBuffer longValue(@NotNull final Random random, final int maxBytes) {
+        final byte[] result = new byte[1 + random.nextInt(maxBytes)];
+        random.nextBytes(result);
+        return ByteBuffer.wrap(result);
+    }
+
+    private static void assertReads(@NotNull final DAO dao,
+                                    @NotNull final NavigableMap<ByteBuffer, ByteBuffer> values,
+                                    @NotNull final Random random) throws IOException {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : values.entrySet()) {
+            assertEquals(entry.getValue(), dao.get(entry.getKey()));
+        }
+
+        final Iterator<Record> all = dao.iterator(ByteBuffer.allocate(0));
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : values.entrySet()) {
+            assertEquals(Record.of(entry.getKey(), entry.getValue()), all.next());
+        }
+        assertFalse(all.hasNext());
+
+        for (int i = 0; i < PROBE_COUNT; i++) {
+            final ByteBuffer from = randomKey();
+            final Iterator<Record> iterator = dao.iterator(from);
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : values.tailMap(from).entrySet()) {
+                assertTrue(iterator.hasNext());
+                assertEquals(Record.of(entry.getKey(), entry.getValue()), iterator.next());
+                if (random.nextInt(8) == 0) {
+                    break;
+                }
+            }
+        }
+    }
+}
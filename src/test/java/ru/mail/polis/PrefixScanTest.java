@@ -0,0 +1,169 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.nekobitlz.DAOConfig;
+import ru.mail.polis.nekobitlz.DAOImpl;
+import ru.mail.polis.nekobitlz.KeyPrefix;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Prefix scan tests for {@link DAOImpl}.
+ */
+class PrefixScanTest extends TestBase {
+    private static final int TENANT_COUNT = 10;
+    private static final int KEYS_PER_TENANT = 50;
+
+    @Test
+    void delimitedPrefixFilter(@TempDir File data) throws IOException {
+        scanTenants(data, KeyPrefix.delimited((byte) '/', 1));
+    }
+
+    @Test
+    void fixedLengthPrefixFilter(@TempDir File data) throws IOException {
+        scanTenants(data, KeyPrefix.fixedLength(3));
+    }
+
+    @Test
+    void tablesWithoutFilters(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> values = new TreeMap<>();
+        try (DAOImpl dao = new DAOImpl(data, DAOConfig.builder(DAOFactory.MAX_HEAP / 32).build())) {
+            fill(dao, values);
+        }
+
+        // The old tables are merged as before, the new ones are filtered
+        final DAOConfig config = DAOConfig.builder(DAOFactory.MAX_HEAP / 32)
+                .prefixFilter(KeyPrefix.delimited((byte) '/', 1))
+                .build();
+        try (DAOImpl dao = new DAOImpl(data, config)) {
+            final ByteBuffer key = key("t03/", "new");
+            values.put(key, randomValue());
+            dao.upsert(key, values.get(key));
+            dao.flush();
+            assertPrefixScans(dao, values);
+        }
+    }
+
+    private static void scanTenants(@NotNull final File data, @NotNull final KeyPrefix prefix) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> values = new TreeMap<>();
+        final DAOConfig config = DAOConfig.builder(DAOFactory.MAX_HEAP / 32)
+                .prefixFilter(prefix)
+                .build();
+        try (DAOImpl dao = new DAOImpl(data, config)) {
+            fill(dao, values);
+            for (int tenant = 0; tenant < TENANT_COUNT; tenant++) {
+                assertEquals(records(values, tenant(tenant)), records(dao.prefixIterator(tenant(tenant))));
+            }
+
+            // A tenant is in its own table and the next one removing its key, the other tables are skipped
+            final Map<String, Long> metrics = dao.getMetrics().values();
+            assertEquals(TENANT_COUNT, (long) metrics.get("iterator.tablesMerged.count"));
+            assertTrue(metrics.get("iterator.tablesMerged.max") <= 3);
+
+            assertPrefixScans(dao, values);
+        }
+
+        // The filters are read back with the tables
+        try (DAOImpl dao = new DAOImpl(data, config)) {
+            assertPrefixScans(dao, values);
+            dao.compact();
+            assertPrefixScans(dao, values);
+        }
+    }
+
+    /**
+     * Writes a table per tenant, each one spans almost all the keys by the keys shared with the other tables.
+     */
+    private static void fill(@NotNull final DAOImpl dao,
+                             @NotNull final NavigableMap<ByteBuffer, ByteBuffer> values) throws IOException {
+        for (int tenant = 0; tenant < TENANT_COUNT; tenant++) {
+            for (int i = 0; i < KEYS_PER_TENANT; i++) {
+                upsert(dao, values, key(tenant(tenant), "entity/" + i));
+            }
+            upsert(dao, values, key("a/", Integer.toString(tenant)));
+            upsert(dao, values, key("z/", Integer.toString(tenant)));
+            if (tenant > 0) {
+                // Hides a key of the previous tenant
+                final ByteBuffer removed = key(tenant(tenant - 1), "entity/" + tenant);
+                values.remove(removed);
+                dao.remove(removed);
+            }
+            dao.flush();
+        }
+    }
+
+    private static void assertPrefixScans(@NotNull final DAO dao,
+                                          @NotNull final NavigableMap<ByteBuffer, ByteBuffer> values)
+            throws IOException {
+        for (int tenant = 0; tenant < TENANT_COUNT; tenant++) {
+            final ByteBuffer prefix = tenant(tenant);
+            assertEquals(records(values, prefix), records(dao.prefixIterator(prefix)));
+            final ByteBuffer longer = key(tenant(tenant), "entity/1");
+            assertEquals(records(values, longer), records(dao.prefixIterator(longer)));
+        }
+        // The prefixes shorter than the filtered ones and the missing ones
+        for (final String prefix : new String[]{"", "t", "t0", "a/", "b/", "t99/", "\u007f"}) {
+            final ByteBuffer bytes = ByteBuffer.wrap(prefix.getBytes(StandardCharsets.UTF_8));
+            assertEquals(records(values, bytes), records(dao.prefixIterator(bytes)));
+        }
+    }
+
+    private static void upsert(@NotNull final DAO dao,
+                               @NotNull final NavigableMap<ByteBuffer, ByteBuffer> values,
+                               @NotNull final ByteBuffer key) throws IOException {
+        final ByteBuffer value = randomBuffer(16);
+        values.put(key, value);
+        dao.upsert(key, value);
+    }
+
+    @NotNull
+    private static ByteBuffer tenant(final int tenant) {
+        return ByteBuffer.wrap(String.format("t%02d/", tenant).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @NotNull
+    private static ByteBuffer key(@NotNull final String prefix, @NotNull final String suffix) {
+        return ByteBuffer.wrap((prefix + suffix).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @NotNull
+    private static ByteBuffer key(@NotNull final ByteBuffer prefix, @NotNull final String suffix) {
+        return join(prefix, ByteBuffer.wrap(suffix.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @NotNull
+    private static List<Record> records(@NotNull final NavigableMap<ByteBuffer, ByteBuffer> values,
+                                        @NotNull final ByteBuffer prefix) {
+        final List<Record> result = new ArrayList<>();
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : values.tailMap(prefix, true).entrySet()) {
+            final ByteBuffer key = entry.getKey();
+            if (key.remaining() < prefix.remaining()
+                    || !key.duplicate().limit(prefix.remaining()).equals(prefix)) {
+                break;
+            }
+            result.add(Record.of(key, entry.getValue()));
+        }
+        return result;
+    }
+
+    @NotNull
+    private static List<Record> records(@NotNull final Iterator<Record> iterator) {
+        final List<Record> result = new ArrayList<>();
+        iterator.forEachRemaining(result::add);
+        return result;
+    }
+}
@@ -0,0 +1,176 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.nekobitlz.DAOConfig;
+import ru.mail.polis.nekobitlz.DAOImpl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Range removal tests for {@link DAO} implementations.
+ */
+class RangeRemoveTest extends TestBase {
+    private static final int KEY_COUNT = 100;
+
+    @Test
+    void removeRange(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> map = fill(data);
+        final ByteBuffer from = map.keySet().stream().skip(KEY_COUNT / 4).findFirst().orElseThrow();
+        final ByteBuffer to = map.keySet().stream().skip(KEY_COUNT / 2).findFirst().orElseThrow();
+
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.removeRange(from, to);
+            assertContents(dao, map, from, to);
+        }
+
+        // Range tombstone survives reopen
+        try (DAO dao = DAOFactory.create(data)) {
+            assertContents(dao, map, from, to);
+        }
+    }
+
+    @Test
+    void upsertAfterRemoveRange(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> map = fill(data);
+        final ByteBuffer key = map.firstKey();
+        final ByteBuffer value = randomValue();
+
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.removeRange(ByteBuffer.allocate(0), map.lastKey());
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            dao.upsert(key, value);
+            assertEquals(value, dao.get(key));
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(key));
+            assertEquals(map.lastEntry().getValue(), dao.get(map.lastKey()));
+        }
+    }
+
+    @Test
+    void compactRemovedRange(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> map = fill(data);
+        final long sizeBefore = Files.directorySize(data);
+
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.removeRange(map.firstKey(), map.lastKey());
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.compact();
+            final ByteBuffer lastKey = dao.iterator(ByteBuffer.allocate(0)).next().getKey();
+            assertEquals(map.lastKey(), lastKey);
+        }
+
+        assertTrue(Files.directorySize(data) < sizeBefore / 2);
+    }
+
+    @Test
+    void emptyRange(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> map = fill(data);
+
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.removeRange(map.lastKey(), map.firstKey());
+            dao.removeRange(map.firstKey(), map.firstKey());
+            assertEquals(map.firstEntry().getValue(), dao.get(map.firstKey()));
+        }
+    }
+
+    @Test
+    void overlappingRanges(@TempDir File data) throws IOException {
+        final Random random = new Random(42);
+        final NavigableMap<ByteBuffer, ByteBuffer> map = new TreeMap<>();
+        try (DAOImpl dao = new DAOImpl(data, DAOConfig.builder(DAOFactory.MAX_HEAP / 32).build())) {
+            for (int round = 0; round < 10; round++) {
+                for (int i = 0; i < KEY_COUNT; i++) {
+                    final ByteBuffer key = indexKey(random.nextInt(KEY_COUNT * 2));
+                    final ByteBuffer value = randomValue();
+                    dao.upsert(key, value);
+                    map.put(key, value);
+                }
+                // Nested, overlapping and adjacent ranges, some of them over the older ones
+                for (int i = 0; i < KEY_COUNT / 10; i++) {
+                    final int from = random.nextInt(KEY_COUNT * 2);
+                    final int to = from + random.nextInt(KEY_COUNT / 4);
+                    dao.removeRange(indexKey(from), indexKey(to));
+                    map.subMap(indexKey(from), indexKey(to)).clear();
+                }
+                if (round % 3 == 2) {
+                    dao.flush();
+                }
+                assertModel(dao, map);
+            }
+            dao.compact();
+            assertModel(dao, map);
+        }
+    }
+
+    /**
+     * Returns the key of the index, the bytes are below 0x80, so the keys are in the order of the indexes.
+     */
+    private static ByteBuffer indexKey(final int index) {
+        return ByteBuffer.wrap(new byte[]{(byte) (index >>> 7), (byte) (index & 0x7F)});
+    }
+
+    private static void assertModel(final DAO dao, final NavigableMap<ByteBuffer, ByteBuffer> map) throws IOException {
+        for (int i = 0; i < KEY_COUNT * 2; i++) {
+            final ByteBuffer key = indexKey(i);
+            final ByteBuffer value = map.get(key);
+            if (value == null) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            } else {
+                assertEquals(value, dao.get(key));
+            }
+        }
+        final Iterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0));
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : map.entrySet()) {
+            assertEquals(Record.of(entry.getKey(), entry.getValue()), iterator.next());
+        }
+        assertFalse(iterator.hasNext());
+    }
+
+    private static NavigableMap<ByteBuffer, ByteBuffer> fill(final File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> map = new TreeMap<>();
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int i = 0; i < KEY_COUNT; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                map.put(key, value);
+            }
+        }
+        return map;
+    }
+
+    private static void assertContents(
+            final DAO dao,
+            final NavigableMap<ByteBuffer, ByteBuffer> map,
+            final ByteBuffer from,
+            final ByteBuffer to) throws IOException {
+        assertFalse(dao.range(from, to).hasNext());
+        for (final ByteBuffer key : map.subMap(from, to).keySet()) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+        }
+        for (final ByteBuffer key : map.headMap(from).keySet()) {
+            assertEquals(map.get(key), dao.get(key));
+        }
+        for (final ByteBuffer key : map.tailMap(to).keySet()) {
+            assertEquals(map.get(key), dao.get(key));
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.nekobitlz.DAOConfig;
+import ru.mail.polis.nekobitlz.DAOImpl;
+import ru.mail.polis.nekobitlz.ScanOptions;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Scan options tests for {@link DAOImpl}.
+ */
+class ScanTest extends TestBase {
+    private static final int KEY_COUNT = 1000;
+    private static final long FLUSH_THRESHOLD = 64 * 1024;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    @Test
+    void prefix(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> values = new TreeMap<>();
+        try (DAOImpl dao = new DAOImpl(data, DAOConfig.builder(FLUSH_THRESHOLD).build())) {
+            fill(dao, values);
+
+            final ByteBuffer prefix = values.firstKey().duplicate().limit(1);
+            assertEquals(
+                    records(values, key -> key.get(0) == prefix.get(0)),
+                    scan(dao, EMPTY, null, ScanOptions.builder().prefix(prefix).build()));
+
+            // The prefix with the largest byte has no successor, the range is narrowed from below only
+            final ByteBuffer maxPrefix = ByteBuffer.wrap(new byte[]{Byte.MAX_VALUE});
+            assertEquals(
+                    records(values, key -> key.get(0) == Byte.MAX_VALUE),
+                    scan(dao, EMPTY, null, ScanOptions.builder().prefix(maxPrefix).build()));
+
+            // The range bounds are applied along with the prefix
+            final ByteBuffer from = ByteBuffer.wrap(new byte[]{prefix.get(0), 0});
+            assertEquals(
+                    records(values.tailMap(from, true), key -> key.get(0) == prefix.get(0)),
+                    scan(dao, from, null, ScanOptions.builder().prefix(prefix).build()));
+            assertEquals(
+                    records(values.headMap(from, false), key -> key.get(0) == prefix.get(0)),
+                    scan(dao, EMPTY, from, ScanOptions.builder().prefix(prefix).build()));
+        }
+    }
+
+    @Test
+    void filters(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> values = new TreeMap<>();
+        try (DAOImpl dao = new DAOImpl(data, DAOConfig.builder(FLUSH_THRESHOLD).build())) {
+            fill(dao, values);
+
+            final Predicate<ByteBuffer> evenKey = key -> key.get(key.limit() - 1) % 2 == 0;
+            assertEquals(
+                    records(values, evenKey),
+                    scan(dao, EMPTY, null, ScanOptions.builder().keyFilter(evenKey).build()));
+
+            // The older versions of the rejected records don't show up
+            final List<Record> expected = new ArrayList<>();
+            values.forEach((key, value) -> {
+                if (value.get(0) >= 0) {
+                    expected.add(Record.of(key, value));
+                }
+            });
+            final ScanOptions options = ScanOptions.builder()
+                    .filter((key, value) -> value.get(0) >= 0)
+                    .build();
+            assertEquals(expected, scan(dao, EMPTY, null, options));
+        }
+    }
+
+    @Test
+    void limit(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> values = new TreeMap<>();
+        try (DAOImpl dao = new DAOImpl(data, DAOConfig.builder(FLUSH_THRESHOLD).build())) {
+            fill(dao, values);
+
+            final List<Record> all = records(values, key -> true);
+            assertEquals(all.subList(0, 10), scan(dao, EMPTY, null, ScanOptions.builder().limit(10).build()));
+            assertEquals(List.of(), scan(dao, EMPTY, null, ScanOptions.builder().limit(0).build()));
+            assertEquals(all, scan(dao, EMPTY, null, ScanOptions.builder().limit(KEY_COUNT * 2).build()));
+        }
+        assertThrows(IllegalArgumentException.class, () -> ScanOptions.builder().limit(-1));
+        assertThrows(
+                IllegalStateException.class,
+                () -> ScanOptions.builder().keysOnly().filter((key, value) -> true).build());
+    }
+
+    @Test
+    void keysOnlySkipsValues(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> values = new TreeMap<>();
+        try (DAOImpl dao = new DAOImpl(data, DAOConfig.builder(FLUSH_THRESHOLD).build())) {
+            fill(dao, values);
+            dao.compact();
+
+            // Damage a value in the middle of the table, the checksum of its record doesn't match anymore
+            final ByteBuffer damaged = values.keySet().stream().skip(KEY_COUNT / 4).findFirst().orElseThrow();
+            corrupt(find(data, ".dat"), values.get(damaged));
+            assertThrows(UncheckedIOException.class, () -> scan(dao, EMPTY, null, ScanOptions.defaults()));
+
+            assertEquals(keys(values), scan(dao, EMPTY, null, ScanOptions.builder().keysOnly().build()));
+        }
+    }
+
+    @Test
+    void keysOnlySkipsSeparatedValues(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> values = new TreeMap<>();
+        final DAOConfig config = DAOConfig.builder(FLUSH_THRESHOLD)
+                .valueSeparation(64, 1024 * 1024)
+                .build();
+        try (DAOImpl dao = new DAOImpl(data, config)) {
+            fill(dao, values);
+            dao.compact();
+
+            // The values are lost, the keys are still there
+            for (final File segment : find(data, ".vlog")) {
+                try (FileChannel channel = FileChannel.open(segment.toPath(), WRITE)) {
+                    channel.truncate(0);
+                }
+            }
+            assertThrows(UncheckedIOException.class, () -> scan(dao, EMPTY, null, ScanOptions.defaults()));
+
+            assertEquals(keys(values), scan(dao, EMPTY, null, ScanOptions.builder().keysOnly().build()));
+            final ByteBuffer prefix = values.lastKey().duplicate().limit(1);
+            final ScanOptions options = ScanOptions.builder()
+                    .prefix(prefix)
+                    .keysOnly()
+                    .limit(3)
+                    .build();
+            final List<Record> expected = records(values, key -> key.get(0) == prefix.get(0));
+            final List<Record> keys = new ArrayList<>();
+            expected.subList(0, Math.min(3, expected.size()))
+                    .forEach(record -> keys.add(Record.of(record.getKey(), EMPTY)));
+            assertEquals(keys, scan(dao, EMPTY, null, options));
+        }
+    }
+
+    /**
+     * Spreads the keys over several tables and the MemTable, with some of them overwritten and removed.
+     */
+    private static void fill(@NotNull final DAO dao,
+                             @NotNull final NavigableMap<ByteBuffer, ByteBuffer> values) throws IOException {
+        for (int i = 0; i < KEY_COUNT; i++) {
+            final ByteBuffer key = randomKey();
+            final ByteBuffer value = randomValue();
+            values.put(key, value);
+            dao.upsert(key, value);
+        }
+        int index = 0;
+        for (final ByteBuffer key : new ArrayList<>(values.keySet())) {
+            if (index % 7 == 0) {
+                values.remove(key);
+                dao.remove(key);
+            } else if (index % 5 == 0) {
+                final ByteBuffer value = randomValue();
+                values.put(key, value);
+                dao.upsert(key, value);
+            }
+            index++;
+        }
+    }
+
+    @NotNull
+    private static List<Record> scan(@NotNull final DAOImpl dao,
+                                     @NotNull final ByteBuffer from,
+                                     final ByteBuffer to,
+                                     @NotNull final ScanOptions options) {
+        final List<Record> result = new ArrayList<>();
+        dao.scan(from, to, options).forEachRemaining(result::add);
+        return result;
+    }
+
+    @NotNull
+    private static List<Record> records(@NotNull final Map<ByteBuffer, ByteBuffer> values,
+                                        @NotNull final Predicate<ByteBuffer> keyFilter) {
+        final List<Record> result = new ArrayList<>();
+        values.forEach((key, value) -> {
+            if (keyFilter.test(key)) {
+                result.add(Record.of(key, value));
+            }
+        });
+        return result;
+    }
+
+    @NotNull
+    private static List<Record> keys(@NotNull final Map<ByteBuffer, ByteBuffer> values) {
+        final List<Record> result = new ArrayList<>();
+        values.keySet().forEach(key -> result.add(Record.of(key, EMPTY)));
+        return result;
+    }
+
+    @NotNull
+    private static List<File> find(@NotNull final File data, @NotNull final String extension) {
+        final File[] files = data.listFiles((dir, name) -> name.endsWith(extension));
+        return files == null ? List.of() : Arrays.asList(files);
+    }
+
+    /**
+     * Flips a byte in the middle of the value wherever the tables hold it.
+     */
+    private static void corrupt(@NotNull final List<File> tables, @NotNull final ByteBuffer value) throws IOException {
+        final byte[] pattern = new byte[value.remaining()];
+        value.duplicate().get(pattern);
+        for (final File table : tables) {
+            final byte[] contents = Files.readAllBytes(table.toPath());
+            final int offset = indexOf(contents, pattern);
+            if (offset < 0) {
+                continue;
+            }
+            try (RandomAccessFile file = new RandomAccessFile(table, "rw")) {
+                final long position = offset + pattern.length / 2;
+                file.seek(position);
+                final int b = file.read();
+                file.seek(position);
+                file.write(b ^ 0xFF);
+            }
+        }
+    }
+
+    private static int indexOf(@NotNull final byte[] contents, @NotNull final byte[] pattern) {
+        for (int offset = 0; offset + pattern.length <= contents.length; offset++) {
+            if (Arrays.equals(contents, offset, offset + pattern.length, pattern, 0, pattern.length)) {
+                return offset;
+            }
+        }
+        return -1;
+    }
+}
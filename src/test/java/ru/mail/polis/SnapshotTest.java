@@ -0,0 +1,177 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.nekobitlz.DAOImpl;
+import ru.mail.polis.nekobitlz.SSTableUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Point-in-time view tests for {@link DAO} implementations.
+ */
+class SnapshotTest extends TestBase {
+    private static final int KEY_COUNT = 100;
+
+    @Test
+    void isolation(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        final ByteBuffer newKey = randomKey();
+
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, value);
+            try (Snapshot snapshot = dao.snapshot()) {
+                dao.upsert(key, randomValue());
+                dao.upsert(newKey, randomValue());
+                dao.removeRange(ByteBuffer.allocate(0), newKey);
+
+                assertEquals(value, snapshot.get(key));
+                assertThrows(NoSuchElementException.class, () -> snapshot.get(newKey));
+
+                final Iterator<Record> iterator = snapshot.iterator(ByteBuffer.allocate(0));
+                assertTrue(iterator.hasNext());
+                assertEquals(Record.of(key, value), iterator.next());
+                assertFalse(iterator.hasNext());
+            }
+        }
+    }
+
+    @Test
+    void scanDuringCompaction(@TempDir File data) throws IOException {
+        final List<ByteBuffer> keys = new ArrayList<>(KEY_COUNT);
+        for (int i = 0; i < KEY_COUNT; i++) {
+            keys.add(randomKey());
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final ByteBuffer key : keys) {
+                dao.upsert(key, join(key, key));
+            }
+
+            try (Snapshot snapshot = dao.snapshot()) {
+                final Iterator<Record> iterator = snapshot.iterator(ByteBuffer.allocate(0));
+                for (final ByteBuffer key : keys) {
+                    dao.remove(key);
+                }
+                dao.compact();
+                assertFalse(dao.iterator(ByteBuffer.allocate(0)).hasNext());
+
+                int count = 0;
+                while (iterator.hasNext()) {
+                    final Record record = iterator.next();
+                    assertEquals(join(record.getKey(), record.getKey()), record.getValue());
+                    count++;
+                }
+                assertEquals(KEY_COUNT, count);
+            }
+        }
+    }
+
+    @Test
+    void releaseCompacted(@TempDir File data) throws IOException {
+        try (DAOImpl dao = open(data)) {
+            dao.upsert(randomKey(), randomValue());
+            dao.flush();
+            try (Snapshot snapshot = dao.snapshot()) {
+                dao.upsert(randomKey(), randomValue());
+                dao.flush();
+                dao.compact();
+                assertTrue(snapshot.iterator(ByteBuffer.allocate(0)).hasNext());
+                assertEquals(2, listTables(data).length);
+            }
+            // The only table left is the compacted one
+            assertEquals(1, listTables(data).length);
+        }
+    }
+
+    @Test
+    void memTableVersions(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer first = randomValue();
+        final ByteBuffer second = randomValue();
+        final ByteBuffer third = randomValue();
+
+        try (DAOImpl dao = open(data)) {
+            dao.upsert(key, first);
+            try (Snapshot firstSnapshot = dao.snapshot()) {
+                // Taking a snapshot writes nothing
+                assertEquals(0, listTables(data).length);
+
+                dao.upsert(key, second);
+                try (Snapshot secondSnapshot = dao.snapshot()) {
+                    dao.remove(key);
+                    dao.upsert(key, third);
+                    // A flush replaces the MemTable, the snapshots keep reading the old one
+                    dao.flush();
+                    dao.upsert(key, randomValue());
+
+                    assertEquals(first, firstSnapshot.get(key));
+                    assertEquals(second, secondSnapshot.get(key));
+                    assertEquals(Record.of(key, first), firstSnapshot.iterator(key).next());
+                    assertEquals(Record.of(key, second), secondSnapshot.iterator(key).next());
+                }
+
+                dao.upsert(key, randomValue());
+                assertEquals(first, firstSnapshot.get(key));
+            }
+        }
+    }
+
+    @Test
+    void liveIteratorDuringCompaction(@TempDir File data) throws IOException {
+        final List<ByteBuffer> keys = new ArrayList<>(KEY_COUNT);
+        for (int i = 0; i < KEY_COUNT; i++) {
+            keys.add(randomKey());
+        }
+        keys.sort(ByteBuffer::compareTo);
+
+        try (DAOImpl dao = open(data)) {
+            for (final ByteBuffer key : keys) {
+                dao.upsert(key, join(key, key));
+                if (key.equals(keys.get(KEY_COUNT / 2))) {
+                    dao.flush();
+                }
+            }
+            dao.flush();
+
+            // The iterator pins the tables, the compaction doesn't close them under it
+            final Iterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0));
+            assertEquals(Record.of(keys.get(0), join(keys.get(0), keys.get(0))), iterator.next());
+            dao.compact();
+            assertEquals(3, listTables(data).length);
+
+            for (final ByteBuffer key : keys.subList(1, KEY_COUNT)) {
+                assertEquals(Record.of(key, join(key, key)), iterator.next());
+            }
+            assertFalse(iterator.hasNext());
+            // The exhausted iterator has released the compacted tables
+            assertEquals(1, listTables(data).length);
+        }
+    }
+
+    @NotNull
+    private static DAOImpl open(@NotNull final File data) throws IOException {
+        return new DAOImpl(data, DAOFactory.MAX_HEAP / 32);
+    }
+
+    @NotNull
+    private static File[] listTables(@NotNull final File data) {
+        final File[] result = data.listFiles((dir, name) -> SSTableUtils.isTableFileName(name));
+        assertNotNull(result);
+        return result;
+    }
+}
@@ -0,0 +1,298 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.nekobitlz.DAOConfig;
+import ru.mail.polis.nekobitlz.DAOImpl;
+import ru.mail.polis.nekobitlz.Manifest;
+import ru.mail.polis.nekobitlz.SSTable;
+import ru.mail.polis.nekobitlz.SSTableUtils;
+import ru.mail.polis.nekobitlz.SSTableWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the folder contents found by {@link DAOImpl} on startup.
+ */
+class StartupTest extends TestBase {
+    private static final int KEY_COUNT = 100;
+    private static final byte[] FOREIGN_CONTENTS = "not a table".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    void orphanTablesMovedAside(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> values = fill(data);
+
+        // A table the manifest doesn't list, as left by a flush interrupted before the manifest was written
+        final File table = listTables(data)[0];
+        final File orphan = new File(data, UUID.randomUUID() + SSTableUtils.VALID_FILE_EXTENSION);
+        Files.copy(table.toPath(), orphan.toPath());
+        final File foreign = new File(data, "notes" + SSTableUtils.VALID_FILE_EXTENSION);
+        Files.write(foreign.toPath(), FOREIGN_CONTENTS);
+
+        try (DAO dao = open(data)) {
+            assertValues(dao, values);
+        }
+        assertFalse(orphan.exists());
+        final File movedAside = new File(data, orphan.getName() + ".orphan");
+        assertTrue(movedAside.exists());
+        assertArrayEquals(Files.readAllBytes(table.toPath()), Files.readAllBytes(movedAside.toPath()));
+        assertArrayEquals(FOREIGN_CONTENTS, Files.readAllBytes(foreign.toPath()));
+
+        // The moved file is not taken for a table anymore
+        try (DAO dao = open(data)) {
+            assertValues(dao, values);
+        }
+        assertTrue(movedAside.exists());
+    }
+
+    @Test
+    void tempFilesRemoved(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> values = fill(data);
+
+        final File tableTemp = new File(data, UUID.randomUUID() + SSTableUtils.VALID_FILE_EXTENSION + ".temp");
+        final File manifestTemp = new File(data, Manifest.FILE_NAME + ".temp");
+        final File foreignTemp = new File(data, "upload.temp");
+        for (final File file : new File[]{tableTemp, manifestTemp, foreignTemp}) {
+            Files.write(file.toPath(), FOREIGN_CONTENTS);
+        }
+
+        try (DAO dao = open(data)) {
+            assertValues(dao, values);
+        }
+        assertFalse(tableTemp.exists());
+        assertFalse(manifestTemp.exists());
+        assertArrayEquals(FOREIGN_CONTENTS, Files.readAllBytes(foreignTemp.toPath()));
+    }
+
+    @Test
+    void openWithoutManifest(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> values = fill(data);
+        final int tableCount = listTables(data).length;
+        final File manifest = new File(data, Manifest.FILE_NAME);
+        Files.delete(manifest.toPath());
+        final File foreign = new File(data, "notes" + SSTableUtils.VALID_FILE_EXTENSION);
+        Files.write(foreign.toPath(), FOREIGN_CONTENTS);
+
+        try (DAO dao = open(data)) {
+            assertValues(dao, values);
+        }
+        assertTrue(manifest.exists());
+        assertEquals(tableCount, listTables(data).length);
+        assertArrayEquals(FOREIGN_CONTENTS, Files.readAllBytes(foreign.toPath()));
+
+        try (DAO dao = open(data)) {
+            assertValues(dao, values);
+        }
+    }
+
+    @Test
+    void damagedTableWithoutManifest(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> values = fill(data);
+        Files.delete(new File(data, Manifest.FILE_NAME).toPath());
+        final File damaged = new File(data, UUID.randomUUID() + SSTableUtils.VALID_FILE_EXTENSION);
+        Files.write(damaged.toPath(), FOREIGN_CONTENTS);
+
+        // Nothing is deleted, the startup fails until the file is dealt with
+        assertThrows(IOException.class, () -> open(data));
+        assertArrayEquals(FOREIGN_CONTENTS, Files.readAllBytes(damaged.toPath()));
+        assertFalse(new File(data, Manifest.FILE_NAME).exists());
+
+        Files.delete(damaged.toPath());
+        try (DAO dao = open(data)) {
+            assertValues(dao, values);
+        }
+    }
+
+    @Test
+    void untouchedTablesStayUnopened(@TempDir File data) throws IOException {
+        final int tableCount = 100;
+        writeTables(data, tableCount, 10);
+        final DAOConfig config = DAOConfig.builder(DAOFactory.MAX_HEAP / 32)
+                .openParallelism(0)
+                .build();
+
+        try (DAOImpl dao = new DAOImpl(data, config)) {
+            assertEquals(0, openedTables(dao));
+
+            // The key ranges and the absence of the range tombstones are known from the manifest
+            assertEquals(record(42, 3), dao.get(key(42, 3)));
+            assertEquals(1, openedTables(dao));
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(tableCount, 0)));
+            assertEquals(1, openedTables(dao));
+
+            final Iterator<Record> iterator = dao.iterator(key(tableCount - 1, 9));
+            assertEquals(Record.of(key(tableCount - 1, 9), record(tableCount - 1, 9)), iterator.next());
+            assertFalse(iterator.hasNext());
+            assertEquals(2, openedTables(dao));
+
+            // The summaries of the unopened tables are kept by the manifest rewritten on flush
+            dao.upsert(key(tableCount, 0), record(tableCount, 0));
+            dao.flush();
+        }
+
+        try (DAOImpl dao = new DAOImpl(data, config)) {
+            assertEquals(record(tableCount, 0), dao.get(key(tableCount, 0)));
+            assertEquals(1, openedTables(dao));
+        }
+    }
+
+    @Test
+    void rangeTombstonesOfUnopenedTables(@TempDir File data) throws IOException {
+        final int tableCount = 10;
+        writeTables(data, tableCount, 10);
+        final DAOConfig config = DAOConfig.builder(DAOFactory.MAX_HEAP / 32)
+                .openParallelism(0)
+                .build();
+
+        try (DAOImpl dao = new DAOImpl(data, config)) {
+            dao.removeRange(key(3, 0), key(5, 0));
+            dao.flush();
+        }
+
+        try (DAOImpl dao = new DAOImpl(data, config)) {
+            // The table of the tombstone is read, since it may cover the key
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(4, 2)));
+            assertEquals(2, openedTables(dao));
+            assertEquals(record(7, 2), dao.get(key(7, 2)));
+            assertEquals(3, openedTables(dao));
+        }
+    }
+
+    @Test
+    void firstVersionManifest(@TempDir File data) throws IOException {
+        final int tableCount = 10;
+        writeTables(data, tableCount, 10);
+        // Strips the summaries, as the previous version wrote the manifest
+        final File manifest = new File(data, Manifest.FILE_NAME);
+        final List<String> lines = new ArrayList<>();
+        lines.add("nekobitlz-manifest 1");
+        for (final String line : Files.readAllLines(manifest.toPath()).subList(1, tableCount + 1)) {
+            final String[] fields = line.split(" ");
+            lines.add(fields[0] + " " + fields[1] + " " + fields[2]);
+        }
+        Files.write(manifest.toPath(), lines);
+        final DAOConfig config = DAOConfig.builder(DAOFactory.MAX_HEAP / 32)
+                .openParallelism(0)
+                .build();
+
+        try (DAOImpl dao = new DAOImpl(data, config)) {
+            // Nothing is known of the tables without opening them
+            assertEquals(record(5, 5), dao.get(key(5, 5)));
+            assertEquals(tableCount, openedTables(dao));
+            dao.upsert(key(tableCount, 0), record(tableCount, 0));
+            dao.flush();
+        }
+
+        try (DAOImpl dao = new DAOImpl(data, config)) {
+            assertEquals(record(5, 5), dao.get(key(5, 5)));
+            assertEquals(1, openedTables(dao));
+        }
+    }
+
+    /**
+     * Writes the tables of disjoint key ranges and lists them in the manifest, so no compaction merges them.
+     * The records are the ones of {@link #key(int, int)} and {@link #record(int, int)}.
+     *
+     * @param data            the folder of the tables
+     * @param tableCount      number of the tables
+     * @param recordsPerTable number of the records of a table
+     */
+    private static void writeTables(@NotNull final File data,
+                                    final int tableCount,
+                                    final int recordsPerTable) throws IOException {
+        final List<SSTable> tables = new ArrayList<>(tableCount);
+        try {
+            for (int table = 0; table < tableCount; table++) {
+                final File file = new File(data, UUID.randomUUID() + SSTableUtils.VALID_FILE_EXTENSION);
+                try (SSTableWriter writer = SSTableWriter.create(file.toPath())) {
+                    for (int i = 0; i < recordsPerTable; i++) {
+                        writer.upsert(key(table, i), record(table, i));
+                    }
+                    writer.finish();
+                }
+                tables.add(new SSTable(file, 0));
+            }
+            Manifest.write(data, tables);
+        } finally {
+            for (final SSTable table : tables) {
+                table.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the key of the record of a table written by {@link #writeTables(File, int, int)}.
+     */
+    @NotNull
+    private static ByteBuffer key(final int table, final int record) {
+        // Decimal digits keep the order of the numbers in the order of the bytes
+        return ByteBuffer.wrap(String.format("%08d:%08d", table, record).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @NotNull
+    private static ByteBuffer record(final int table, final int record) {
+        return ByteBuffer.wrap(("value " + table + " " + record).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static long openedTables(@NotNull final DAOImpl dao) {
+        return dao.getMetrics().values().get("tables.opened");
+    }
+
+    @NotNull
+    private static DAOImpl open(@NotNull final File data) throws IOException {
+        return new DAOImpl(data, DAOFactory.MAX_HEAP / 32);
+    }
+
+    /**
+     * Writes the values to a few tables.
+     */
+    @NotNull
+    private static Map<ByteBuffer, ByteBuffer> fill(@NotNull final File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> result = new HashMap<>();
+        try (DAOImpl dao = open(data)) {
+            for (int i = 0; i < KEY_COUNT; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                result.put(key, value);
+                dao.upsert(key, value);
+                if (i % (KEY_COUNT / 3) == 0) {
+                    dao.flush();
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void assertValues(@NotNull final DAO dao,
+                                     @NotNull final Map<ByteBuffer, ByteBuffer> values) throws IOException {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : values.entrySet()) {
+            assertEquals(entry.getValue(), dao.get(entry.getKey()));
+        }
+    }
+
+    @NotNull
+    private static File[] listTables(@NotNull final File data) {
+        final File[] result = data.listFiles((dir, name) -> SSTableUtils.isTableFileName(name));
+        assertNotNull(result);
+        return result;
+    }
+}
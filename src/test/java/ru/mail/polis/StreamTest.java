@@ -0,0 +1,157 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.nekobitlz.DAOConfig;
+import ru.mail.polis.nekobitlz.DAOImpl;
+import ru.mail.polis.nekobitlz.SSTableUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Spliterator;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Parallel range scan tests for {@link DAOImpl}.
+ */
+class StreamTest extends TestBase {
+    private static final int KEY_COUNT = 1000;
+    private static final long FLUSH_THRESHOLD = 64 * 1024;
+
+    @Test
+    void parallelScan(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> values = new TreeMap<>();
+        try (DAOImpl dao = new DAOImpl(data, DAOConfig.builder(FLUSH_THRESHOLD).build())) {
+            fill(dao, values);
+
+            try (Stream<Record> stream = dao.stream(ByteBuffer.allocate(0), null)) {
+                assertEquals(records(values), stream.parallel().collect(Collectors.toList()));
+            }
+
+            final ByteBuffer from = values.keySet().stream().skip(KEY_COUNT / 4).findFirst().orElseThrow();
+            final ByteBuffer to = values.keySet().stream().skip(KEY_COUNT / 2).findFirst().orElseThrow();
+            try (Stream<Record> stream = dao.stream(from, to)) {
+                assertEquals(records(values.subMap(from, to)), stream.parallel().collect(Collectors.toList()));
+            }
+            try (Stream<Record> stream = dao.stream(to, from)) {
+                assertEquals(0, stream.count());
+            }
+        }
+    }
+
+    @Test
+    void splitIntoOrderedParts(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> values = new TreeMap<>();
+        try (DAOImpl dao = new DAOImpl(data, DAOConfig.builder(FLUSH_THRESHOLD).build())) {
+            fill(dao, values);
+
+            try (Snapshot snapshot = dao.snapshot()) {
+                final Spliterator<Record> suffix = snapshot.stream(ByteBuffer.allocate(0), null).spliterator();
+                assertTrue(suffix.hasCharacteristics(Spliterator.SORTED));
+                final Spliterator<Record> prefix = suffix.trySplit();
+                assertNotNull(prefix);
+                assertTrue(prefix.estimateSize() > 0 && suffix.estimateSize() > 0);
+
+                // The parts are sorted and follow each other
+                final List<Record> records = new ArrayList<>();
+                prefix.forEachRemaining(records::add);
+                final int prefixSize = records.size();
+                suffix.forEachRemaining(records::add);
+                assertTrue(prefixSize > 0 && prefixSize < records.size());
+                assertEquals(records(values), records);
+            }
+        }
+    }
+
+    @Test
+    void tablesReleasedByParts(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> values = new TreeMap<>();
+        try (DAOImpl dao = new DAOImpl(data, DAOFactory.MAX_HEAP / 32)) {
+            fill(dao, values);
+            dao.flush();
+            final ByteBuffer overwritten = values.firstKey();
+            values.put(overwritten, randomValue());
+            dao.upsert(overwritten, values.get(overwritten));
+            dao.flush();
+            assertEquals(2, listTables(data).length);
+
+            try (Stream<Record> stream = dao.stream(ByteBuffer.allocate(0), null)) {
+                final Spliterator<Record> suffix = stream.spliterator();
+                final Spliterator<Record> prefix = suffix.trySplit();
+                assertNotNull(prefix);
+
+                // The compacted tables are kept until both parts are exhausted
+                dao.compact();
+                assertEquals(3, listTables(data).length);
+                final List<Record> records = new ArrayList<>();
+                prefix.forEachRemaining(records::add);
+                assertEquals(3, listTables(data).length);
+                suffix.forEachRemaining(records::add);
+                assertEquals(1, listTables(data).length);
+                assertEquals(records(values), records);
+            }
+
+            // A stream closed unfinished releases its tables as well
+            final ByteBuffer key = randomKey();
+            dao.upsert(key, randomValue());
+            dao.flush();
+            try (Stream<Record> stream = dao.stream(ByteBuffer.allocate(0), null)) {
+                assertTrue(stream.iterator().hasNext());
+                dao.compact();
+                assertEquals(3, listTables(data).length);
+            }
+            assertEquals(1, listTables(data).length);
+        }
+    }
+
+    /**
+     * Spreads the keys over several tables and the MemTable, with some of them overwritten and removed.
+     */
+    private static void fill(@NotNull final DAO dao,
+                             @NotNull final NavigableMap<ByteBuffer, ByteBuffer> values) throws IOException {
+        for (int i = 0; i < KEY_COUNT; i++) {
+            final ByteBuffer key = randomKey();
+            final ByteBuffer value = randomValue();
+            values.put(key, value);
+            dao.upsert(key, value);
+        }
+        int index = 0;
+        for (final ByteBuffer key : new ArrayList<>(values.keySet())) {
+            if (index % 7 == 0) {
+                values.remove(key);
+                dao.remove(key);
+            } else if (index % 5 == 0) {
+                final ByteBuffer value = randomValue();
+                values.put(key, value);
+                dao.upsert(key, value);
+            }
+            index++;
+        }
+    }
+
+    @NotNull
+    private static File[] listTables(@NotNull final File data) {
+        final File[] result = data.listFiles((dir, name) -> SSTableUtils.isTableFileName(name));
+        assertNotNull(result);
+        return result;
+    }
+
+    @NotNull
+    private static List<Record> records(@NotNull final Map<ByteBuffer, ByteBuffer> values) {
+        final List<Record> result = new ArrayList<>();
+        values.forEach((key, value) -> result.add(Record.of(key, value)));
+        return result;
+    }
+}
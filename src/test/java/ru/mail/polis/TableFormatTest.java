@@ -0,0 +1,326 @@
+package ru.mail.polis;
+
+import com.google.common.util.concurrent.RateLimiter;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.nekobitlz.DAOConfig;
+import ru.mail.polis.nekobitlz.DAOImpl;
+import ru.mail.polis.nekobitlz.SSTable;
+import ru.mail.polis.nekobitlz.SSTableUtils;
+import ru.mail.polis.nekobitlz.TableAccess;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import java.util.zip.CRC32C;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compatibility tests of the SSTable file format.
+ */
+class TableFormatTest extends TestBase {
+    private static final int FOOTER_TRAILER_BYTES = Integer.BYTES * 2 + Long.BYTES;
+
+    @Test
+    void legacyTables(@TempDir File data) throws IOException {
+        final ByteBuffer first = key("first");
+        final ByteBuffer second = key("second");
+        final ByteBuffer third = key("third");
+        // The original format: timestamps as sequence numbers, negative ones for tombstones
+        writeLegacyTable(data, first, value("old"), 100, second, value("second"), 101, third, null, -102);
+        writeLegacyTable(data, first, value("new"), 200, third, value("third"), 201);
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value("new"), dao.get(first));
+            assertEquals(value("second"), dao.get(second));
+            assertEquals(value("third"), dao.get(third));
+            final Iterator<Record> iterator = dao.iterator(second);
+            assertEquals(Record.of(second, value("second")), iterator.next());
+            assertEquals(Record.of(third, value("third")), iterator.next());
+            assertFalse(iterator.hasNext());
+
+            // The changes are newer than the legacy records
+            dao.remove(second);
+            dao.upsert(third, value("changed"));
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(second));
+            assertEquals(value("changed"), dao.get(third));
+            dao.compact();
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value("new"), dao.get(first));
+            assertThrows(NoSuchElementException.class, () -> dao.get(second));
+            assertEquals(value("changed"), dao.get(third));
+        }
+    }
+
+    @Test
+    void legacyTableMetadata(@TempDir File data) throws IOException {
+        final File file = writeLegacyTable(data, key("a"), value("a"), 7, key("b"), null, -9);
+        for (final TableAccess access : TableAccess.values()) {
+            try (SSTable table = new SSTable(file, 0, config(access))) {
+                assertEquals(0, table.getMetadata().getFormatVersion());
+                assertEquals(1, table.getMetadata().getLiveCount());
+                assertEquals(1, table.getMetadata().getTombstoneCount());
+                assertEquals(9, table.getMetadata().getMaxSequence());
+                assertEquals(key("a"), table.getMetadata().getMinKey());
+                assertEquals(key("b"), table.getMetadata().getMaxKey());
+            }
+        }
+    }
+
+    @Test
+    void secondVersionTable(@TempDir File data) throws IOException {
+        // Flushed by the last release before the value log: 30 records, "key 05" removed, ["key 20", "key 25") too
+        final File file = new File(data, UUID.randomUUID() + SSTableUtils.VALID_FILE_EXTENSION);
+        try (InputStream fixture = TableFormatTest.class.getResourceAsStream("version-2.dat")) {
+            assertNotNull(fixture);
+            Files.copy(fixture, file.toPath());
+        }
+        for (final TableAccess access : TableAccess.values()) {
+            try (SSTable table = new SSTable(file, 0, config(access))) {
+                assertEquals(2, table.getMetadata().getFormatVersion());
+                assertTrue(table.getMetadata().getValueLogBytes().isEmpty());
+                table.verify(RateLimiter.create(Double.MAX_VALUE));
+            }
+        }
+
+        final DAOConfig config = DAOConfig.builder(DAOFactory.MAX_HEAP / 32)
+                .valueSeparation(16, 64 * 1024)
+                .build();
+        try (DAOImpl dao = new DAOImpl(data, config)) {
+            assertSecondVersionRecords(dao);
+            // The compacted table is of the current version and points to the value log
+            dao.upsert(key("large"), ByteBuffer.wrap(new byte[1024]));
+            dao.flush();
+            dao.compact();
+            assertSecondVersionRecords(dao);
+        }
+
+        try (DAOImpl dao = new DAOImpl(data, config)) {
+            assertSecondVersionRecords(dao);
+            assertEquals(ByteBuffer.wrap(new byte[1024]), dao.get(key("large")));
+        }
+        final File[] tables = data.listFiles((dir, name) -> SSTableUtils.isTableFileName(name));
+        assertNotNull(tables);
+        assertEquals(1, tables.length);
+        try (SSTable table = new SSTable(tables[0], 0)) {
+            assertTrue(table.getMetadata().getFormatVersion() > 2);
+            assertFalse(table.getMetadata().getValueLogBytes().isEmpty());
+        }
+    }
+
+    @Test
+    void unknownLayoutRejected(@TempDir File data) throws IOException {
+        // An older layout with more fields after the offsets: [createdAt][tombstone count][record count]
+        final File legacy = writeLegacyTable(data, key("a"), value("a"), 7, key("b"), value("b"), 8);
+        final ByteBuffer contents = ByteBuffer.wrap(Files.readAllBytes(legacy.toPath()));
+        final long count = contents.getLong(contents.limit() - Long.BYTES);
+        final ByteBuffer changed = ByteBuffer.allocate(contents.limit() + Long.BYTES * 2)
+                .put(contents.duplicate().limit(contents.limit() - Long.BYTES))
+                .putLong(System.currentTimeMillis())
+                .putLong(0)
+                .putLong(count)
+                .flip();
+        Files.write(legacy.toPath(), changed.array());
+        assertThrows(IllegalArgumentException.class, () -> new SSTable(legacy, 0));
+    }
+
+    @Test
+    void footerMagicChecked(@TempDir File data) throws IOException {
+        final File file = writeTable(data);
+        final ByteBuffer contents = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        final int last = contents.limit() - 1;
+        contents.put(last, (byte) ~contents.get(last));
+        Files.write(file.toPath(), contents.array());
+        // Not taken for a legacy table either
+        assertRejected(file);
+    }
+
+    @Test
+    void footerChecksumChecked(@TempDir File data) throws IOException {
+        final File file = writeTable(data);
+        final ByteBuffer contents = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        final int createdAt = bodyPosition(contents) + Integer.BYTES;
+        contents.put(createdAt, (byte) ~contents.get(createdAt));
+        Files.write(file.toPath(), contents.array());
+        assertRejected(file);
+    }
+
+    @Test
+    void footerVersionChecked(@TempDir File data) throws IOException {
+        final File file = writeTable(data);
+        final int version;
+        try (SSTable table = new SSTable(file, 0)) {
+            version = table.getMetadata().getFormatVersion();
+        }
+        final byte[] original = Files.readAllBytes(file.toPath());
+
+        // Versions unknown to the reader are rejected even with a valid checksum
+        for (final int unknown : new int[]{version + 1, 0, -1}) {
+            final ByteBuffer contents = ByteBuffer.wrap(original.clone());
+            contents.putInt(bodyPosition(contents), unknown);
+            updateChecksum(contents);
+            Files.write(file.toPath(), contents.array());
+            assertRejected(file);
+        }
+
+        // The checksum is recomputed in the same way for the original version
+        final ByteBuffer contents = ByteBuffer.wrap(original.clone());
+        updateChecksum(contents);
+        Files.write(file.toPath(), contents.array());
+        try (SSTable table = new SSTable(file, 0, config(TableAccess.PREAD))) {
+            assertEquals(version, table.getMetadata().getFormatVersion());
+        }
+    }
+
+    /**
+     * Flushes a few records to a single table of the current format.
+     */
+    @NotNull
+    private static File writeTable(@NotNull final File data) throws IOException {
+        try (DAOImpl dao = new DAOImpl(data, DAOFactory.MAX_HEAP / 32)) {
+            for (int i = 0; i < 10; i++) {
+                dao.upsert(randomKey(), randomValue());
+            }
+            dao.flush();
+        }
+        final File[] tables = data.listFiles((dir, name) -> SSTableUtils.isTableFileName(name));
+        assertNotNull(tables);
+        assertEquals(1, tables.length);
+        return tables[0];
+    }
+
+    private static void assertRejected(@NotNull final File file) {
+        for (final TableAccess access : TableAccess.values()) {
+            assertThrows(IllegalArgumentException.class, () -> new SSTable(file, 0, config(access)));
+        }
+    }
+
+    @NotNull
+    private static DAOConfig config(@NotNull final TableAccess access) {
+        return DAOConfig.builder(DAOFactory.MAX_HEAP / 32)
+                .tableAccess(access)
+                .build();
+    }
+
+    /**
+     * Finds the footer body by the trailer: [body][int body size][int CRC32C of the body][long magic].
+     */
+    private static int bodyPosition(@NotNull final ByteBuffer contents) {
+        return contents.limit() - FOOTER_TRAILER_BYTES - contents.getInt(contents.limit() - FOOTER_TRAILER_BYTES);
+    }
+
+    private static void updateChecksum(@NotNull final ByteBuffer contents) {
+        final int bodyEnd = contents.limit() - FOOTER_TRAILER_BYTES;
+        final CRC32C crc = new CRC32C();
+        crc.update(contents.duplicate().position(bodyPosition(contents)).limit(bodyEnd));
+        contents.putInt(bodyEnd + Integer.BYTES, (int) crc.getValue());
+    }
+
+    /**
+     * Writes a table in the original format: [records][long offsets][long record count].
+     *
+     * @param records triples of a key, a value or null for a tombstone and a timestamp
+     */
+    @NotNull
+    private static File writeLegacyTable(@NotNull final File data, final Object... records) throws IOException {
+        final File file = new File(data, UUID.randomUUID() + ".dat");
+        Files.write(file.toPath(), legacyTable(records).array());
+        return file;
+    }
+
+    @NotNull
+    private static ByteBuffer legacyTable(final Object... records) {
+        final List<ByteBuffer> rows = new ArrayList<>();
+        for (int i = 0; i < records.length; i += 3) {
+            final ByteBuffer key = (ByteBuffer) records[i];
+            final ByteBuffer value = (ByteBuffer) records[i + 1];
+            final long timeStamp = ((Number) records[i + 2]).longValue();
+            final int size = Integer.BYTES + key.remaining() + Long.BYTES
+                    + (value == null ? 0 : Long.BYTES + value.remaining());
+            final ByteBuffer row = ByteBuffer.allocate(size)
+                    .putInt(key.remaining())
+                    .put(key.duplicate())
+                    .putLong(timeStamp);
+            if (value != null) {
+                row.putLong(value.remaining()).put(value.duplicate());
+            }
+            rows.add(row.flip());
+        }
+
+        final int recordsSize = rows.stream().mapToInt(ByteBuffer::remaining).sum();
+        final ByteBuffer result = ByteBuffer.allocate(recordsSize + Long.BYTES * (rows.size() + 1));
+        for (final ByteBuffer row : rows) {
+            result.put(row.duplicate());
+        }
+        long offset = 0;
+        for (final ByteBuffer row : rows) {
+            result.putLong(offset);
+            offset += row.remaining();
+        }
+        return result.putLong(rows.size()).flip();
+    }
+
+    /**
+     * Checks the records of the version 2 fixture, the key {@code "large"} aside.
+     */
+    private static void assertSecondVersionRecords(@NotNull final DAO dao) throws IOException {
+        final List<Record> expected = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            if (i != 5 && (i < 20 || i >= 25)) {
+                expected.add(Record.of(fixtureKey(i), fixtureValue(i)));
+            }
+        }
+        for (final Record record : expected) {
+            assertEquals(record.getValue(), dao.get(record.getKey()));
+        }
+        assertThrows(NoSuchElementException.class, () -> dao.get(fixtureKey(5)));
+        assertThrows(NoSuchElementException.class, () -> dao.get(fixtureKey(22)));
+
+        final List<Record> actual = new ArrayList<>();
+        dao.iterator(ByteBuffer.allocate(0)).forEachRemaining(r -> {
+            if (!r.getKey().equals(key("large"))) {
+                actual.add(r);
+            }
+        });
+        assertEquals(expected, actual);
+    }
+
+    @NotNull
+    private static ByteBuffer fixtureKey(final int i) {
+        return key(String.format("key %02d", i));
+    }
+
+    @NotNull
+    private static ByteBuffer fixtureValue(final int i) {
+        return ByteBuffer.wrap(("value " + i).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @NotNull
+    private static ByteBuffer key(@NotNull final String key) {
+        return ByteBuffer.wrap(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @NotNull
+    private static ByteBuffer value(@NotNull final String value) {
+        return ByteBuffer.wrap(("value of " + value).getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,150 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.nekobitlz.DAOConfig;
+import ru.mail.polis.nekobitlz.DAOImpl;
+import ru.mail.polis.nekobitlz.SSTableUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Rate-limited flush and compaction tests for {@link DAOImpl}.
+ */
+class ThrottleTest extends TestBase {
+    private static final int KEY_COUNT = 1000;
+    private static final long FLUSH_THRESHOLD = 64 * 1024;
+    private static final long BACKLOG_THRESHOLD = 256 * 1024;
+    private static final long SLOW_RATE = 16 * 1024;
+    private static final long FAST_RATE = 16 * 1024 * 1024;
+
+    @Test
+    void unthrottleAtRuntime(@TempDir File data) throws Exception {
+        final List<ByteBuffer> keys = new ArrayList<>(KEY_COUNT);
+        final DAOConfig config = DAOConfig.builder(DAOFactory.MAX_HEAP / 32)
+                .compactionRate(SLOW_RATE)
+                .build();
+
+        try (DAOImpl dao = new DAOImpl(data, config)) {
+            // A few tables of about 1 MB, compacting them at the slow rate would take minutes
+            for (int table = 0; table < 4; table++) {
+                for (int i = 0; i < KEY_COUNT; i++) {
+                    final ByteBuffer key = randomKey();
+                    keys.add(key);
+                    dao.upsert(key, join(key, key));
+                }
+                dao.flush();
+            }
+
+            final CompletableFuture<Void> compaction = CompletableFuture.runAsync(() -> {
+                try {
+                    dao.compact();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            // The merged table is being written at the slow rate
+            while (!hasTempFile(data)) {
+                assertFalse(compaction.isDone());
+                Thread.yield();
+            }
+
+            dao.setCompactionRate(0);
+            compaction.get(30, TimeUnit.SECONDS);
+            for (final ByteBuffer key : keys) {
+                assertEquals(join(key, key), dao.get(key));
+            }
+        }
+    }
+
+    @Test
+    void boostByBacklog(@TempDir File data) throws Exception {
+        final DAOConfig config = DAOConfig.builder(BACKLOG_THRESHOLD)
+                .flushRate(SLOW_RATE)
+                .build();
+
+        final Map<ByteBuffer, ByteBuffer> values = new HashMap<>();
+        try (DAOImpl dao = new DAOImpl(data, config)) {
+            // About 200 KB, flushing them at the slow rate would take more than ten seconds
+            for (int i = 0; i < 200; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                values.put(key, value);
+                dao.upsert(key, value);
+            }
+            final CompletableFuture<Void> flush = CompletableFuture.runAsync(() -> {
+                try {
+                    dao.flush();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            while (!hasTempFile(data)) {
+                assertFalse(flush.isDone());
+                Thread.yield();
+            }
+            // The flushed MemTable is read until its table is added
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : values.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+
+            // The changes go on during the flush, the backlog of a few thresholds speeds the flush up
+            final ByteBuffer key = randomKey();
+            final ByteBuffer value = randomBuffer((int) BACKLOG_THRESHOLD * 4);
+            final CompletableFuture<Void> upsert = CompletableFuture.runAsync(() -> {
+                try {
+                    dao.upsert(key, value);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            flush.get(5, TimeUnit.SECONDS);
+
+            dao.setFlushRate(0);
+            upsert.get(30, TimeUnit.SECONDS);
+            assertEquals(value, dao.get(key));
+        }
+    }
+
+    private static boolean hasTempFile(@NotNull final File data) {
+        final File[] files = data.listFiles(file -> SSTableUtils.isTempFile(file.toPath()));
+        return files != null && files.length > 0;
+    }
+
+    @Test
+    void backgroundCompaction(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> values = new HashMap<>();
+        final DAOConfig config = DAOConfig.builder(FLUSH_THRESHOLD)
+                .flushRate(FAST_RATE)
+                .compactionRate(FAST_RATE)
+                .build();
+
+        // About 16 flushes, so compaction runs a few times meanwhile
+        try (DAO dao = new DAOImpl(data, config)) {
+            for (int i = 0; i < KEY_COUNT; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                values.put(key, value);
+                dao.upsert(key, value);
+            }
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : values.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.nekobitlz.DAOConfig;
+import ru.mail.polis.nekobitlz.DAOImpl;
+import ru.mail.polis.nekobitlz.SSTable;
+import ru.mail.polis.nekobitlz.SSTableUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tombstone purging tests for {@link DAOImpl}.
+ */
+class TombstonePurgeTest extends TestBase {
+    private static final int KEY_COUNT = 100;
+    private static final Duration LONG_GRACE_PERIOD = Duration.ofHours(1);
+
+    @Test
+    void unshadowedTombstonesDropped(@TempDir File data) throws IOException {
+        try (DAOImpl dao = new DAOImpl(data, config(Duration.ZERO))) {
+            final List<ByteBuffer> keys = upsertAll(dao);
+            dao.flush();
+            for (final ByteBuffer key : keys) {
+                dao.remove(key);
+            }
+            dao.flush();
+            assertEquals(KEY_COUNT, countTombstones(data));
+
+            // No other table holds the keys, so neither the values nor the tombstones are needed
+            dao.compact();
+            assertEquals(0, countTombstones(data));
+            assertEquals(0, countLive(data));
+            assertRemoved(dao, keys);
+        }
+    }
+
+    @Test
+    void tombstonesKeptWithinGracePeriod(@TempDir File data) throws IOException {
+        final List<ByteBuffer> keys;
+        try (DAOImpl dao = new DAOImpl(data, config(LONG_GRACE_PERIOD))) {
+            keys = upsertAll(dao);
+            dao.flush();
+            for (final ByteBuffer key : keys) {
+                dao.remove(key);
+            }
+            dao.flush();
+            dao.compact();
+            assertEquals(KEY_COUNT, countTombstones(data));
+            assertEquals(0, countLive(data));
+            assertRemoved(dao, keys);
+        }
+
+        try (DAOImpl dao = new DAOImpl(data, config(Duration.ZERO))) {
+            dao.compact();
+            assertEquals(0, countTombstones(data));
+            assertRemoved(dao, keys);
+        }
+    }
+
+    @Test
+    void rangeTombstonesPurged(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> values = new TreeMap<>();
+        try (DAOImpl dao = new DAOImpl(data, config(LONG_GRACE_PERIOD))) {
+            for (final ByteBuffer key : upsertAll(dao)) {
+                values.put(key, join(key, key));
+            }
+            dao.flush();
+            final ByteBuffer from = values.keySet().stream().skip(KEY_COUNT / 4).findFirst().orElseThrow();
+            final ByteBuffer to = values.keySet().stream().skip(KEY_COUNT / 2).findFirst().orElseThrow();
+            dao.removeRange(from, to);
+            values.subMap(from, to).clear();
+
+            // The range tombstone drops the values it covers, but stays for the grace period
+            dao.flush();
+            dao.compact();
+            assertEquals(1, countRangeTombstones(data));
+            assertEquals(values.size(), countLive(data));
+        }
+
+        try (DAOImpl dao = new DAOImpl(data, config(Duration.ZERO))) {
+            dao.compact();
+            assertEquals(0, countRangeTombstones(data));
+            assertEquals(values.size(), countLive(data));
+            final Iterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0));
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : values.entrySet()) {
+                assertEquals(Record.of(entry.getKey(), entry.getValue()), iterator.next());
+            }
+            assertFalse(iterator.hasNext());
+        }
+    }
+
+    @Test
+    void tombstoneHeavyTablesCompactedFirst(@TempDir File data) throws IOException {
+        try (DAOImpl dao = new DAOImpl(data, config(Duration.ZERO))) {
+            final List<ByteBuffer> removed = upsertAll(dao);
+            dao.flush();
+            final File[] oldest = data.listFiles((dir, name) -> SSTableUtils.isTableFileName(name));
+            assertNotNull(oldest);
+            assertEquals(1, oldest.length);
+
+            // Tables smaller than the one of the tombstones
+            final List<ByteBuffer> kept = new ArrayList<>();
+            for (int i = 0; i < 7; i++) {
+                final ByteBuffer key = randomKey();
+                kept.add(key);
+                dao.upsert(key, join(key, key));
+                dao.flush();
+            }
+
+            // The ninth table starts a partial compaction of four tables
+            final List<File> small = Arrays.asList(listTables(data));
+            for (final ByteBuffer key : removed) {
+                dao.remove(key);
+            }
+            dao.flush();
+            final List<File> tombstones = new ArrayList<>(Arrays.asList(listTables(data)));
+            tombstones.removeAll(small);
+            assertEquals(1, tombstones.size());
+            while (dao.getMetrics().values().get("tables.count") > 6) {
+                Thread.yield();
+            }
+            // Waits for the background compaction to complete
+            dao.compactValueLog();
+
+            // The tombstones are merged, but kept, since the oldest table holds the keys
+            assertTrue(oldest[0].exists());
+            assertFalse(tombstones.get(0).exists());
+            assertEquals(KEY_COUNT, countTombstones(data));
+            assertRemoved(dao, removed);
+            for (final ByteBuffer key : kept) {
+                assertEquals(join(key, key), dao.get(key));
+            }
+
+            dao.compact();
+            assertEquals(0, countTombstones(data));
+            assertEquals(kept.size(), countLive(data));
+        }
+    }
+
+    @Test
+    void rangeTombstonesCounted(@TempDir File data) throws IOException {
+        try (DAOImpl dao = new DAOImpl(data, config(Duration.ZERO))) {
+            for (int i = 0; i < KEY_COUNT; i++) {
+                final ByteBuffer from = randomKey();
+                dao.removeRange(from, join(from, from));
+            }
+            dao.upsert(randomKey(), randomValue());
+            dao.flush();
+        }
+
+        // The table is compacted before the ones of the values
+        final File[] tables = listTables(data);
+        assertEquals(1, tables.length);
+        try (SSTable table = new SSTable(tables[0], 0)) {
+            assertEquals(KEY_COUNT, table.getMetadata().getRangeTombstoneCount());
+            assertEquals((double) KEY_COUNT / (KEY_COUNT + 1), table.getMetadata().getTombstoneRatio(), 1e-9);
+        }
+    }
+
+    @NotNull
+    private static DAOConfig config(@NotNull final Duration gracePeriod) {
+        return DAOConfig.builder(DAOFactory.MAX_HEAP / 32)
+                .tombstoneGracePeriod(gracePeriod)
+                .build();
+    }
+
+    @NotNull
+    private static List<ByteBuffer> upsertAll(@NotNull final DAO dao) throws IOException {
+        final List<ByteBuffer> keys = new ArrayList<>(KEY_COUNT);
+        for (int i = 0; i < KEY_COUNT; i++) {
+            final ByteBuffer key = randomKey();
+            keys.add(key);
+            dao.upsert(key, join(key, key));
+        }
+        return keys;
+    }
+
+    private static void assertRemoved(@NotNull final DAO dao, @NotNull final List<ByteBuffer> keys) {
+        for (final ByteBuffer key : keys) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+        }
+    }
+
+    private static long countTombstones(@NotNull final File data) throws IOException {
+        long result = 0;
+        for (final File file : listTables(data)) {
+            try (SSTable table = new SSTable(file, 0)) {
+                result += table.getMetadata().getTombstoneCount();
+            }
+        }
+        return result;
+    }
+
+    private static long countLive(@NotNull final File data) throws IOException {
+        long result = 0;
+        for (final File file : listTables(data)) {
+            try (SSTable table = new SSTable(file, 0)) {
+                result += table.getMetadata().getLiveCount();
+            }
+        }
+        return result;
+    }
+
+    private static long countRangeTombstones(@NotNull final File data) throws IOException {
+        long result = 0;
+        for (final File file : listTables(data)) {
+            try (SSTable table = new SSTable(file, 0)) {
+                result += table.getRangeTombstones().size();
+            }
+        }
+        return result;
+    }
+
+    @NotNull
+    private static File[] listTables(@NotNull final File data) {
+        final File[] result = data.listFiles((dir, name) -> SSTableUtils.isTableFileName(name));
+        assertNotNull(result);
+        return result;
+    }
+}
@@ -0,0 +1,196 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.nekobitlz.DAOConfig;
+import ru.mail.polis.nekobitlz.DAOImpl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Key-value separation tests for {@link DAOImpl}.
+ */
+class ValueLogTest extends TestBase {
+    private static final int KEY_COUNT = 200;
+    private static final int MIN_SEPARATED_BYTES = 512;
+    // About 60 values per segment
+    private static final long SEGMENT_BYTES = 64 * 1024;
+
+    @Test
+    void compactionMovesPointers(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> values = new TreeMap<>();
+        try (DAOImpl dao = new DAOImpl(data, config())) {
+            upsertAll(dao, values, KEY_COUNT);
+            dao.flush();
+            for (final ByteBuffer key : new ArrayList<>(values.keySet())) {
+                final ByteBuffer value = randomValue();
+                values.put(key, value);
+                dao.upsert(key, value);
+            }
+            final ByteBuffer removed = values.keySet().iterator().next();
+            values.remove(removed);
+            dao.remove(removed);
+            dao.flush();
+
+            dao.compact();
+            final Map<String, Long> metrics = dao.getMetrics().values();
+            assertTrue(metrics.get("compaction.bytesWritten") * 10 < metrics.get("valueLog.bytesWritten"));
+
+            // The segments of the first values are not referenced anymore
+            dao.compactValueLog();
+            assertTrue(dao.getMetrics().values().get("valueLog.bytesReclaimed") > 0);
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+            assertContents(dao, values);
+        }
+
+        try (DAO dao = new DAOImpl(data, config())) {
+            assertContents(dao, values);
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            assertContents(dao, values);
+        }
+    }
+
+    @Test
+    void relocation(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> values = new TreeMap<>();
+        try (DAOImpl dao = new DAOImpl(data, config())) {
+            upsertAll(dao, values, KEY_COUNT);
+            dao.flush();
+
+            // Three quarters of the values become garbage
+            int index = 0;
+            for (final ByteBuffer key : new ArrayList<>(values.keySet())) {
+                if (index++ % 4 != 0) {
+                    final ByteBuffer value = randomValue();
+                    values.put(key, value);
+                    dao.upsert(key, value);
+                }
+            }
+            dao.flush();
+            dao.compact();
+
+            final long written = dao.getMetrics().values().get("valueLog.bytesWritten");
+            final int segments = countSegments(data);
+            dao.compactValueLog();
+            dao.compactValueLog();
+            assertTrue(dao.getMetrics().values().get("valueLog.bytesWritten") > written);
+            assertTrue(dao.getMetrics().values().get("valueLog.bytesReclaimed") > 0);
+            assertTrue(countSegments(data) < segments);
+            assertContents(dao, values);
+        }
+
+        try (DAO dao = new DAOImpl(data, config())) {
+            assertContents(dao, values);
+        }
+    }
+
+    @Test
+    void snapshotPinsSegments(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> values = new TreeMap<>();
+        try (DAOImpl dao = new DAOImpl(data, config())) {
+            upsertAll(dao, values, KEY_COUNT);
+            try (Snapshot snapshot = dao.snapshot()) {
+                for (final ByteBuffer key : values.keySet()) {
+                    dao.remove(key);
+                }
+                dao.flush();
+                dao.compact();
+                dao.compactValueLog();
+                assertFalse(dao.iterator(ByteBuffer.allocate(0)).hasNext());
+                assertContents(snapshot, values);
+            }
+
+            dao.compactValueLog();
+            assertEquals(0, countSegments(data));
+        }
+    }
+
+    @Test
+    void liveIteratorPinsSegments(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> values = new TreeMap<>();
+        try (DAOImpl dao = new DAOImpl(data, config())) {
+            upsertAll(dao, values, KEY_COUNT);
+            dao.flush();
+            final Iterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0));
+            final Map.Entry<ByteBuffer, ByteBuffer> first = values.entrySet().iterator().next();
+            assertEquals(Record.of(first.getKey(), first.getValue()), iterator.next());
+
+            // The replaced table is held by the iterator, so are the segments it points to
+            for (final ByteBuffer key : values.keySet()) {
+                dao.remove(key);
+            }
+            values.remove(first.getKey());
+            dao.flush();
+            dao.compact();
+            dao.compactValueLog();
+            assertFalse(dao.iterator(ByteBuffer.allocate(0)).hasNext());
+            assertTrue(countSegments(data) > 0);
+            assertIterates(iterator, values);
+
+            dao.compactValueLog();
+            assertEquals(0, countSegments(data));
+        }
+    }
+
+    private static DAOConfig config() {
+        return DAOConfig.builder(DAOFactory.MAX_HEAP / 32)
+                .valueSeparation(MIN_SEPARATED_BYTES, SEGMENT_BYTES)
+                .build();
+    }
+
+    private static void upsertAll(@NotNull final DAO dao,
+                                  @NotNull final Map<ByteBuffer, ByteBuffer> values,
+                                  final int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            final ByteBuffer key = randomKey();
+            final ByteBuffer value = randomValue();
+            values.put(key, value);
+            dao.upsert(key, value);
+        }
+    }
+
+    private static void assertContents(@NotNull final DAO dao,
+                                       @NotNull final Map<ByteBuffer, ByteBuffer> values) throws IOException {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : values.entrySet()) {
+            assertEquals(entry.getValue(), dao.get(entry.getKey()));
+        }
+        assertIterates(dao.iterator(ByteBuffer.allocate(0)), values);
+    }
+
+    private static void assertContents(@NotNull final Snapshot snapshot,
+                                       @NotNull final Map<ByteBuffer, ByteBuffer> values) throws IOException {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : values.entrySet()) {
+            assertEquals(entry.getValue(), snapshot.get(entry.getKey()));
+        }
+        assertIterates(snapshot.iterator(ByteBuffer.allocate(0)), values);
+    }
+
+    private static void assertIterates(@NotNull final Iterator<Record> iterator,
+                                       @NotNull final Map<ByteBuffer, ByteBuffer> values) {
+        final List<Record> expected = new ArrayList<>();
+        values.forEach((key, value) -> expected.add(Record.of(key, value)));
+        final List<Record> actual = new ArrayList<>();
+        iterator.forEachRemaining(actual::add);
+        assertEquals(expected, actual);
+    }
+
+    private static int countSegments(@NotNull final File data) {
+        final File[] segments = data.listFiles((dir, name) -> name.endsWith(".vlog"));
+        return segments == null ? 0 : segments.length;
+    }
+}
@@ -0,0 +1,94 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.nekobitlz.DAOConfig;
+import ru.mail.polis.nekobitlz.DAOImpl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Write stall tests for {@link DAOImpl}.
+ */
+class WriteStallTest extends TestBase {
+    private static final int KEY_COUNT = 3000;
+    private static final long FLUSH_THRESHOLD = 64 * 1024;
+    private static final int SOFT_LIMIT = 9;
+    private static final int HARD_LIMIT = 11;
+    private static final long SLOWDOWN_RATE = 64 * 1024 * 1024;
+    // Past the first chunks a compaction would take hours, it finishes only once the limit is lifted
+    private static final long STUCK_COMPACTION_RATE = 1;
+
+    @Test
+    void tablesBounded(@TempDir File data) throws Exception {
+        final Map<ByteBuffer, ByteBuffer> values = new ConcurrentHashMap<>();
+        final DAOConfig config = DAOConfig.builder(FLUSH_THRESHOLD)
+                .compactionRate(STUCK_COMPACTION_RATE)
+                .writeStall(SOFT_LIMIT, HARD_LIMIT, SLOWDOWN_RATE)
+                .build();
+
+        // About 48 MemTables, far more than the hard limit
+        try (DAOImpl dao = new DAOImpl(data, config)) {
+            final CompletableFuture<Void> writes = CompletableFuture.runAsync(() -> {
+                try {
+                    for (int i = 0; i < KEY_COUNT; i++) {
+                        final ByteBuffer key = randomKey();
+                        final ByteBuffer value = randomValue();
+                        values.put(key, value);
+                        dao.upsert(key, value);
+                        assertTrue(tableCount(dao) <= HARD_LIMIT);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+
+            // The MemTable is full at the hard limit, so the flush waits for the stuck compaction
+            while (tableCount(dao) < HARD_LIMIT
+                    || dao.getMetrics().values().get("memtable.bytes") <= FLUSH_THRESHOLD) {
+                assertFalse(writes.isDone());
+                Thread.yield();
+            }
+            assertEquals(HARD_LIMIT, tableCount(dao));
+            assertFalse(writes.isDone());
+
+            dao.setCompactionRate(0);
+            writes.get(30, TimeUnit.SECONDS);
+
+            final Map<String, Long> metrics = dao.getMetrics().values();
+            assertTrue(metrics.get("write.slowdownNanos") > 0);
+            assertTrue(metrics.get("write.stopNanos") > 0);
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : values.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+    }
+
+    private static long tableCount(@NotNull final DAOImpl dao) {
+        return dao.getMetrics().values().get("tables.count");
+    }
+
+    @Test
+    void limitsBelowCompactionThreshold(@TempDir File data) {
+        assertThrows(IllegalArgumentException.class, () -> DAOConfig.builder(FLUSH_THRESHOLD)
+                .writeStall(HARD_LIMIT, SOFT_LIMIT, SLOWDOWN_RATE));
+
+        final DAOConfig config = DAOConfig.builder(FLUSH_THRESHOLD)
+                .writeStall(4, HARD_LIMIT, SLOWDOWN_RATE)
+                .build();
+        assertThrows(IllegalArgumentException.class, () -> new DAOImpl(data, config));
+    }
+}